@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+import junit.framework.Assert;
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+/**
+ * Fixtures shared by the benchmarks: test cases from a number of different
+ * suites, failures with deep stack traces and scratch directories for
+ * reports.
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * Creates test cases that cycle through a fixed set of suites, so that
+     * each case is in a different suite from the one before.
+     *
+     * @param count number of cases to create
+     * @return the new cases
+     */
+    static TestCase[] newCases(int count) {
+        TestCase[] cases = new TestCase[count];
+        for (int i = 0; i < count; i++) {
+            String name = "testCase" + i;
+            switch (i % 8) {
+                case 0: cases[i] = new SuiteA(name); break;
+                case 1: cases[i] = new SuiteB(name); break;
+                case 2: cases[i] = new SuiteC(name); break;
+                case 3: cases[i] = new SuiteD(name); break;
+                case 4: cases[i] = new SuiteE(name); break;
+                case 5: cases[i] = new SuiteF(name); break;
+                case 6: cases[i] = new SuiteG(name); break;
+                default: cases[i] = new SuiteH(name); break;
+            }
+        }
+        return cases;
+    }
+
+    /**
+     * Creates a failure as thrown by an assertion the given number of calls
+     * deep in a test.
+     *
+     * @param depth number of frames between the test and the assertion
+     * @return the failure, with a real stack trace
+     */
+    static AssertionFailedError newFailure(int depth) {
+        try {
+            recurse(depth);
+        } catch (AssertionFailedError e) {
+            return e;
+        }
+        throw new IllegalStateException("Assertion did not fail");
+    }
+
+    private static void recurse(int depth) {
+        if (depth <= 0) {
+            Assert.fail("expected:<&> but was:<\"actual\">");
+        } else {
+            recurse(depth - 1);
+        }
+    }
+
+    /**
+     * Creates a new, empty directory for the listener to write to.
+     *
+     * @return the new directory
+     * @throws IOException if the directory cannot be created
+     */
+    static File createTempDir() throws IOException {
+        File dir = File.createTempFile("ajr-bench", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create temporary directory '" + dir + "'");
+        }
+        return dir;
+    }
+
+    /**
+     * Deletes a file or directory, including everything under it.
+     *
+     * @param file the file or directory to delete
+     */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A writer that discards everything, so that only the work of producing
+     * output is measured.
+     */
+    static final class NullWriter extends Writer {
+        private long mCount;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            mCount += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            mCount += len;
+        }
+
+        @Override
+        public void write(int c) {
+            mCount++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * @return the number of characters written so far, for consumption
+         *         by the benchmark so the output cannot be optimised away
+         */
+        long getCount() {
+            return mCount;
+        }
+    }
+
+    public static final class SuiteA extends TestCase {
+        public SuiteA(String name) {
+            super(name);
+        }
+    }
+
+    public static final class SuiteB extends TestCase {
+        public SuiteB(String name) {
+            super(name);
+        }
+    }
+
+    public static final class SuiteC extends TestCase {
+        public SuiteC(String name) {
+            super(name);
+        }
+    }
+
+    public static final class SuiteD extends TestCase {
+        public SuiteD(String name) {
+            super(name);
+        }
+    }
+
+    public static final class SuiteE extends TestCase {
+        public SuiteE(String name) {
+            super(name);
+        }
+    }
+
+    public static final class SuiteF extends TestCase {
+        public SuiteF(String name) {
+            super(name);
+        }
+    }
+
+    public static final class SuiteG extends TestCase {
+        public SuiteG(String name) {
+            super(name);
+        }
+    }
+
+    public static final class SuiteH extends TestCase {
+        public SuiteH(String name) {
+            super(name);
+        }
+    }
+}
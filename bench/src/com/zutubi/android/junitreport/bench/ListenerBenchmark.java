@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import android.content.Context;
+
+import com.zutubi.android.junitreport.FlushPolicy;
+import com.zutubi.android.junitreport.JUnitReportListener;
+import com.zutubi.android.junitreport.ReportFormat;
+
+/**
+ * Measures the cost the listener adds to each test in a single report file:
+ * a passing test is just a startTest/endTest cycle, a failing test adds a
+ * failure with a deep stack trace in between.  Each iteration starts a new
+ * report, so the file does not grow without bound.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ListenerBenchmark {
+    @Param({"xml", "json", "binary"})
+    public String format;
+
+    @Param({"test", "suite"})
+    public String flushPolicy;
+
+    @Param({"true", "false"})
+    public boolean filterTraces;
+
+    @Param({"50"})
+    public int traceDepth;
+
+    private File mDir;
+    private JUnitReportListener mListener;
+    private TestCase mCase;
+    private AssertionFailedError mFailure;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        mCase = Benchmarks.newCases(1)[0];
+        mFailure = Benchmarks.newFailure(traceDepth);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        mDir = Benchmarks.createTempDir();
+        Context context = new Context(mDir);
+        ReportFormat reportFormat = ReportFormat.parse(format);
+        mListener = new JUnitReportListener(context, context, "junit-report." + reportFormat.getExtension(), mDir.getAbsolutePath(), filterTraces, false);
+        mListener.setFormat(reportFormat);
+        mListener.setFlushPolicy(FlushPolicy.parse(flushPolicy));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        mListener.close();
+        Benchmarks.delete(mDir);
+    }
+
+    @Benchmark
+    public void passingTest() {
+        mListener.startTest(mCase);
+        mListener.endTest(mCase);
+    }
+
+    @Benchmark
+    public void failingTest() {
+        mListener.startTest(mCase);
+        mListener.addFailure(mCase, mFailure);
+        mListener.endTest(mCase);
+    }
+}
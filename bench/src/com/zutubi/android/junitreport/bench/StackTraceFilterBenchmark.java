@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.zutubi.android.junitreport.StackTraceFilter;
+
+/**
+ * Measures writing a filtered stack trace, compared with the unfiltered
+ * trace the platform would print.  Output goes to a writer that discards
+ * it, so only the filtering and formatting are measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class StackTraceFilterBenchmark {
+    @Param({"10", "200"})
+    public int traceDepth;
+
+    @Param({"", "-com.zutubi.android.junitreport.bench,+com.zutubi.android.junitreport.bench.Benchmarks.recurse"})
+    public String patterns;
+
+    private Throwable mFailure;
+    private StackTraceFilter mFilter;
+
+    @Setup
+    public void setUp() {
+        mFailure = new RuntimeException("wrapped", Benchmarks.newFailure(traceDepth));
+        mFilter = StackTraceFilter.withPatterns(patterns);
+    }
+
+    @Benchmark
+    public long filtered() throws IOException {
+        Benchmarks.NullWriter out = new Benchmarks.NullWriter();
+        mFilter.printStackTrace(mFailure, out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long unfiltered() {
+        Benchmarks.NullWriter out = new Benchmarks.NullWriter();
+        mFailure.printStackTrace(new PrintWriter(out));
+        return out.getCount();
+    }
+}
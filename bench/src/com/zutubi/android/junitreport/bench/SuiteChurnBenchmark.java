@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import android.content.Context;
+
+import com.zutubi.android.junitreport.JUnitReportListener;
+
+/**
+ * Measures the cost of switching suites in multiFile mode, where every
+ * switch closes one report file and opens the next.  Each test is in a
+ * different suite from the one before, so every operation is a switch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class SuiteChurnBenchmark {
+    private static final int CASE_COUNT = 64;
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    private File mDir;
+    private JUnitReportListener mListener;
+    private TestCase[] mCases;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        mCases = Benchmarks.newCases(CASE_COUNT);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        mDir = Benchmarks.createTempDir();
+        Context context = new Context(mDir);
+        mListener = new JUnitReportListener(context, context, "junit-report-__suite__.xml", new File(mDir, "reports").getAbsolutePath(), true, true);
+        mListener.setCompress(compress);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        mListener.close();
+        Benchmarks.delete(mDir);
+    }
+
+    @Benchmark
+    public void suiteSwitch() {
+        TestCase testCase = mCases[mNext];
+        mNext = (mNext + 1) % CASE_COUNT;
+        mListener.startTest(testCase);
+        mListener.endTest(testCase);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+/**
+ * Stand-in for the platform Context, with just the methods the listener
+ * uses.  All storage is under a directory given on creation.
+ */
+public class Context {
+    public static final int MODE_PRIVATE = 0;
+
+    private final File mBaseDir;
+
+    public Context(File baseDir) {
+        mBaseDir = baseDir;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public String getPackageName() {
+        return "com.zutubi.android.junitreport.bench";
+    }
+
+    public File getFilesDir() {
+        return makeDir("files");
+    }
+
+    public File getCacheDir() {
+        return makeDir("cache");
+    }
+
+    public File getExternalFilesDir(String type) {
+        return makeDir("external");
+    }
+
+    public File getFileStreamPath(String name) {
+        return new File(getFilesDir(), name);
+    }
+
+    public FileOutputStream openFileOutput(String name, int mode) throws FileNotFoundException {
+        return new FileOutputStream(getFileStreamPath(name));
+    }
+
+    private File makeDir(String name) {
+        File dir = new File(mBaseDir, name);
+        dir.mkdirs();
+        return dir;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Stand-in for the platform Debug.  Allocation and CPU counters all read as
+ * zero: the benchmarks measure allocation with the JMH gc profiler instead.
+ */
+public final class Debug {
+    private Debug() {
+    }
+
+    public static void startAllocCounting() {
+    }
+
+    public static void stopAllocCounting() {
+    }
+
+    public static int getThreadAllocCount() {
+        return 0;
+    }
+
+    public static int getThreadAllocSize() {
+        return 0;
+    }
+
+    public static long threadCpuTimeNanos() {
+        return 0;
+    }
+
+    public static int getGlobalGcInvocationCount() {
+        return 0;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the traces written by {@link StackTraceFilter}, using throwables
+ * with made-up frames so that the expected output does not depend on how
+ * the test is run.
+ */
+public class StackTraceFilterTest extends TestCase {
+    private static final StackTraceElement MAIN = new StackTraceElement("com.example.Main", "main", "Main.java", 3);
+    private static final StackTraceElement RUN_BARE = new StackTraceElement("junit.framework.TestCase", "runBare", "TestCase.java", 5);
+    private static final StackTraceElement RUN = new StackTraceElement("com.example.Runner", "run", "Runner.java", 10);
+    private static final StackTraceElement CALL = new StackTraceElement("com.example.Service", "call", "Service.java", 20);
+    private static final StackTraceElement LOAD = new StackTraceElement("com.example.Dao", "load", "Dao.java", 7);
+    private static final StackTraceElement READ = new StackTraceElement("com.example.Store", "read", "Store.java", 42);
+
+    public void testMatchesThrowableWhenNothingFiltered() throws IOException {
+        Throwable error = newCauseChain(RUN, MAIN);
+        StringWriter expected = new StringWriter();
+        PrintWriter writer = new PrintWriter(expected);
+        error.printStackTrace(writer);
+        writer.flush();
+        assertEquals(expected.toString().replace(System.getProperty("line.separator"), "\n"), printStackTrace(error));
+    }
+
+    public void testOmittedFramesCountOnlyUnfiltered() throws IOException {
+        Throwable error = newCauseChain(RUN, RUN_BARE, MAIN);
+        assertEquals("java.lang.RuntimeException: outer\n" +
+                "\tat com.example.Service.call(Service.java:20)\n" +
+                "\tat com.example.Runner.run(Runner.java:10)\n" +
+                "\tat com.example.Main.main(Main.java:3)\n" +
+                "Caused by: java.lang.IllegalStateException: middle\n" +
+                "\tat com.example.Dao.load(Dao.java:7)\n" +
+                "\t... 2 more\n" +
+                "Caused by: java.io.IOException: inner\n" +
+                "\tat com.example.Store.read(Store.java:42)\n" +
+                "\t... 3 more\n", printStackTrace(error));
+    }
+
+    public void testNoMoreLineWhenAllOmittedFramesFiltered() throws IOException {
+        Throwable cause = new IllegalStateException("inner");
+        cause.setStackTrace(new StackTraceElement[] { LOAD, RUN_BARE });
+        Throwable error = new RuntimeException("outer", cause);
+        error.setStackTrace(new StackTraceElement[] { CALL, RUN_BARE });
+        assertEquals("java.lang.RuntimeException: outer\n" +
+                "\tat com.example.Service.call(Service.java:20)\n" +
+                "Caused by: java.lang.IllegalStateException: inner\n" +
+                "\tat com.example.Dao.load(Dao.java:7)\n", printStackTrace(error));
+    }
+
+    /**
+     * Creates an exception with two nested causes, where each cause shares
+     * the given frames with the trace that encloses it.
+     */
+    private static Throwable newCauseChain(StackTraceElement... common) {
+        Throwable inner = new IOException("inner");
+        inner.setStackTrace(withCommon(new StackTraceElement[] { READ, LOAD }, common));
+        Throwable middle = new IllegalStateException("middle", inner);
+        middle.setStackTrace(withCommon(new StackTraceElement[] { LOAD }, common));
+        Throwable outer = new RuntimeException("outer", middle);
+        outer.setStackTrace(withCommon(new StackTraceElement[] { CALL }, common));
+        return outer;
+    }
+
+    private static StackTraceElement[] withCommon(StackTraceElement[] own, StackTraceElement[] common) {
+        StackTraceElement[] trace = new StackTraceElement[own.length + common.length];
+        System.arraycopy(own, 0, trace, 0, own.length);
+        System.arraycopy(common, 0, trace, own.length, common.length);
+        return trace;
+    }
+
+    private static String printStackTrace(Throwable error) throws IOException {
+        StringWriter out = new StringWriter();
+        StackTraceFilter.DEFAULT.printStackTrace(error, out);
+        return out.toString();
+    }
+}
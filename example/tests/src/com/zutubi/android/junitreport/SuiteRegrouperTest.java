@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that {@link SuiteRegrouper} keeps its memory use within the budget
+ * however many suites are open, and that spilling loses no cases.
+ */
+public class SuiteRegrouperTest extends AndroidTestCase {
+    private static final int MEMORY_BUDGET = 64 * 1024;
+    private static final int SUITE_COUNT = 100;
+    private static final int CASES_PER_SUITE = 64;
+    private static final int CASE_LENGTH = 512;
+
+    private SuiteRegrouper mRegrouper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRegrouper = new SuiteRegrouper(MEMORY_BUDGET, getContext().getCacheDir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRegrouper.clear();
+        super.tearDown();
+    }
+
+    public void testSpilledSuitesReleaseMemory() throws IOException {
+        // Each suite in turn grows to half the budget, so that every suite
+        // has been spilled from a large buffer by the end.
+        byte[] bytes = new byte[CASE_LENGTH];
+        for (int suite = 0; suite < SUITE_COUNT; suite++) {
+            for (int i = 0; i < CASES_PER_SUITE; i++) {
+                mRegrouper.add("Suite" + suite, 0, i, i + 1, 0, 0, bytes, bytes.length);
+            }
+        }
+
+        int retained = mRegrouper.getRetainedBytes();
+        assertTrue("Retained " + retained + " bytes, budget is " + MEMORY_BUDGET, retained <= 2 * MEMORY_BUDGET);
+    }
+
+    public void testSpilledCasesWrittenInOrder() throws IOException {
+        // Alternate suites so that cases are spilled part way through each.
+        int suiteCount = 4;
+        ByteArrayOutputStream[] expected = new ByteArrayOutputStream[suiteCount];
+        for (int suite = 0; suite < suiteCount; suite++) {
+            expected[suite] = new ByteArrayOutputStream();
+        }
+
+        byte[] bytes = new byte[CASE_LENGTH];
+        for (int i = 0; i < CASES_PER_SUITE * suiteCount; i++) {
+            int suite = i % suiteCount;
+            Arrays.fill(bytes, (byte) i);
+            expected[suite].write(bytes);
+            mRegrouper.add("Suite" + suite, 0, i, i + 1, 0, 0, bytes, bytes.length);
+        }
+
+        int suite = 0;
+        for (SuiteRegrouper.SuiteGroup group: mRegrouper.getGroups()) {
+            assertEquals("Suite" + suite, group.getName());
+            assertEquals(CASES_PER_SUITE, group.getTests());
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            group.writeCases(actual);
+            assertTrue("Cases of " + group.getName() + " differ", Arrays.equals(expected[suite].toByteArray(), actual.toByteArray()));
+            suite++;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import android.util.Xml;
+
+/**
+ * Checks that {@link XmlReportWriter} produces the same bytes as the
+ * platform serializer it replaced, by writing the same report through both
+ * and comparing the output.  This lives in the example project because the
+ * serializer to compare against is the one on the device.
+ * <p/>
+ * The one intended difference is that the report writer replaces characters
+ * that may not appear in XML with '?', where the platform serializer either
+ * throws or writes them unchanged (depending on the Android version).  The
+ * serializer is therefore given the text with these characters already
+ * replaced.  Older versions of the serializer also reject supplementary
+ * characters, which the report writer writes as character references like
+ * newer versions do, so these are only compared on newer devices.
+ */
+public class XmlReportWriterTest extends TestCase {
+    private static final String ENCODING_UTF_8 = "utf-8";
+
+    public void testPlain() throws IOException {
+        assertSameOutput("expected:<1> but was:<2>");
+    }
+
+    public void testEmpty() throws IOException {
+        assertSameOutput("");
+    }
+
+    public void testMarkup() throws IOException {
+        assertSameOutput("<a href=x>&amp;</a> & ]]> done");
+    }
+
+    public void testDoubleQuotes() throws IOException {
+        assertSameOutput("expected \"a\" but was \"b\"");
+    }
+
+    public void testSingleQuotes() throws IOException {
+        assertSameOutput("can't find 'it'");
+    }
+
+    public void testBothQuotes() throws IOException {
+        assertSameOutput("can't find \"it\"");
+    }
+
+    public void testWhitespace() throws IOException {
+        assertSameOutput("tab\there\nnewline\r\nwindows\rmac  two spaces ");
+    }
+
+    public void testControlCharacters() throws IOException {
+        assertSameOutput("nul\u0000 bell\u0007 backspace\u0008 escape\u001b unit\u001f del\u007f");
+    }
+
+    public void testNonAscii() throws IOException {
+        assertSameOutput("caf\u00e9 \u00fcber \u4e2d\u6587 \u20ac nbsp\u00a0 c1\u0080\u009f");
+    }
+
+    public void testSupplementaryCharacters() throws IOException {
+        if (!serializerWritesSupplementaryChars()) {
+            return;
+        }
+        assertSameOutput("face \ud83d\ude00 clef \ud834\udd1e last \udbff\udfff");
+    }
+
+    public void testUnpairedSurrogates() throws IOException {
+        assertSameOutput("high \ud800 low \udc00 reversed \udc00\ud800 end \ud800");
+    }
+
+    public void testNonCharacters() throws IOException {
+        assertSameOutput("replacement \ufffd ok \ufffe\uffff not");
+    }
+
+    public void testEveryCharacter() throws IOException {
+        // Separated so that no two surrogates form a pair.
+        StringBuilder builder = new StringBuilder();
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            builder.append((char) c).append(' ');
+        }
+        assertSameOutput(builder.toString());
+    }
+
+    public void testLongerThanBuffer() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 50000) {
+            builder.append("<\u00e9\u4e2d\"'&\t\u0001 ");
+        }
+        assertSameOutput(builder.toString());
+    }
+
+    public void testSupplementaryCharactersLongerThanBuffer() throws IOException {
+        if (!serializerWritesSupplementaryChars()) {
+            return;
+        }
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 50000) {
+            builder.append("\ud83d\ude00\u00e9 ");
+        }
+        assertSameOutput(builder.toString());
+    }
+
+    private void assertSameOutput(String value) throws IOException {
+        byte[] expected = serialize(value);
+        assertSameBytes(expected, write(value, false));
+        assertSameBytes(expected, write(value, true));
+    }
+
+    private static boolean serializerWritesSupplementaryChars() throws IOException {
+        try {
+            serialize("\ud83d\ude00");
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void assertSameBytes(byte[] expected, byte[] actual) throws IOException {
+        if (!Arrays.equals(expected, actual)) {
+            // Decoded for a readable failure, the bytes may still differ if
+            // these match.
+            assertEquals(new String(expected, ENCODING_UTF_8), new String(actual, ENCODING_UTF_8));
+            fail("Output differs only in its encoding");
+        }
+    }
+
+    /**
+     * Writes a report in the same way as the listener did before it had
+     * its own writer, with the value as a failure message and trace.
+     */
+    private static byte[] serialize(String value) throws IOException {
+        String replaced = replaceInvalidChars(value);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlSerializer serializer = Xml.newSerializer();
+        serializer.setOutput(out, ENCODING_UTF_8);
+        serializer.startDocument(ENCODING_UTF_8, true);
+        serializer.startTag("", "testsuites");
+        serializer.startTag("", "testsuite");
+        serializer.attribute("", "name", "com.example.FooTest");
+        serializer.startTag("", "testcase");
+        serializer.attribute("", "classname", "com.example.FooTest");
+        serializer.attribute("", "name", "testFoo");
+        serializer.attribute("", "time", "0.123");
+        serializer.startTag("", "failure");
+        serializer.attribute("", "message", replaced);
+        serializer.attribute("", "type", "junit.framework.AssertionFailedError");
+        serializer.text(replaced);
+        serializer.endTag("", "failure");
+        serializer.endTag("", "testcase");
+        serializer.startTag("", "testcase");
+        serializer.attribute("", "classname", "com.example.FooTest");
+        serializer.attribute("", "name", replaced);
+        serializer.endTag("", "testcase");
+        serializer.endDocument();
+        serializer.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the same report as {@link #serialize(String)}, through either
+     * the String or the char[] variants of the writer's methods.
+     */
+    private static byte[] write(String value, boolean useChars) throws IOException {
+        char[] chars = value.toCharArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlReportWriter writer = new XmlReportWriter();
+        writer.setOutput(out);
+        writer.startDocument();
+        writer.startTag("testsuites");
+        writer.startTag("testsuite");
+        writer.attribute("name", "com.example.FooTest");
+        writer.startTag("testcase");
+        writer.attribute("classname", "com.example.FooTest");
+        writer.attribute("name", "testFoo");
+        writer.attribute("time", "0.123".toCharArray(), 0, 5);
+        writer.startTag("failure");
+        if (useChars) {
+            writer.attribute("message", chars, 0, chars.length);
+        } else {
+            writer.attribute("message", value);
+        }
+        writer.attribute("type", "junit.framework.AssertionFailedError");
+        if (useChars) {
+            writer.text(chars, 0, chars.length);
+        } else {
+            writer.text(value);
+        }
+        writer.endTag("failure");
+        writer.endTag("testcase");
+        writer.startTag("testcase");
+        writer.attribute("classname", "com.example.FooTest");
+        writer.attribute("name", value);
+        writer.endTag("testcase");
+        writer.endDocument();
+        return out.toByteArray();
+    }
+
+    /**
+     * Replaces characters that may not appear in XML 1.0 with '?': control
+     * characters other than tab, newline and carriage return, U+FFFE and
+     * U+FFFF, and surrogates that are not part of a pair.
+     */
+    private static String replaceInvalidChars(String s) {
+        StringBuilder builder = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                builder.append(c).append(s.charAt(++i));
+            } else if (c < 0x20 && c != '\t' && c != '\n' && c != '\r' || c > 0xfffd || c >= 0xd800 && c <= 0xdfff) {
+                builder.append('?');
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Builds the baseline that the runner uses to carry over the results of
+ * unchanged test classes, from the reports of a run made with a class
+ * manifest.  Such reports record the fingerprint of each test class on its
+ * suite.  The baseline lists the tests of every class that has a
+ * fingerprint and all of whose tests passed (including tests that were
+ * themselves carried over), one line per test:
+ * <pre>
+ *   suite&lt;TAB&gt;case&lt;TAB&gt;fingerprint&lt;TAB&gt;milliseconds
+ * </pre>
+ * A class that appears in several reports is only included if it passed,
+ * with the same fingerprint, in all of them.
+ */
+public class BaselineBuilder {
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    private static final String HEADER = "# android-junit-report baseline: suite, case, fingerprint, milliseconds";
+
+    private static final String TAG_SUITE = "testsuite";
+    private static final String TAG_CASE = "testcase";
+    private static final String TAG_PROPERTIES = "properties";
+    private static final String TAG_SYSTEM_OUT = "system-out";
+    private static final String TAG_SYSTEM_ERR = "system-err";
+    private static final String ATTRIBUTE_NAME = "name";
+    private static final String ATTRIBUTE_TIME = "time";
+    private static final String ATTRIBUTE_FINGERPRINT = "fingerprint";
+
+    private final Map<String, SuiteBaseline> mSuites = new TreeMap<String, SuiteBaseline>();
+
+    /**
+     * Adds the suites in a report (compressed or not).
+     *
+     * @param report the report to read
+     * @throws IOException if the report cannot be read or is invalid
+     */
+    public void add(File report) throws IOException {
+        InputStream in = ReportFiles.open(report);
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            try {
+                SuiteBaseline suite = null;
+                int depth = 0;
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            String name = reader.getLocalName();
+                            if (name.equals(TAG_SUITE)) {
+                                suite = addSuite(reader.getAttributeValue(null, ATTRIBUTE_NAME), reader.getAttributeValue(null, ATTRIBUTE_FINGERPRINT));
+                                depth = 0;
+                            } else if (suite != null) {
+                                depth++;
+                                if (depth == 1 && name.equals(TAG_CASE)) {
+                                    suite.addCase(reader.getAttributeValue(null, ATTRIBUTE_NAME), reader.getAttributeValue(null, ATTRIBUTE_TIME));
+                                } else if (depth == 2 && !isOutput(name)) {
+                                    // A failure, error, skip or failed attempt.
+                                    suite.mPassed = false;
+                                }
+                            }
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            if (reader.getLocalName().equals(TAG_SUITE)) {
+                                suite = null;
+                            } else if (suite != null) {
+                                depth--;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid report '" + report + "': " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isOutput(String name) {
+        return name.equals(TAG_PROPERTIES) || name.equals(TAG_SYSTEM_OUT) || name.equals(TAG_SYSTEM_ERR);
+    }
+
+    private SuiteBaseline addSuite(String name, String fingerprint) {
+        if (name == null) {
+            return null;
+        }
+
+        SuiteBaseline suite = mSuites.get(name);
+        if (suite == null) {
+            suite = new SuiteBaseline(fingerprint);
+            mSuites.put(name, suite);
+        } else if (suite.mFingerprint == null || !suite.mFingerprint.equals(fingerprint)) {
+            suite.mPassed = false;
+        }
+
+        if (fingerprint == null) {
+            suite.mPassed = false;
+        }
+        return suite;
+    }
+
+    /**
+     * Saves the baseline, replacing the file only once the new content is
+     * complete.
+     *
+     * @param file the baseline file
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), ENCODING_UTF_8));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, SuiteBaseline> entry: mSuites.entrySet()) {
+                SuiteBaseline suite = entry.getValue();
+                if (!suite.mPassed) {
+                    continue;
+                }
+
+                for (Map.Entry<String, Long> caseEntry: suite.mCases.entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write('\t');
+                    writer.write(caseEntry.getKey());
+                    writer.write('\t');
+                    writer.write(suite.mFingerprint);
+                    writer.write('\t');
+                    writer.write(Long.toString(caseEntry.getValue()));
+                    writer.write('\n');
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Unable to replace '" + file + "'");
+        }
+    }
+
+    /**
+     * @return a one-line summary of the suites added
+     */
+    public String getSummary() {
+        int passedSuites = 0;
+        int passedCases = 0;
+        for (SuiteBaseline suite: mSuites.values()) {
+            if (suite.mPassed) {
+                passedSuites++;
+                passedCases += suite.mCases.size();
+            }
+        }
+        return passedSuites + " of " + mSuites.size() + " suite(s) in baseline, with " + passedCases + " test(s)";
+    }
+
+    /**
+     * The cases of a suite, and whether they all passed.
+     */
+    private static final class SuiteBaseline {
+        private final String mFingerprint;
+        private final Map<String, Long> mCases = new TreeMap<String, Long>();
+        private boolean mPassed = true;
+
+        SuiteBaseline(String fingerprint) {
+            this.mFingerprint = fingerprint;
+        }
+
+        void addCase(String name, String time) {
+            if (name == null) {
+                return;
+            }
+
+            long millis = 0;
+            if (time != null) {
+                try {
+                    millis = Math.round(Double.parseDouble(time) * 1000);
+                } catch (NumberFormatException e) {
+                    // Carried over without a duration.
+                }
+            }
+            mCases.put(name, millis);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Converts a report written in the binary format into standard JUnit XML.
+ * The binary format records the summary attributes of a suite (counts and
+ * duration) after its test cases, whereas XML needs them in the start tag.
+ * So the report is read twice: once to collect the summaries, and again to
+ * write the XML.  Only the summaries are held in memory.
+ * <p/>
+ * See BinaryReportWriter in the runner for a description of the format.
+ */
+public class BinaryReportConverter {
+    private static final String ENCODING_UTF_8 = "utf-8";
+
+    private static final byte[] MAGIC = { 'A', 'J', 'R', 'B' };
+    private static final int VERSION = 1;
+
+    private static final int RECORD_START_TAG = 1;
+    private static final int RECORD_ATTRIBUTE = 2;
+    private static final int RECORD_TEXT = 3;
+    private static final int RECORD_END_TAG = 4;
+    private static final int RECORD_SUMMARY = 5;
+    private static final int RECORD_END_DOCUMENT = 6;
+
+    // summary attributes keyed by the index of the element they belong to
+    private final Map<Integer, List<String>> mSummaries = new HashMap<Integer, List<String>>();
+
+    /**
+     * Converts a single report, which may be compressed.
+     *
+     * @param file the binary report to convert
+     * @param out  stream to write the XML report to
+     * @throws IOException if the report is invalid or incomplete, or on any
+     *         error reading or writing
+     */
+    public void convert(File file, OutputStream out) throws IOException {
+        mSummaries.clear();
+        InputStream in = ReportFiles.open(file);
+        try {
+            collectSummaries(new RecordReader(in));
+        } finally {
+            in.close();
+        }
+
+        in = ReportFiles.open(file);
+        try {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, ENCODING_UTF_8);
+            try {
+                writer.writeStartDocument(ENCODING_UTF_8, "1.0");
+                write(new RecordReader(in), writer);
+            } finally {
+                writer.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to write XML: " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void collectSummaries(RecordReader reader) throws IOException {
+        List<Integer> open = new ArrayList<Integer>();
+        int elementIndex = 0;
+        while (reader.next()) {
+            switch (reader.getType()) {
+                case RECORD_START_TAG:
+                    open.add(elementIndex++);
+                    break;
+                case RECORD_END_TAG:
+                    if (open.isEmpty()) {
+                        throw new IOException("Unbalanced end tag '" + reader.readString() + "'");
+                    }
+                    open.remove(open.size() - 1);
+                    break;
+                case RECORD_SUMMARY:
+                    if (open.isEmpty()) {
+                        throw new IOException("Summary outside of any element");
+                    }
+                    List<String> attributes = new ArrayList<String>();
+                    int count = reader.readVarint();
+                    for (int i = 0; i < count * 2; i++) {
+                        attributes.add(reader.readString());
+                    }
+                    mSummaries.put(open.get(open.size() - 1), attributes);
+                    break;
+                case RECORD_END_DOCUMENT:
+                    return;
+                default:
+                    break;
+            }
+        }
+        throw new IOException("Report is incomplete (the test run may have crashed)");
+    }
+
+    private void write(RecordReader reader, XMLStreamWriter writer) throws IOException, XMLStreamException {
+        int elementIndex = 0;
+        List<String> summary = null;
+        while (reader.next()) {
+            switch (reader.getType()) {
+                case RECORD_START_TAG:
+                    writer.writeStartElement(reader.readString());
+                    summary = mSummaries.get(elementIndex++);
+                    if (summary != null) {
+                        for (int i = 0; i < summary.size(); i += 2) {
+                            writer.writeAttribute(summary.get(i), replaceInvalidChars(summary.get(i + 1)));
+                        }
+                    }
+                    break;
+                case RECORD_ATTRIBUTE:
+                    String name = reader.readString();
+                    String value = reader.readString();
+                    if (summary == null || !containsName(summary, name)) {
+                        writer.writeAttribute(name, replaceInvalidChars(value));
+                    }
+                    break;
+                case RECORD_TEXT:
+                    writer.writeCharacters(replaceInvalidChars(reader.readString()));
+                    break;
+                case RECORD_END_TAG:
+                    writer.writeEndElement();
+                    break;
+                case RECORD_END_DOCUMENT:
+                    writer.writeEndDocument();
+                    writer.flush();
+                    return;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Replaces characters that may not appear in XML with '?', as the XML
+     * report writer on the device does: control characters other than
+     * tab and line breaks, U+FFFE, U+FFFF and unpaired surrogates.  The
+     * binary format records strings as they were reported, so may hold any
+     * of these.
+     *
+     * @param s the string to check
+     * @return the string with invalid characters replaced (the same
+     *         instance if there were none)
+     */
+    private static String replaceInvalidChars(String s) {
+        char[] chars = null;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            boolean valid;
+            if (Character.isHighSurrogate(c)) {
+                valid = i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1));
+                if (valid) {
+                    // Skip the low half of the pair.
+                    i++;
+                }
+            } else if (Character.isLowSurrogate(c)) {
+                valid = false;
+            } else {
+                valid = c >= 0x20 ? c <= 0xfffd : c == '\t' || c == '\n' || c == '\r';
+            }
+
+            if (!valid) {
+                if (chars == null) {
+                    chars = s.toCharArray();
+                }
+                chars[i] = '?';
+            }
+        }
+        return chars == null ? s : new String(chars);
+    }
+
+    private static boolean containsName(List<String> attributes, String name) {
+        for (int i = 0; i < attributes.size(); i += 2) {
+            if (attributes.get(i).equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the records of a binary report one at a time.
+     */
+    private static final class RecordReader {
+        private final DataInputStream mIn;
+        private byte[] mPayload = new byte[1024];
+        private int mLength;
+        private int mPosition;
+        private int mType;
+
+        RecordReader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            byte[] header = new byte[MAGIC.length + 1];
+            try {
+                mIn.readFully(header);
+            } catch (EOFException e) {
+                throw new IOException("Not a binary report: file is too short");
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (header[i] != MAGIC[i]) {
+                    throw new IOException("Not a binary report: bad magic bytes");
+                }
+            }
+            if (header[MAGIC.length] != VERSION) {
+                throw new IOException("Unsupported binary report version " + header[MAGIC.length]);
+            }
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return true if a record was read, false at the end of the stream
+         * @throws IOException if the record is truncated or cannot be read
+         */
+        boolean next() throws IOException {
+            mType = mIn.read();
+            if (mType < 0) {
+                return false;
+            }
+
+            try {
+                mLength = readStreamVarint();
+                if (mLength > mPayload.length) {
+                    mPayload = new byte[Math.max(mLength, mPayload.length * 2)];
+                }
+                mIn.readFully(mPayload, 0, mLength);
+            } catch (EOFException e) {
+                throw new IOException("Report is truncated (the test run may have crashed)");
+            }
+            mPosition = 0;
+            return true;
+        }
+
+        int getType() {
+            return mType;
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            int shift = 0;
+            while (true) {
+                if (mPosition >= mLength || shift > 28) {
+                    throw new IOException("Malformed record of type " + mType);
+                }
+                int b = mPayload[mPosition++] & 0xff;
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        String readString() throws IOException {
+            int length = readVarint();
+            if (length < 0 || mPosition + length > mLength) {
+                throw new IOException("Malformed record of type " + mType);
+            }
+            String s = new String(mPayload, mPosition, length, ENCODING_UTF_8);
+            mPosition += length;
+            return s;
+        }
+
+        private int readStreamVarint() throws IOException {
+            int value = 0;
+            int shift = 0;
+            while (true) {
+                if (shift > 28) {
+                    throw new IOException("Malformed record length");
+                }
+                int b = mIn.readUnsignedByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Builds the manifest of class fingerprints that the runner uses to find
+ * test classes that are unchanged since a previous run.  Classes are read
+ * from directories of class files, or from jars.  The fingerprint of a class
+ * is a digest of its own content and that of every class it depends on,
+ * directly or indirectly, among those read.  Dependencies are the classes
+ * named in the constant pool of a class file, which covers every class it
+ * uses, extends or implements.  The manifest is a text file with one line
+ * per class:
+ * <pre>
+ *   class&lt;TAB&gt;fingerprint
+ * </pre>
+ * sorted by class name.  Note that only class files are considered:
+ * resources and native code that tests depend on are not.
+ */
+public class ClassManifestBuilder {
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    private static final String HEADER = "# android-junit-report class manifest: class, fingerprint";
+    private static final String EXTENSION_CLASS = ".class";
+    private static final String EXTENSION_JAR = ".jar";
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private static final int CLASS_MAGIC = 0xcafebabe;
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELD_REF = 9;
+    private static final int CONSTANT_METHOD_REF = 10;
+    private static final int CONSTANT_INTERFACE_METHOD_REF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    // Content digests and dependencies, keyed by class name.
+    private final Map<String, String> mDigests = new HashMap<String, String>();
+    private final Map<String, Set<String>> mDependencies = new HashMap<String, Set<String>>();
+
+    /**
+     * Adds the classes in a directory (searched recursively) or jar.
+     *
+     * @param file the directory or jar to add classes from
+     * @throws IOException if a class cannot be read or is invalid
+     */
+    public void add(File file) throws IOException {
+        if (file.isDirectory()) {
+            addDirectory(file);
+        } else if (file.getName().endsWith(EXTENSION_JAR)) {
+            addJar(file);
+        } else if (file.getName().endsWith(EXTENSION_CLASS)) {
+            addClass(file);
+        } else {
+            throw new IOException("Not a directory, jar or class file: '" + file + "'");
+        }
+    }
+
+    private void addDirectory(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list directory '" + dir + "'");
+        }
+
+        for (File file: files) {
+            if (file.isDirectory()) {
+                addDirectory(file);
+            } else if (file.getName().endsWith(EXTENSION_CLASS)) {
+                addClass(file);
+            }
+        }
+    }
+
+    private void addClass(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            addClass(file.getPath(), in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void addJar(File file) throws IOException {
+        ZipFile jar = new ZipFile(file);
+        try {
+            Enumeration<? extends ZipEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && entry.getName().endsWith(EXTENSION_CLASS)) {
+                    InputStream in = jar.getInputStream(entry);
+                    try {
+                        addClass(file + "!" + entry.getName(), in);
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    private void addClass(String source, InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ReportFiles.copy(in, buffer);
+        byte[] bytes = buffer.toByteArray();
+
+        Set<String> references = new HashSet<String>();
+        String name;
+        try {
+            name = parseClass(bytes, references);
+        } catch (IOException e) {
+            throw new IOException("Invalid class file '" + source + "': " + e.getMessage(), e);
+        }
+
+        references.remove(name);
+        mDigests.put(name, toHex(digest().digest(bytes)));
+        mDependencies.put(name, references);
+    }
+
+    /**
+     * Reads the constant pool of a class file, collecting the names of the
+     * classes it refers to.
+     *
+     * @return the name of the class itself
+     */
+    private static String parseClass(byte[] bytes, Set<String> references) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != CLASS_MAGIC) {
+            throw new IOException("Bad magic number");
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        int count = in.readUnsignedShort();
+        String[] strings = new String[count];
+        // Index of the name of each class entry, zero for other entries.
+        int[] classNames = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    strings[i] = in.readUTF();
+                    break;
+                case CONSTANT_CLASS:
+                    classNames[i] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    in.skipBytes(2);
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    in.skipBytes(3);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELD_REF:
+                case CONSTANT_METHOD_REF:
+                case CONSTANT_INTERFACE_METHOD_REF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    in.skipBytes(4);
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    // These take two entries in the pool.
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        for (int nameIndex: classNames) {
+            if (nameIndex != 0) {
+                String reference = classReference(strings, nameIndex);
+                if (reference != null) {
+                    references.add(reference);
+                }
+            }
+        }
+
+        in.readUnsignedShort();
+        int thisClass = in.readUnsignedShort();
+        String name = thisClass < count && classNames[thisClass] != 0 ? classReference(strings, classNames[thisClass]) : null;
+        if (name == null) {
+            throw new IOException("Missing class name");
+        }
+        return name;
+    }
+
+    private static String classReference(String[] strings, int index) throws IOException {
+        if (index <= 0 || index >= strings.length || strings[index] == null) {
+            throw new IOException("Invalid class reference");
+        }
+
+        String name = strings[index];
+        // Array types refer to their element type, if it is a class.
+        int start = 0;
+        while (start < name.length() && name.charAt(start) == '[') {
+            start++;
+        }
+        if (start > 0) {
+            if (start == name.length() || name.charAt(start) != 'L' || !name.endsWith(";")) {
+                return null;
+            }
+            name = name.substring(start + 1, name.length() - 1);
+        }
+        return name.replace('/', '.');
+    }
+
+    /**
+     * Saves the manifest of the classes added, replacing the file only once
+     * the new content is complete.
+     *
+     * @param file the manifest file
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), ENCODING_UTF_8));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (String name: new TreeSet<String>(mDigests.keySet())) {
+                writer.write(name);
+                writer.write('\t');
+                writer.write(fingerprint(name));
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Unable to replace '" + file + "'");
+        }
+    }
+
+    /**
+     * Computes the fingerprint of a class from the digests of the classes
+     * it depends on, taken in name order so the result is stable.
+     */
+    private String fingerprint(String name) throws IOException {
+        Map<String, String> closure = new TreeMap<String, String>();
+        List<String> pending = new ArrayList<String>();
+        pending.add(name);
+        while (!pending.isEmpty()) {
+            String next = pending.remove(pending.size() - 1);
+            String digest = mDigests.get(next);
+            // Classes outside those added (e.g. the platform) are ignored.
+            if (digest != null && closure.put(next, digest) == null) {
+                pending.addAll(mDependencies.get(next));
+            }
+        }
+
+        MessageDigest fingerprint = digest();
+        for (Map.Entry<String, String> entry: closure.entrySet()) {
+            fingerprint.update(entry.getKey().getBytes(ENCODING_UTF_8));
+            fingerprint.update((byte) '=');
+            fingerprint.update(entry.getValue().getBytes(ENCODING_UTF_8));
+            fingerprint.update((byte) '\n');
+        }
+        return toHex(fingerprint.digest());
+    }
+
+    private static MessageDigest digest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(DIGEST_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b: bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return a one-line summary of the classes added
+     */
+    public String getSummary() {
+        return mDigests.size() + " class(es) in manifest";
+    }
+}
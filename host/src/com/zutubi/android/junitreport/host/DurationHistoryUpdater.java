@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Maintains the history of test durations that the runner uses to balance
+ * shards.  The history is a text file with one line per test:
+ * <pre>
+ *   suite&lt;TAB&gt;case&lt;TAB&gt;milliseconds
+ * </pre>
+ * sorted by suite and case.  Updating from new reports only touches the
+ * tests they contain, so reports from different shards (or runs of part of
+ * the suite) can be added one at a time.  Each recorded duration is a moving
+ * average, with the latest duration weighted equally with all previous ones
+ * together, so the history follows tests that get slower or faster without
+ * being thrown off by a single slow run.
+ */
+public class DurationHistoryUpdater {
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    private static final String HEADER = "# android-junit-report duration history: suite, case, milliseconds";
+    private static final String COMMENT_PREFIX = "#";
+
+    private static final String TAG_CASE = "testcase";
+    private static final String ATTRIBUTE_CLASS = "classname";
+    private static final String ATTRIBUTE_NAME = "name";
+    private static final String ATTRIBUTE_TIME = "time";
+
+    private final Map<String, Long> mDurations = new TreeMap<String, Long>();
+    private int mUpdated;
+
+    /**
+     * Loads an existing history, if the file exists.
+     *
+     * @param file the history file
+     * @throws IOException if the file exists but cannot be read
+     */
+    public void load(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING_UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(COMMENT_PREFIX)) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+                if (fields.length == 3) {
+                    try {
+                        mDurations.put(fields[0] + "\t" + fields[1], Long.parseLong(fields[2]));
+                    } catch (NumberFormatException e) {
+                        // Drop the line, it will be replaced when the test next runs.
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Updates the history with the durations of the cases in a report
+     * (compressed or not).
+     *
+     * @param report the report to read
+     * @throws IOException if the report cannot be read or is invalid
+     */
+    public void update(File report) throws IOException {
+        InputStream in = ReportFiles.open(report);
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(TAG_CASE)) {
+                        String className = reader.getAttributeValue(null, ATTRIBUTE_CLASS);
+                        String name = reader.getAttributeValue(null, ATTRIBUTE_NAME);
+                        String time = reader.getAttributeValue(null, ATTRIBUTE_TIME);
+                        if (className != null && name != null && time != null) {
+                            record(className, name, time);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid report '" + report + "': " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void record(String className, String name, String time) {
+        long millis;
+        try {
+            millis = Math.round(Double.parseDouble(time) * 1000);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        String key = className + "\t" + name;
+        Long previous = mDurations.get(key);
+        mDurations.put(key, previous == null ? millis : (previous + millis + 1) / 2);
+        mUpdated++;
+    }
+
+    /**
+     * Saves the history, replacing the file only once the new content is
+     * complete.
+     *
+     * @param file the history file
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), ENCODING_UTF_8));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, Long> entry: mDurations.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write('\t');
+                writer.write(Long.toString(entry.getValue()));
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Unable to replace '" + file + "'");
+        }
+    }
+
+    /**
+     * @return a one-line summary of the history and updates made
+     */
+    public String getSummary() {
+        return mDurations.size() + " test(s) in history, " + mUpdated + " duration(s) added";
+    }
+}
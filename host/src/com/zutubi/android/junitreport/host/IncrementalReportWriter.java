@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Builds a JUnit XML report one test at a time, keeping the file complete
+ * and well-formed after every test.  Each new test case overwrites the
+ * closing tags at the end of the file and then writes them again after
+ * itself, and the counts of the current suite are rewritten in a fixed-width
+ * space reserved in its start tag.  Thus a partial report can be read at any
+ * moment during a run, without the cost of rewriting the whole file.
+ * <p/>
+ * The time of a suite is the total time of its cases.
+ */
+public class IncrementalReportWriter {
+    private static final String ENCODING_UTF_8 = "utf-8";
+    private static final String TIMESTAMP_PATTERN = "yyyy-MM-dd'T'HH:mm:ss";
+
+    private static final String TAG_ERROR = "error";
+    private static final String TAG_FAILURE = "failure";
+
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<testsuites>\n";
+    private static final String SUITE_START = "<testsuite";
+    private static final String SUITE_END = "</testsuite>\n";
+    private static final String SUITES_END = "</testsuites>\n";
+    // wide enough for the largest possible counts and time
+    private static final int SUMMARY_WIDTH = 96;
+
+    private final RandomAccessFile mFile;
+    private final SimpleDateFormat mTimestampFormat = new SimpleDateFormat(TIMESTAMP_PATTERN, Locale.ENGLISH);
+    private long mTrailerOffset;
+    private String mCurrentSuite;
+    private long mSummaryOffset;
+    private int mSuiteTests;
+    private int mSuiteFailures;
+    private int mSuiteErrors;
+    private long mSuiteDuration;
+    private int mTotalTests;
+    private int mTotalFailures;
+    private int mTotalErrors;
+
+    /**
+     * Creates a writer for the given file, which is replaced by an empty
+     * report.
+     *
+     * @param file the report file to write
+     * @throws IOException if the file cannot be written
+     */
+    public IncrementalReportWriter(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        write(HEADER);
+        mTrailerOffset = mFile.getFilePointer();
+        write(SUITES_END);
+    }
+
+    /**
+     * Adds a test case to the report.  Cases of the same suite should be
+     * added consecutively, a new suite is started whenever the suite name
+     * changes.
+     *
+     * @param record the test to add
+     * @throws IOException on any error writing to the file
+     */
+    public void add(LiveRecord record) throws IOException {
+        mFile.seek(mTrailerOffset);
+        if (!record.getSuiteName().equals(mCurrentSuite)) {
+            if (mCurrentSuite != null) {
+                write(SUITE_END);
+            }
+            startSuite(record);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("<testcase classname=\"").append(escape(record.getSuiteName(), true));
+        builder.append("\" name=\"").append(escape(record.getCaseName(), true));
+        builder.append("\" time=\"").append(formatDuration(record.getDuration())).append('"');
+        if (record.getProblems().isEmpty()) {
+            builder.append(" />\n");
+        } else {
+            builder.append(">\n");
+            for (LiveRecord.Problem problem: record.getProblems()) {
+                String message = problem.getType() + ": " + (problem.getMessage().length() == 0 ? "<null>" : problem.getMessage());
+                builder.append('<').append(problem.getTag());
+                builder.append(" message=\"").append(escape(message, true));
+                builder.append("\" type=\"").append(escape(problem.getType(), true)).append("\">");
+                builder.append(escape(problem.getTrace(), false));
+                builder.append("</").append(problem.getTag()).append(">\n");
+            }
+            builder.append("</testcase>\n");
+        }
+        write(builder.toString());
+
+        mTrailerOffset = mFile.getFilePointer();
+        write(SUITE_END);
+        write(SUITES_END);
+        mFile.setLength(mFile.getFilePointer());
+
+        int failures = record.countProblems(TAG_FAILURE);
+        int errors = record.countProblems(TAG_ERROR);
+        mSuiteTests++;
+        mSuiteFailures += failures;
+        mSuiteErrors += errors;
+        mSuiteDuration += record.getDuration();
+        mTotalTests++;
+        mTotalFailures += failures;
+        mTotalErrors += errors;
+        writeSummary();
+    }
+
+    private void startSuite(LiveRecord record) throws IOException {
+        mCurrentSuite = record.getSuiteName();
+        mSuiteTests = 0;
+        mSuiteFailures = 0;
+        mSuiteErrors = 0;
+        mSuiteDuration = 0;
+
+        write(SUITE_START);
+        mSummaryOffset = mFile.getFilePointer();
+        write(pad(""));
+        write(" name=\"" + escape(mCurrentSuite, true) + "\" timestamp=\"" + mTimestampFormat.format(new Date(record.getTimestamp())) + "\">\n");
+    }
+
+    private void writeSummary() throws IOException {
+        long position = mFile.getFilePointer();
+        mFile.seek(mSummaryOffset);
+        write(pad(" tests=\"" + mSuiteTests + "\" failures=\"" + mSuiteFailures + "\" errors=\"" + mSuiteErrors + "\" time=\"" + formatDuration(mSuiteDuration) + "\""));
+        mFile.seek(position);
+    }
+
+    /**
+     * Closes the report file, which is left complete.
+     *
+     * @throws IOException on any error closing the file
+     */
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    /**
+     * @return a one line summary of the tests reported so far
+     */
+    public String getSummary() {
+        return mTotalTests + " test(s), " + mTotalFailures + " failure(s), " + mTotalErrors + " error(s)";
+    }
+
+    /**
+     * @return true if any test reported so far failed or had an error
+     */
+    public boolean hasProblems() {
+        return mTotalFailures + mTotalErrors > 0;
+    }
+
+    static String formatDuration(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e9);
+    }
+
+    private static String pad(String s) {
+        StringBuilder builder = new StringBuilder(SUMMARY_WIDTH);
+        builder.append(s);
+        while (builder.length() < SUMMARY_WIDTH) {
+            builder.append(' ');
+        }
+        return builder.toString();
+    }
+
+    private void write(String s) throws IOException {
+        mFile.write(s.getBytes(ENCODING_UTF_8));
+    }
+
+    static String escape(String s, boolean attribute) {
+        StringBuilder builder = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&':
+                    builder.append("&amp;");
+                    break;
+                case '<':
+                    builder.append("&lt;");
+                    break;
+                case '>':
+                    builder.append("&gt;");
+                    break;
+                case '"':
+                    builder.append(attribute ? "&quot;" : "\"");
+                    break;
+                case '\n':
+                case '\r':
+                case '\t':
+                    if (attribute) {
+                        builder.append("&#").append((int) c).append(';');
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+                default:
+                    if (c < 0x20 || c > 0xfffd) {
+                        builder.append('?');
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.toString();
+    }
+}
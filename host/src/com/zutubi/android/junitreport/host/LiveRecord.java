@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A per-test record streamed from the device by the runner's liveResults
+ * mode.  See LiveResultListener in the runner for a description of the
+ * record format.
+ */
+public class LiveRecord {
+    /**
+     * Key of records in instrumentation status output.
+     */
+    public static final String STATUS_KEY = "junitreport";
+    /**
+     * Status code of records in instrumentation status output.
+     */
+    public static final int STATUS_CODE = 10;
+
+    private static final String VERSION = "1";
+    private static final int FIXED_FIELDS = 6;
+    private static final int PROBLEM_FIELDS = 4;
+
+    private final String mSuiteName;
+    private final String mCaseName;
+    private final long mTimestamp;
+    private final long mDuration;
+    private final List<Problem> mProblems = new ArrayList<Problem>();
+
+    /**
+     * Creates a record for a test with no problems (yet).
+     *
+     * @param suiteName name of the suite (test class)
+     * @param caseName  name of the test case
+     * @param timestamp wall clock start time of the test, in milliseconds
+     * @param duration  duration of the test, in nanoseconds
+     */
+    public LiveRecord(String suiteName, String caseName, long timestamp, long duration) {
+        this.mSuiteName = suiteName;
+        this.mCaseName = caseName;
+        this.mTimestamp = timestamp;
+        this.mDuration = duration;
+    }
+
+    /**
+     * Parses a record.
+     *
+     * @param record the record text, with escapes
+     * @return the parsed record
+     * @throws IOException if the record is malformed or of an unknown version
+     */
+    public static LiveRecord parse(String record) throws IOException {
+        String[] fields = record.split("\t", -1);
+        if (fields.length < FIXED_FIELDS || !fields[0].equals(VERSION)) {
+            throw new IOException("Unrecognised live record: " + abbreviate(record));
+        }
+
+        try {
+            LiveRecord result = new LiveRecord(unescape(fields[1]), unescape(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+            int problemCount = Integer.parseInt(fields[5]);
+            if (fields.length != FIXED_FIELDS + problemCount * PROBLEM_FIELDS) {
+                throw new IOException("Wrong number of fields in live record: " + abbreviate(record));
+            }
+
+            for (int i = FIXED_FIELDS; i < fields.length; i += PROBLEM_FIELDS) {
+                result.addProblem(new Problem(fields[i], unescape(fields[i + 1]), unescape(fields[i + 2]), unescape(fields[i + 3])));
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number in live record: " + abbreviate(record));
+        }
+    }
+
+    /**
+     * @param problem a failure or error to add to this record
+     */
+    public void addProblem(Problem problem) {
+        mProblems.add(problem);
+    }
+
+    /**
+     * @return this record in its text form, with escapes
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(VERSION);
+        builder.append('\t').append(escape(mSuiteName));
+        builder.append('\t').append(escape(mCaseName));
+        builder.append('\t').append(mTimestamp);
+        builder.append('\t').append(mDuration);
+        builder.append('\t').append(mProblems.size());
+        for (Problem problem: mProblems) {
+            builder.append('\t').append(problem.getTag());
+            builder.append('\t').append(escape(problem.getType()));
+            builder.append('\t').append(escape(problem.getMessage()));
+            builder.append('\t').append(escape(problem.getTrace()));
+        }
+        return builder.toString();
+    }
+
+    public String getSuiteName() {
+        return mSuiteName;
+    }
+
+    public String getCaseName() {
+        return mCaseName;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public List<Problem> getProblems() {
+        return mProblems;
+    }
+
+    /**
+     * @param tag the tag to count, failure or error
+     * @return the number of problems in this record with the given tag
+     */
+    public int countProblems(String tag) {
+        int count = 0;
+        for (Problem problem: mProblems) {
+            if (problem.getTag().equals(tag)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String escape(String s) {
+        StringBuilder builder = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+
+        StringBuilder builder = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                switch (next) {
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    default:
+                        builder.append(next);
+                }
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String abbreviate(String record) {
+        return record.length() > 80 ? record.substring(0, 80) + "..." : record;
+    }
+
+    /**
+     * A failure or error in a record.
+     */
+    public static class Problem {
+        private final String mTag;
+        private final String mType;
+        private final String mMessage;
+        private final String mTrace;
+
+        /**
+         * @param tag     failure or error
+         * @param type    class name of the throwable
+         * @param message message of the throwable, empty if it had none
+         * @param trace   stack trace of the throwable
+         */
+        public Problem(String tag, String type, String message, String trace) {
+            this.mTag = tag;
+            this.mType = type;
+            this.mMessage = message;
+            this.mTrace = trace;
+        }
+
+        public String getTag() {
+            return mTag;
+        }
+
+        public String getType() {
+            return mType;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        public String getTrace() {
+            return mTrace;
+        }
+    }
+}
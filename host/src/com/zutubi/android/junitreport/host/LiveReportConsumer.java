@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+
+/**
+ * Consumes the output of am instrument -r for a run with liveResults
+ * enabled, adding each test record to an {@link IncrementalReportWriter} as
+ * it arrives and printing a line of progress for it.  Other output is
+ * ignored, so this works alongside the status reports of the standard
+ * instrumentation test runner.
+ */
+public class LiveReportConsumer {
+    private static final String PREFIX_STATUS = "INSTRUMENTATION_STATUS: " + LiveRecord.STATUS_KEY + "=";
+    private static final String PREFIX_CODE = "INSTRUMENTATION_CODE:";
+
+    private final IncrementalReportWriter mWriter;
+    private final PrintStream mProgress;
+
+    /**
+     * @param writer   writer to add records to
+     * @param progress stream to print progress to, may be null for none
+     */
+    public LiveReportConsumer(IncrementalReportWriter writer, PrintStream progress) {
+        this.mWriter = writer;
+        this.mProgress = progress;
+    }
+
+    /**
+     * Consumes instrumentation output until the run finishes or the output
+     * ends.
+     *
+     * @param in the instrumentation output
+     * @return true if the run finished, false if the output ended first (for
+     *         example because the instrumentation crashed)
+     * @throws IOException on any error reading the output or writing the
+     *         report
+     */
+    public boolean consume(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // adb may translate line endings to \r\n.
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+
+            if (line.startsWith(PREFIX_STATUS)) {
+                LiveRecord record = LiveRecord.parse(line.substring(PREFIX_STATUS.length()));
+                mWriter.add(record);
+                printProgress(record);
+            } else if (line.startsWith(PREFIX_CODE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void printProgress(LiveRecord record) {
+        if (mProgress != null) {
+            String status;
+            if (record.countProblems("error") > 0) {
+                status = "ERROR";
+            } else if (record.countProblems("failure") > 0) {
+                status = "FAIL ";
+            } else {
+                status = "PASS ";
+            }
+            mProgress.println(status + " " + record.getSuiteName() + "." + record.getCaseName() + " (" + IncrementalReportWriter.formatDuration(record.getDuration()) + "s)");
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A stand-in for a device running with liveResults enabled: replays the test
+ * cases of an existing JUnit XML report as the am instrument -r output that
+ * the device would produce for them.  This allows the live consumer to be
+ * exercised, and tools built on its output to be developed, without a device.
+ */
+public class LiveReportReplayer {
+    private static final String TIMESTAMP_PATTERN = "yyyy-MM-dd'T'HH:mm:ss";
+
+    private static final String TAG_SUITE = "testsuite";
+    private static final String TAG_CASE = "testcase";
+    private static final String TAG_ERROR = "error";
+    private static final String TAG_FAILURE = "failure";
+
+    private final PrintStream mOut;
+    private final long mDelayMillis;
+    private final SimpleDateFormat mTimestampFormat = new SimpleDateFormat(TIMESTAMP_PATTERN, Locale.ENGLISH);
+
+    /**
+     * @param out         stream to write instrumentation output to
+     * @param delayMillis time to wait before each record, to simulate tests
+     *                    running
+     */
+    public LiveReportReplayer(PrintStream out, long delayMillis) {
+        this.mOut = out;
+        this.mDelayMillis = delayMillis;
+    }
+
+    /**
+     * Replays all test cases in a report, followed by the end of the run.
+     *
+     * @param in stream to read the report from
+     * @throws IOException if the report cannot be parsed
+     */
+    public void replay(InputStream in) throws IOException {
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            try {
+                replay(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid report: " + e.getMessage(), e);
+        }
+
+        mOut.println("INSTRUMENTATION_CODE: -1");
+        mOut.flush();
+    }
+
+    private void replay(XMLStreamReader reader) throws XMLStreamException, IOException {
+        long suiteTimestamp = 0;
+        LiveRecord record = null;
+        String problemTag = null;
+        String problemType = null;
+        String problemMessage = null;
+        StringBuilder problemTrace = null;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String name = reader.getLocalName();
+                    if (name.equals(TAG_SUITE)) {
+                        suiteTimestamp = parseTimestamp(reader.getAttributeValue(null, "timestamp"));
+                    } else if (name.equals(TAG_CASE)) {
+                        record = new LiveRecord(reader.getAttributeValue(null, "classname"), reader.getAttributeValue(null, "name"),
+                                suiteTimestamp, parseDuration(reader.getAttributeValue(null, "time")));
+                    } else if (record != null && (name.equals(TAG_FAILURE) || name.equals(TAG_ERROR))) {
+                        problemTag = name;
+                        problemType = nonNull(reader.getAttributeValue(null, "type"));
+                        problemMessage = stripType(nonNull(reader.getAttributeValue(null, "message")), problemType);
+                        problemTrace = new StringBuilder();
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (problemTrace != null) {
+                        problemTrace.append(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (problemTrace != null) {
+                        record.addProblem(new LiveRecord.Problem(problemTag, problemType, problemMessage, problemTrace.toString()));
+                        problemTrace = null;
+                    } else if (record != null && reader.getLocalName().equals(TAG_CASE)) {
+                        emit(record);
+                        record = null;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void emit(LiveRecord record) throws IOException {
+        if (mDelayMillis > 0) {
+            try {
+                Thread.sleep(mDelayMillis);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+
+        mOut.println("INSTRUMENTATION_STATUS: " + LiveRecord.STATUS_KEY + "=" + record.format());
+        mOut.println("INSTRUMENTATION_STATUS_CODE: " + LiveRecord.STATUS_CODE);
+        mOut.flush();
+    }
+
+    private long parseTimestamp(String value) {
+        if (value != null) {
+            try {
+                return mTimestampFormat.parse(value).getTime();
+            } catch (ParseException e) {
+                // Fall through to the default.
+            }
+        }
+        return 0;
+    }
+
+    private static long parseDuration(String value) {
+        if (value != null) {
+            try {
+                return Math.round(Double.parseDouble(value) * 1e9);
+            } catch (NumberFormatException e) {
+                // Fall through to the default.
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Messages in reports are prefixed with the exception type, which is not
+     * part of the message in records.
+     */
+    private static String stripType(String message, String type) {
+        String prefix = type + ": ";
+        if (message.startsWith(prefix)) {
+            message = message.substring(prefix.length());
+        }
+        return message.equals("<null>") ? "" : message;
+    }
+
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Validates that a report (compressed or not) is complete, well-formed XML
+ * with the expected structure, and counts what it contains.  Catches reports
+ * truncated by a crash or an incomplete pull from the device.
+ */
+public class ReportChecker {
+    private static final String TAG_SUITES = "testsuites";
+    private static final String TAG_SUITE = "testsuite";
+    private static final String TAG_CASE = "testcase";
+    private static final String TAG_ERROR = "error";
+    private static final String TAG_FAILURE = "failure";
+
+    private int mSuites;
+    private int mCases;
+    private int mFailures;
+    private int mErrors;
+
+    /**
+     * Checks a report file, adding what it contains to the running totals.
+     *
+     * @param file the report to check
+     * @throws IOException if the file cannot be read, or is not a valid
+     *         report
+     */
+    public void check(File file) throws IOException {
+        InputStream in = ReportFiles.open(file);
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            try {
+                check(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid report '" + file + "': " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void check(XMLStreamReader reader) throws XMLStreamException {
+        boolean root = true;
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (root) {
+                    if (!name.equals(TAG_SUITES) && !name.equals(TAG_SUITE)) {
+                        throw new XMLStreamException("Unexpected root element '" + name + "'", reader.getLocation());
+                    }
+                    root = false;
+                }
+
+                if (name.equals(TAG_SUITE)) {
+                    mSuites++;
+                } else if (name.equals(TAG_CASE)) {
+                    mCases++;
+                } else if (name.equals(TAG_FAILURE)) {
+                    mFailures++;
+                } else if (name.equals(TAG_ERROR)) {
+                    mErrors++;
+                }
+            }
+        }
+
+        if (root) {
+            throw new XMLStreamException("No root element");
+        }
+    }
+
+    /**
+     * @return a one-line summary of the totals of all checked reports
+     */
+    public String getSummary() {
+        return mSuites + " suite(s), " + mCases + " case(s), " + mFailures + " failure(s), " + mErrors + " error(s)";
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Expands a report written with deduplicated stack traces back into the
+ * standard JUnit XML format.  Each failure or error that refers to an earlier
+ * trace via a traceRef attribute has the text of that trace filled in, and
+ * the deduplication attributes are removed.  The report is streamed, only the
+ * distinct traces are held in memory.
+ */
+public class ReportExpander {
+    private static final String ENCODING_UTF_8 = "utf-8";
+
+    private static final String TAG_ERROR = "error";
+    private static final String TAG_FAILURE = "failure";
+
+    private static final String ATTRIBUTE_TRACE_ID = "traceId";
+    private static final String ATTRIBUTE_TRACE_REF = "traceRef";
+    private static final String ATTRIBUTE_OCCURRENCE = "occurrence";
+
+    private final Map<String, String> mTraces = new HashMap<String, String>();
+
+    /**
+     * Expands a single report.
+     *
+     * @param in  stream to read the deduplicated report from
+     * @param out stream to write the expanded report to
+     * @throws IOException if the input cannot be parsed or the output cannot
+     *         be written
+     */
+    public void expand(InputStream in, OutputStream out) throws IOException {
+        mTraces.clear();
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, ENCODING_UTF_8);
+            try {
+                writer.writeStartDocument(ENCODING_UTF_8, "1.0");
+                copy(reader, writer);
+            } finally {
+                reader.close();
+                writer.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid report: " + e.getMessage(), e);
+        }
+    }
+
+    private void copy(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException, IOException {
+        String definingId = null;
+        StringBuilder definingText = null;
+        String referencedTrace = null;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String name = reader.getLocalName();
+                    writer.writeStartElement(name);
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        String attributeName = reader.getAttributeLocalName(i);
+                        String value = reader.getAttributeValue(i);
+                        if (isProblem(name) && attributeName.equals(ATTRIBUTE_TRACE_ID)) {
+                            definingId = value;
+                            definingText = new StringBuilder();
+                        } else if (isProblem(name) && attributeName.equals(ATTRIBUTE_TRACE_REF)) {
+                            referencedTrace = mTraces.get(value);
+                            if (referencedTrace == null) {
+                                throw new IOException("Reference to unknown trace '" + value + "' at line " + reader.getLocation().getLineNumber());
+                            }
+                        } else if (!(isProblem(name) && attributeName.equals(ATTRIBUTE_OCCURRENCE))) {
+                            writer.writeAttribute(attributeName, value);
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (definingText != null) {
+                        definingText.append(reader.getText());
+                    }
+                    writer.writeCharacters(reader.getText());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (definingText != null) {
+                        mTraces.put(definingId, definingText.toString());
+                        definingId = null;
+                        definingText = null;
+                    } else if (referencedTrace != null) {
+                        writer.writeCharacters(referencedTrace);
+                        referencedTrace = null;
+                    }
+                    writer.writeEndElement();
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    writer.writeEndDocument();
+                    break;
+                default:
+                    break;
+            }
+        }
+        writer.flush();
+    }
+
+    private static boolean isProblem(String name) {
+        return name.equals(TAG_FAILURE) || name.equals(TAG_ERROR);
+    }
+}
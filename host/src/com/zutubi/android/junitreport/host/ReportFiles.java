@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Utilities for reading report files pulled from a device.
+ */
+public final class ReportFiles {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+
+    /**
+     * Do not instantiate.
+     */
+    private ReportFiles() {
+    }
+
+    /**
+     * Opens a report file for reading, transparently decompressing it if it
+     * was written with compression enabled.  Compressed files are detected by
+     * their content rather than their name.
+     *
+     * @param file the file to open
+     * @return a buffered stream of the uncompressed report content
+     * @throws IOException if the file cannot be opened
+     */
+    public static InputStream open(File file) throws IOException {
+        return open(file, false);
+    }
+
+    /**
+     * Opens a report file for reading, as {@link #open(File)}, optionally
+     * treating a compressed file that was cut short as ending where it was
+     * cut rather than failing.  This allows the content before the cut to be
+     * recovered.
+     *
+     * @param file             the file to open
+     * @param tolerateCutShort if true, reading a compressed file that was
+     *                         cut short ends cleanly at the cut
+     * @return a buffered stream of the uncompressed report content
+     * @throws IOException if the file cannot be opened
+     */
+    static InputStream open(File file, boolean tolerateCutShort) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            in.mark(2);
+            int b0 = in.read();
+            int b1 = in.read();
+            in.reset();
+            if (b0 == GZIP_MAGIC_0 && b1 == GZIP_MAGIC_1) {
+                InputStream gzipIn = new GZIPInputStream(in, BUFFER_SIZE);
+                if (tolerateCutShort) {
+                    gzipIn = new CutShortInputStream(gzipIn);
+                }
+                return new BufferedInputStream(gzipIn, BUFFER_SIZE);
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies all remaining content of a stream to another.
+     *
+     * @param in  stream to copy from
+     * @param out stream to copy to
+     * @return the number of bytes copied
+     * @throws IOException on any error reading or writing
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Treats the end of a compressed stream that was cut short as the end of
+     * the stream, so that the data before the cut is not lost.
+     */
+    private static class CutShortInputStream extends FilterInputStream {
+        CutShortInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (EOFException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (EOFException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            try {
+                return super.available();
+            } catch (EOFException e) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,703 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Merges many reports (compressed or not) into a single &lt;testsuites&gt;
+ * document, or into one file per suite, computing totals and finding tests
+ * that were run more than once (duplicates) and those with different
+ * outcomes in different runs, or that only passed when retried (flaky
+ * tests).
+ * <p/>
+ * Reports are stream-parsed on a pool of threads, one report per task.  Each
+ * suite is copied to a temporary file as it is parsed, with its counts
+ * recalculated from its cases and patched into space reserved in its start
+ * tag.  The temporary files are then appended to the output in the order
+ * the reports were given, so the result does not depend on which thread
+ * finished first.  Memory use is bounded by the number of threads rather
+ * than the size of the reports; only one small entry per distinct test is
+ * kept, for duplicate and flaky detection.
+ * <p/>
+ * Ids of deduplicated traces are prefixed with the index of their report,
+ * so they stay unique in the merged output and the expand command still
+ * applies.
+ */
+public class ReportMerger {
+    private static final String ENCODING_UTF_8 = "utf-8";
+    private static final String EXTENSION_XML = ".xml";
+    private static final String EXTENSION_XML_GZ = ".xml.gz";
+
+    private static final String HEADER_START = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<testsuites";
+    private static final String HEADER_END = ">\n";
+    private static final String TRAILER = "</testsuites>\n";
+
+    // wide enough for the largest possible counts and time
+    private static final int SUMMARY_WIDTH = 128;
+
+    private static final String TAG_SUITE = "testsuite";
+    private static final String TAG_CASE = "testcase";
+    private static final String TAG_ERROR = "error";
+    private static final String TAG_FAILURE = "failure";
+    private static final String TAG_SKIPPED = "skipped";
+    private static final String TAG_FLAKY_ERROR = "flakyError";
+    private static final String TAG_FLAKY_FAILURE = "flakyFailure";
+
+    private static final String ATTRIBUTE_NAME = "name";
+    private static final String ATTRIBUTE_CLASS = "classname";
+    private static final String ATTRIBUTE_TIME = "time";
+    private static final String ATTRIBUTE_TESTS = "tests";
+    private static final String ATTRIBUTE_FAILURES = "failures";
+    private static final String ATTRIBUTE_ERRORS = "errors";
+    private static final String ATTRIBUTE_SKIPPED = "skipped";
+    private static final String ATTRIBUTE_TRACE_ID = "traceId";
+    private static final String ATTRIBUTE_TRACE_REF = "traceRef";
+
+    private static final int OUTCOME_RUNS = 0;
+    private static final int OUTCOME_PASSED = 1;
+    private static final int OUTCOME_FAILED = 2;
+
+    private final int mThreads;
+    // outcomes of each distinct test, guarded by itself
+    private final Map<String, int[]> mOutcomes = new HashMap<String, int[]>();
+    private final Counts mTotals = new Counts();
+    private int mFiles;
+
+    /**
+     * Creates a merger.
+     *
+     * @param threads number of reports to parse at once
+     */
+    public ReportMerger(int threads) {
+        this.mThreads = threads;
+    }
+
+    /**
+     * Expands a list of paths into the reports to merge.  Files are taken
+     * as given, directories are searched recursively for files ending in
+     * .xml or .xml.gz, in name order.
+     *
+     * @param paths the paths to expand
+     * @return all report files found
+     * @throws IOException if a path does not exist
+     */
+    public static List<File> findReports(List<String> paths) throws IOException {
+        List<File> reports = new ArrayList<File>();
+        for (String path: paths) {
+            File file = new File(path);
+            if (file.isDirectory()) {
+                addReports(file, reports);
+            } else if (file.isFile()) {
+                reports.add(file);
+            } else {
+                throw new IOException("Report '" + path + "' does not exist");
+            }
+        }
+        return reports;
+    }
+
+    private static void addReports(File dir, List<File> reports) {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+
+        Arrays.sort(names);
+        for (String name: names) {
+            File file = new File(dir, name);
+            if (file.isDirectory()) {
+                addReports(file, reports);
+            } else if (name.endsWith(EXTENSION_XML) || name.endsWith(EXTENSION_XML_GZ)) {
+                reports.add(file);
+            }
+        }
+    }
+
+    /**
+     * Merges reports.
+     *
+     * @param reports the reports to merge
+     * @param out     the file to write the merged report to or, if split is
+     *                true, the directory to write a file per suite to
+     * @param split   if true, write a file per suite, named after the
+     *                suite, holding every run of that suite
+     * @throws IOException if a report cannot be read or is invalid, or on
+     *         any error writing
+     */
+    public void merge(List<File> reports, File out, boolean split) throws IOException {
+        if (split && !out.isDirectory() && !out.mkdirs()) {
+            throw new IOException("Cannot create directory '" + out + "'");
+        }
+
+        File tempDir = createTempDir(split ? out : out.getAbsoluteFile().getParentFile());
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            List<Future<List<SuiteChunk>>> futures = new ArrayList<Future<List<SuiteChunk>>>(reports.size());
+            for (int i = 0; i < reports.size(); i++) {
+                futures.add(executor.submit(new Transcoder(reports.get(i), i, tempDir, split)));
+            }
+
+            MergedFile merged = split ? null : new MergedFile(out);
+            Map<String, MergedFile> suiteFiles = new LinkedHashMap<String, MergedFile>();
+            Set<String> suiteFileNames = new HashSet<String>();
+            try {
+                for (Future<List<SuiteChunk>> future: futures) {
+                    File previousFile = null;
+                    for (SuiteChunk chunk: getResult(future)) {
+                        if (split) {
+                            MergedFile suiteFile = suiteFiles.get(chunk.mName);
+                            if (suiteFile == null) {
+                                suiteFile = new MergedFile(new File(out, suiteFileName(chunk.mName, suiteFileNames)));
+                                suiteFiles.put(chunk.mName, suiteFile);
+                            }
+                            suiteFile.append(chunk.mFile, chunk.mCounts);
+                            suiteFile.release();
+                            chunk.mFile.delete();
+                        } else {
+                            // All suites of a report share one file.
+                            if (!chunk.mFile.equals(previousFile)) {
+                                merged.append(chunk.mFile, chunk.mCounts);
+                                chunk.mFile.delete();
+                            } else {
+                                merged.addCounts(chunk.mCounts);
+                            }
+                            previousFile = chunk.mFile;
+                        }
+                        mTotals.add(chunk.mCounts);
+                        mTotals.mSuites++;
+                    }
+                    mFiles++;
+                }
+
+                if (merged != null) {
+                    merged.finish();
+                }
+                for (MergedFile suiteFile: suiteFiles.values()) {
+                    suiteFile.finish();
+                }
+            } finally {
+                if (merged != null) {
+                    merged.release();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            deleteTempDir(tempDir);
+        }
+    }
+
+    private static List<SuiteChunk> getResult(Future<List<SuiteChunk>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private static String suiteFileName(String suiteName, Set<String> usedNames) {
+        StringBuilder builder = new StringBuilder(suiteName.length());
+        for (int i = 0; i < suiteName.length(); i++) {
+            char c = suiteName.charAt(i);
+            builder.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_' || c == '$' ? c : '_');
+        }
+
+        // Distinct suites may have the same name once sanitized.
+        String base = builder.length() == 0 ? "suite" : builder.toString();
+        String name = base + EXTENSION_XML;
+        for (int i = 2; !usedNames.add(name.toLowerCase(Locale.US)); i++) {
+            name = base + "-" + i + EXTENSION_XML;
+        }
+        return name;
+    }
+
+    private static File createTempDir(File parent) throws IOException {
+        File dir = File.createTempFile(".merge-", "", parent);
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create temporary directory '" + dir + "'");
+        }
+        return dir;
+    }
+
+    private static void deleteTempDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private void recordOutcome(String key, boolean failed, boolean flaky) {
+        synchronized (mOutcomes) {
+            int[] outcome = mOutcomes.get(key);
+            if (outcome == null) {
+                outcome = new int[3];
+                mOutcomes.put(key, outcome);
+            }
+            outcome[OUTCOME_RUNS]++;
+            outcome[failed ? OUTCOME_FAILED : OUTCOME_PASSED]++;
+            if (flaky) {
+                // Passed on retry after failing within the run.
+                outcome[OUTCOME_FAILED]++;
+            }
+        }
+    }
+
+    /**
+     * @return a one-line summary of the merged reports
+     */
+    public String getSummary() {
+        return mFiles + " report(s), " + mTotals.mSuites + " suite(s), " + mTotals.mTests + " test(s), " + mTotals.mFailures + " failure(s), " +
+                mTotals.mErrors + " error(s), " + mTotals.mSkipped + " skipped, time " + formatTime(mTotals.mTime);
+    }
+
+    /**
+     * @return descriptions of the tests that were run more than once, in
+     *         name order
+     */
+    public List<String> getDuplicates() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, int[]> entry: sortedOutcomes().entrySet()) {
+            int[] outcome = entry.getValue();
+            if (outcome[OUTCOME_RUNS] > 1) {
+                result.add(entry.getKey() + " (" + outcome[OUTCOME_RUNS] + " runs)");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return descriptions of the tests that both passed and failed in
+     *         different runs, or failed before passing on retry within a
+     *         run, in name order
+     */
+    public List<String> getFlakyTests() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, int[]> entry: sortedOutcomes().entrySet()) {
+            int[] outcome = entry.getValue();
+            if (outcome[OUTCOME_PASSED] > 0 && outcome[OUTCOME_FAILED] > 0) {
+                result.add(entry.getKey() + " (passed " + outcome[OUTCOME_PASSED] + ", failed " + outcome[OUTCOME_FAILED] + ")");
+            }
+        }
+        return result;
+    }
+
+    private Map<String, int[]> sortedOutcomes() {
+        synchronized (mOutcomes) {
+            return new TreeMap<String, int[]>(mOutcomes);
+        }
+    }
+
+    private static String pad() {
+        StringBuilder builder = new StringBuilder(SUMMARY_WIDTH);
+        while (builder.length() < SUMMARY_WIDTH) {
+            builder.append(' ');
+        }
+        return builder.toString();
+    }
+
+    private static String formatTime(double seconds) {
+        return String.format(Locale.US, "%.3f", seconds);
+    }
+
+    /**
+     * Counts of tests and their outcomes.
+     */
+    private static final class Counts {
+        private int mSuites;
+        private int mTests;
+        private int mFailures;
+        private int mErrors;
+        private int mSkipped;
+        private double mTime;
+
+        void add(Counts counts) {
+            mTests += counts.mTests;
+            mFailures += counts.mFailures;
+            mErrors += counts.mErrors;
+            mSkipped += counts.mSkipped;
+            mTime += counts.mTime;
+        }
+
+        String format() {
+            return " " + ATTRIBUTE_TESTS + "=\"" + mTests + "\" " + ATTRIBUTE_FAILURES + "=\"" + mFailures + "\" " + ATTRIBUTE_ERRORS + "=\"" + mErrors +
+                    "\" " + ATTRIBUTE_SKIPPED + "=\"" + mSkipped + "\" " + ATTRIBUTE_TIME + "=\"" + formatTime(mTime) + "\"";
+        }
+    }
+
+    /**
+     * A suite copied from a report into a temporary file.
+     */
+    private static final class SuiteChunk {
+        private final String mName;
+        private final File mFile;
+        private long mSlotOffset;
+        private final Counts mCounts = new Counts();
+
+        SuiteChunk(String name, File file, long offset) {
+            this.mName = name == null ? "" : name;
+            this.mFile = file;
+            this.mSlotOffset = offset;
+        }
+    }
+
+    /**
+     * Passes output through, counting the bytes written.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        @Override
+        public void close() {
+            // The underlying stream is closed by its owner.
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
+    /**
+     * Copies the suites of one report into temporary files.
+     */
+    private final class Transcoder implements Callable<List<SuiteChunk>> {
+        private final File mReport;
+        private final String mTracePrefix;
+        private final File mTempDir;
+        private final boolean mSplit;
+        private final XMLOutputFactory mOutputFactory = XMLOutputFactory.newInstance();
+
+        Transcoder(File report, int index, File tempDir, boolean split) {
+            this.mReport = report;
+            this.mTracePrefix = index + "-";
+            this.mTempDir = tempDir;
+            this.mSplit = split;
+        }
+
+        @Override
+        public List<SuiteChunk> call() throws IOException {
+            List<SuiteChunk> chunks = new ArrayList<SuiteChunk>();
+            InputStream in = ReportFiles.open(mReport);
+            // Without splitting, suites are written to a single file per
+            // report, tracked by its length so far.
+            File reportFile = null;
+            OutputStream out = null;
+            long offset = 0;
+            try {
+                XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(TAG_SUITE)) {
+                            if (out == null) {
+                                reportFile = File.createTempFile("suite-", ".part", mTempDir);
+                                out = new BufferedOutputStream(new FileOutputStream(reportFile));
+                                offset = 0;
+                            }
+
+                            SuiteChunk chunk = new SuiteChunk(reader.getAttributeValue(null, ATTRIBUTE_NAME), reportFile, offset);
+                            offset += copySuite(reader, out, chunk);
+                            chunks.add(chunk);
+                            if (mSplit) {
+                                out.close();
+                                out = null;
+                            }
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Invalid report '" + mReport + "': " + e.getMessage(), e);
+            } finally {
+                if (out != null) {
+                    out.close();
+                }
+                in.close();
+            }
+
+            patchCounts(chunks);
+            return chunks;
+        }
+
+        /**
+         * Writes the counts of suites, now they are known, into the space
+         * reserved in their start tags.
+         */
+        private void patchCounts(List<SuiteChunk> chunks) throws IOException {
+            RandomAccessFile file = null;
+            try {
+                for (SuiteChunk chunk: chunks) {
+                    if (file == null || mSplit) {
+                        if (file != null) {
+                            file.close();
+                        }
+                        file = new RandomAccessFile(chunk.mFile, "rw");
+                    }
+                    file.seek(chunk.mSlotOffset);
+                    file.write(chunk.mCounts.format().getBytes(ENCODING_UTF_8));
+                }
+            } finally {
+                if (file != null) {
+                    file.close();
+                }
+            }
+        }
+
+        /**
+         * Copies a suite, counting its cases.
+         *
+         * @return the number of bytes written
+         */
+        private long copySuite(XMLStreamReader reader, OutputStream out, SuiteChunk chunk) throws IOException, XMLStreamException {
+            CountingOutputStream countingOut = new CountingOutputStream(out);
+            // The start tag is written by hand, to reserve space for the
+            // counts which are only known at the end of the suite.
+            StringBuilder startTag = new StringBuilder("<" + TAG_SUITE);
+            int slotOffset = startTag.length();
+            startTag.append(pad());
+            String time = null;
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                String attributeName = reader.getAttributeLocalName(i);
+                if (attributeName.equals(ATTRIBUTE_TIME)) {
+                    time = reader.getAttributeValue(i);
+                } else if (!isSummaryAttribute(attributeName)) {
+                    startTag.append(' ').append(attributeName).append("=\"").append(IncrementalReportWriter.escape(reader.getAttributeValue(i), true)).append('"');
+                }
+            }
+            startTag.append('>');
+            countingOut.write(startTag.toString().getBytes(ENCODING_UTF_8));
+
+            XMLStreamWriter writer = mOutputFactory.createXMLStreamWriter(countingOut, ENCODING_UTF_8);
+            double caseTime = copyContent(reader, writer, chunk.mName, chunk.mCounts);
+            writer.flush();
+            writer.close();
+            countingOut.write(("</" + TAG_SUITE + ">\n").getBytes(ENCODING_UTF_8));
+            chunk.mCounts.mTime = parseTime(time, caseTime);
+            chunk.mSlotOffset += slotOffset;
+            return countingOut.getCount();
+        }
+
+        /**
+         * Copies the content of a suite, up to and including its end tag
+         * in the reader (but not the writer), and counts its cases.
+         *
+         * @return the total time of the cases
+         */
+        private double copyContent(XMLStreamReader reader, XMLStreamWriter writer, String suiteName, Counts counts) throws XMLStreamException {
+            int depth = 0;
+            double caseTime = 0;
+            String caseKey = null;
+            boolean caseFailed = false;
+            boolean caseFlaky = false;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String name = reader.getLocalName();
+                        if (depth == 0 && name.equals(TAG_CASE)) {
+                            counts.mTests++;
+                            String className = reader.getAttributeValue(null, ATTRIBUTE_CLASS);
+                            caseKey = (className == null ? suiteName : className) + "." + reader.getAttributeValue(null, ATTRIBUTE_NAME);
+                            caseFailed = false;
+                            caseFlaky = false;
+                            caseTime += parseTime(reader.getAttributeValue(null, ATTRIBUTE_TIME), 0);
+                        } else if (depth == 1 && caseKey != null) {
+                            if (name.equals(TAG_FAILURE)) {
+                                counts.mFailures++;
+                                caseFailed = true;
+                            } else if (name.equals(TAG_ERROR)) {
+                                counts.mErrors++;
+                                caseFailed = true;
+                            } else if (name.equals(TAG_SKIPPED)) {
+                                counts.mSkipped++;
+                                caseKey = null;
+                            } else if (name.equals(TAG_FLAKY_FAILURE) || name.equals(TAG_FLAKY_ERROR)) {
+                                caseFlaky = true;
+                            }
+                        }
+
+                        writer.writeStartElement(name);
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            String attributeName = reader.getAttributeLocalName(i);
+                            String value = reader.getAttributeValue(i);
+                            if (attributeName.equals(ATTRIBUTE_TRACE_ID) || attributeName.equals(ATTRIBUTE_TRACE_REF)) {
+                                value = mTracePrefix + value;
+                            }
+                            writer.writeAttribute(attributeName, value);
+                        }
+                        depth++;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        writer.writeCharacters(reader.getText());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == 0) {
+                            return caseTime;
+                        }
+
+                        writer.writeEndElement();
+                        depth--;
+                        if (depth == 0 && reader.getLocalName().equals(TAG_CASE)) {
+                            if (caseKey != null) {
+                                recordOutcome(caseKey, caseFailed, caseFlaky);
+                            }
+                            caseKey = null;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            throw new XMLStreamException("Unexpected end of report in suite");
+        }
+    }
+
+    private static boolean isSummaryAttribute(String name) {
+        return name.equals(ATTRIBUTE_TESTS) || name.equals(ATTRIBUTE_FAILURES) || name.equals(ATTRIBUTE_ERRORS) ||
+                name.equals(ATTRIBUTE_SKIPPED) || name.equals(ATTRIBUTE_TIME);
+    }
+
+    private static double parseTime(String time, double defaultTime) {
+        if (time != null) {
+            try {
+                return Double.parseDouble(time);
+            } catch (NumberFormatException e) {
+                // Fall through to the default.
+            }
+        }
+        return defaultTime;
+    }
+
+    /**
+     * An output file of merged suites, with totals patched into space
+     * reserved in its root start tag once all suites are appended.
+     */
+    private static final class MergedFile {
+        private final File mFile;
+        private final Counts mCounts = new Counts();
+        private OutputStream mOut;
+
+        MergedFile(File file) throws IOException {
+            this.mFile = file;
+            mOut = new BufferedOutputStream(new FileOutputStream(file));
+            mOut.write((HEADER_START + pad() + HEADER_END).getBytes(ENCODING_UTF_8));
+        }
+
+        void append(File file, Counts counts) throws IOException {
+            if (mOut == null) {
+                mOut = new BufferedOutputStream(new FileOutputStream(mFile, true));
+            }
+
+            InputStream in = new FileInputStream(file);
+            try {
+                ReportFiles.copy(in, mOut);
+            } finally {
+                in.close();
+            }
+            mCounts.add(counts);
+        }
+
+        void addCounts(Counts counts) {
+            mCounts.add(counts);
+        }
+
+        void release() throws IOException {
+            if (mOut != null) {
+                mOut.close();
+                mOut = null;
+            }
+        }
+
+        void finish() throws IOException {
+            if (mOut == null) {
+                mOut = new BufferedOutputStream(new FileOutputStream(mFile, true));
+            }
+            mOut.write(TRAILER.getBytes(ENCODING_UTF_8));
+            release();
+
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.seek(HEADER_START.length());
+                file.write(mCounts.format().getBytes(ENCODING_UTF_8));
+            } finally {
+                file.close();
+            }
+        }
+    }
+}
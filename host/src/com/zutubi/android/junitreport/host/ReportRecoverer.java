@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Recovers a complete JUnit XML report after the process under test crashed
+ * or was killed.  Two sources are supported:
+ * <ul>
+ *   <li>a journal written with the journal or resume arguments, which is
+ *       turned into a report including the tests of every run in the
+ *       journal.  Tests that started but did not finish in a run are
+ *       reported as errors.</li>
+ *   <li>an XML report (compressed or not) that was cut short, which is
+ *       copied up to the point it was cut, with open elements closed and
+ *       suite summaries recalculated from the cases that remain.  A case
+ *       cut short is reported as an error.</li>
+ * </ul>
+ * The source type is detected from its content.
+ */
+public class ReportRecoverer {
+    private static final String ENCODING_UTF_8 = "utf-8";
+
+    private static final String LINE_RUN = "R";
+    private static final String LINE_START = "S";
+
+    private static final String TAG_SUITE = "testsuite";
+    private static final String TAG_CASE = "testcase";
+    private static final String TAG_ERROR = "error";
+    private static final String TAG_FAILURE = "failure";
+
+    private static final String ATTRIBUTE_TESTS = "tests";
+    private static final String ATTRIBUTE_FAILURES = "failures";
+    private static final String ATTRIBUTE_ERRORS = "errors";
+    private static final String ATTRIBUTE_TIME = "time";
+    private static final String ATTRIBUTE_MESSAGE = "message";
+    private static final String ATTRIBUTE_TYPE = "type";
+
+    /**
+     * Type of the error reported for a test that did not complete.
+     */
+    static final String INCOMPLETE_TYPE = "TestIncomplete";
+    /**
+     * Message of the error reported for a test that did not complete.
+     */
+    static final String INCOMPLETE_MESSAGE = "Test did not complete: the process under test crashed or was killed";
+
+    private int mCases;
+    private int mIncomplete;
+    private int mSkippedLines;
+    private boolean mTruncated;
+
+    /**
+     * Recovers a report from a journal or truncated report.
+     *
+     * @param in  the journal or report to recover from
+     * @param out the file to write the recovered report to
+     * @throws IOException if the input cannot be read or the output cannot
+     *         be written
+     */
+    public void recover(File in, File out) throws IOException {
+        PushbackInputStream input = new PushbackInputStream(ReportFiles.open(in, true));
+        try {
+            int first = input.read();
+            if (first < 0) {
+                throw new IOException("Unable to recover report '" + in + "': it is empty");
+            }
+
+            input.unread(first);
+            if (first == '<') {
+                recoverReport(in, out);
+            } else {
+                recoverJournal(input, out);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void recoverJournal(InputStream in, File out) throws IOException {
+        Map<String, LiveRecord> started = new LinkedHashMap<String, LiveRecord>();
+        IncrementalReportWriter writer = new IncrementalReportWriter(out);
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, ENCODING_UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields[0].equals(LINE_RUN) && fields.length == 2) {
+                    addIncomplete(writer, started);
+                } else if (fields[0].equals(LINE_START) && fields.length == 4) {
+                    try {
+                        LiveRecord record = new LiveRecord(LiveRecord.unescape(fields[1]), LiveRecord.unescape(fields[2]), Long.parseLong(fields[3]), 0);
+                        started.put(key(record), record);
+                    } catch (NumberFormatException e) {
+                        mSkippedLines++;
+                    }
+                } else {
+                    LiveRecord record;
+                    try {
+                        record = LiveRecord.parse(line);
+                    } catch (IOException e) {
+                        // Most likely the line being written when the process died.
+                        mSkippedLines++;
+                        continue;
+                    }
+                    started.remove(key(record));
+                    writer.add(record);
+                    mCases++;
+                }
+            }
+            addIncomplete(writer, started);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void addIncomplete(IncrementalReportWriter writer, Map<String, LiveRecord> started) throws IOException {
+        Iterator<LiveRecord> it = started.values().iterator();
+        while (it.hasNext()) {
+            LiveRecord record = it.next();
+            record.addProblem(new LiveRecord.Problem(TAG_ERROR, INCOMPLETE_TYPE, INCOMPLETE_MESSAGE, ""));
+            writer.add(record);
+            mCases++;
+            mIncomplete++;
+            it.remove();
+        }
+    }
+
+    private static String key(LiveRecord record) {
+        return record.getSuiteName() + "#" + record.getCaseName();
+    }
+
+    private void recoverReport(File in, File out) throws IOException {
+        // First pass: find how far the report can be read, and the
+        // summaries of the suites up to that point.
+        List<SuiteSummary> summaries = new ArrayList<SuiteSummary>();
+        int events = 0;
+        boolean root = false;
+        InputStream input = ReportFiles.open(in, true);
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(input);
+            SuiteSummary suite = null;
+            String caseTime = null;
+            boolean caseOpen = false;
+            boolean caseHasProblem = false;
+            try {
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    events++;
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        root = true;
+                        if (name.equals(TAG_SUITE)) {
+                            suite = new SuiteSummary();
+                            summaries.add(suite);
+                        } else if (name.equals(TAG_CASE) && suite != null) {
+                            suite.mTests++;
+                            caseTime = reader.getAttributeValue(null, ATTRIBUTE_TIME);
+                            caseOpen = true;
+                            caseHasProblem = false;
+                        } else if (name.equals(TAG_FAILURE) && suite != null) {
+                            suite.mFailures++;
+                            caseHasProblem = true;
+                        } else if (name.equals(TAG_ERROR) && suite != null) {
+                            suite.mErrors++;
+                            caseHasProblem = true;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals(TAG_CASE) && suite != null) {
+                        suite.addTime(caseTime);
+                        caseOpen = false;
+                    }
+                }
+            } catch (XMLStreamException e) {
+                // The report was cut short here.
+                mTruncated = true;
+                if (caseOpen && !caseHasProblem) {
+                    suite.mErrors++;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to read report '" + in + "': " + e.getMessage(), e);
+        } finally {
+            input.close();
+        }
+
+        if (!root) {
+            throw new IOException("Unable to recover report '" + in + "': it was cut short before the root element");
+        }
+
+        // Second pass: copy what can be read, closing it off.
+        input = ReportFiles.open(in, true);
+        try {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(out));
+            try {
+                XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(input);
+                XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(output, ENCODING_UTF_8);
+                try {
+                    writer.writeStartDocument(ENCODING_UTF_8, "1.0");
+                    copy(reader, writer, events, summaries.iterator());
+                    writer.writeEndDocument();
+                    writer.flush();
+                } finally {
+                    reader.close();
+                    writer.close();
+                }
+            } finally {
+                output.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to recover report '" + in + "': " + e.getMessage(), e);
+        } finally {
+            input.close();
+        }
+    }
+
+    private void copy(XMLStreamReader reader, XMLStreamWriter writer, int events, Iterator<SuiteSummary> summaries) throws XMLStreamException {
+        List<String> open = new ArrayList<String>();
+        boolean caseHasProblem = false;
+        for (int i = 0; i < events; i++) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String name = reader.getLocalName();
+                    writer.writeStartElement(name);
+                    if (name.equals(TAG_SUITE)) {
+                        SuiteSummary summary = summaries.next();
+                        writer.writeAttribute(ATTRIBUTE_TESTS, Integer.toString(summary.mTests));
+                        writer.writeAttribute(ATTRIBUTE_FAILURES, Integer.toString(summary.mFailures));
+                        writer.writeAttribute(ATTRIBUTE_ERRORS, Integer.toString(summary.mErrors));
+                        writer.writeAttribute(ATTRIBUTE_TIME, summary.formatTime());
+                    } else if (name.equals(TAG_CASE)) {
+                        mCases++;
+                        caseHasProblem = false;
+                    } else if (name.equals(TAG_FAILURE) || name.equals(TAG_ERROR)) {
+                        caseHasProblem = true;
+                    }
+
+                    for (int j = 0; j < reader.getAttributeCount(); j++) {
+                        String attributeName = reader.getAttributeLocalName(j);
+                        if (!name.equals(TAG_SUITE) || !isSummaryAttribute(attributeName)) {
+                            writer.writeAttribute(attributeName, reader.getAttributeValue(j));
+                        }
+                    }
+                    open.add(name);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(reader.getText());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    open.remove(open.size() - 1);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        for (int i = open.size() - 1; i >= 0; i--) {
+            if (open.get(i).equals(TAG_CASE) && !caseHasProblem) {
+                writer.writeStartElement(TAG_ERROR);
+                writer.writeAttribute(ATTRIBUTE_MESSAGE, INCOMPLETE_TYPE + ": " + INCOMPLETE_MESSAGE);
+                writer.writeAttribute(ATTRIBUTE_TYPE, INCOMPLETE_TYPE);
+                writer.writeEndElement();
+                mIncomplete++;
+            }
+            writer.writeEndElement();
+        }
+    }
+
+    private static boolean isSummaryAttribute(String name) {
+        return name.equals(ATTRIBUTE_TESTS) || name.equals(ATTRIBUTE_FAILURES) || name.equals(ATTRIBUTE_ERRORS) || name.equals(ATTRIBUTE_TIME);
+    }
+
+    /**
+     * @return a one-line summary of what was recovered
+     */
+    public String getSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mCases).append(" case(s), ").append(mIncomplete).append(" incomplete");
+        if (mTruncated) {
+            builder.append(", report was cut short");
+        }
+        if (mSkippedLines > 0) {
+            builder.append(", ").append(mSkippedLines).append(" unreadable journal line(s) skipped");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Counts and total time of a suite in a report being recovered.
+     */
+    private static class SuiteSummary {
+        private int mTests;
+        private int mFailures;
+        private int mErrors;
+        private double mTime;
+
+        void addTime(String time) {
+            if (time != null) {
+                try {
+                    mTime += Double.parseDouble(time);
+                } catch (NumberFormatException e) {
+                    // Leave it out of the total.
+                }
+            }
+        }
+
+        String formatTime() {
+            return String.format(Locale.US, "%.3f", mTime);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport.host;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line entry point for the host-side report tools, run on a
+ * development machine or build server after reports have been pulled from
+ * the device:
+ * <pre>
+ *   java -jar android-junit-report-host.jar &lt;command&gt; [&lt;args&gt;]
+ * </pre>
+ * Run with no arguments for a list of commands.
+ */
+public class ReportTool {
+    private static final String ENCODING_UTF_8 = "UTF-8";
+
+    private static final String COMMAND_BASELINE = "baseline";
+    private static final String COMMAND_CHECK = "check";
+    private static final String COMMAND_CONVERT = "convert";
+    private static final String COMMAND_DECOMPRESS = "decompress";
+    private static final String COMMAND_EXPAND = "expand";
+    private static final String COMMAND_HISTORY = "history";
+    private static final String COMMAND_LIVE = "live";
+    private static final String COMMAND_MANIFEST = "manifest";
+    private static final String COMMAND_MERGE = "merge";
+    private static final String COMMAND_RECOVER = "recover";
+    private static final String COMMAND_REPLAY = "replay";
+
+    private static final String OPTION_SPLIT = "--split";
+
+    /**
+     * Do not instantiate.
+     */
+    private ReportTool() {
+    }
+
+    public static void main(String[] argv) {
+        if (argv.length == 0) {
+            usage();
+            System.exit(1);
+        }
+
+        try {
+            String command = argv[0];
+            if (command.equals(COMMAND_BASELINE) && argv.length > 2) {
+                baseline(argv);
+            } else if (command.equals(COMMAND_CHECK) && argv.length > 1) {
+                check(argv);
+            } else if (command.equals(COMMAND_CONVERT) && argv.length == 3) {
+                convert(argv[1], argv[2]);
+            } else if (command.equals(COMMAND_DECOMPRESS) && argv.length == 3) {
+                decompress(argv[1], argv[2]);
+            } else if (command.equals(COMMAND_EXPAND) && argv.length == 3) {
+                expand(argv[1], argv[2]);
+            } else if (command.equals(COMMAND_HISTORY) && argv.length > 2) {
+                history(argv);
+            } else if (command.equals(COMMAND_LIVE) && argv.length == 2) {
+                live(argv[1]);
+            } else if (command.equals(COMMAND_MANIFEST) && argv.length > 2) {
+                manifest(argv);
+            } else if (command.equals(COMMAND_MERGE) && argv.length > 2) {
+                merge(argv);
+            } else if (command.equals(COMMAND_RECOVER) && argv.length == 3) {
+                recover(argv[1], argv[2]);
+            } else if (command.equals(COMMAND_REPLAY) && (argv.length == 2 || argv.length == 3)) {
+                replay(argv[1], argv.length == 3 ? argv[2] : "0");
+            } else {
+                usage();
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java -jar android-junit-report-host.jar <command> [<args>]");
+        System.err.println();
+        System.err.println("Commands:");
+        System.err.println("  baseline <baseline> <report>...");
+        System.err.println("                      write the tests that passed in reports of a run with");
+        System.err.println("                      classManifest to a baseline for later runs");
+        System.err.println("  check <file>...     verify reports are complete and well-formed");
+        System.err.println("  convert <in> <out>  convert a report written with format binary into");
+        System.err.println("                      JUnit XML");
+        System.err.println("  decompress <in> <out>");
+        System.err.println("                      decompress a report written with compress");
+        System.err.println("  expand <in> <out>   expand a report written with deduplicateTraces into");
+        System.err.println("                      standard JUnit XML");
+        System.err.println("  history <history> <report>...");
+        System.err.println("                      add the test durations in reports to a duration history");
+        System.err.println("                      used to balance shards");
+        System.err.println("  live <out>          build a report from am instrument -r output on standard");
+        System.err.println("                      input for a run with liveResults, as the tests run");
+        System.err.println("  manifest <manifest> <classes>...");
+        System.err.println("                      write fingerprints of the classes in directories or jars");
+        System.err.println("                      to a manifest for the classManifest argument");
+        System.err.println("  merge [--split] <out> <in>...");
+        System.err.println("                      merge reports (or directories of reports) into one report,");
+        System.err.println("                      or with --split a file per suite in directory out, and");
+        System.err.println("                      report duplicate and flaky tests");
+        System.err.println("  recover <in> <out>  recover a report from a journal or a report cut short by a");
+        System.err.println("                      crash");
+        System.err.println("  replay <in> [<delay>]");
+        System.err.println("                      write a report as the am instrument -r output of a run");
+        System.err.println("                      with liveResults, waiting delay milliseconds per test");
+    }
+
+    private static void baseline(String[] argv) throws IOException {
+        BaselineBuilder builder = new BaselineBuilder();
+        for (int i = 2; i < argv.length; i++) {
+            builder.add(new File(argv[i]));
+        }
+        builder.save(new File(argv[1]));
+        System.out.println("Written: " + builder.getSummary());
+    }
+
+    private static void check(String[] argv) throws IOException {
+        ReportChecker checker = new ReportChecker();
+        for (int i = 1; i < argv.length; i++) {
+            checker.check(new File(argv[i]));
+        }
+        System.out.println("OK: " + checker.getSummary());
+    }
+
+    private static void convert(String inFile, String outFile) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
+        try {
+            new BinaryReportConverter().convert(new File(inFile), out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void decompress(String inFile, String outFile) throws IOException {
+        new ReportChecker().check(new File(inFile));
+        InputStream in = ReportFiles.open(new File(inFile));
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
+            try {
+                ReportFiles.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void expand(String inFile, String outFile) throws IOException {
+        InputStream in = ReportFiles.open(new File(inFile));
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
+            try {
+                new ReportExpander().expand(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void history(String[] argv) throws IOException {
+        File historyFile = new File(argv[1]);
+        DurationHistoryUpdater updater = new DurationHistoryUpdater();
+        updater.load(historyFile);
+        for (int i = 2; i < argv.length; i++) {
+            updater.update(new File(argv[i]));
+        }
+        updater.save(historyFile);
+        System.out.println("Updated: " + updater.getSummary());
+    }
+
+    private static void live(String outFile) throws IOException {
+        IncrementalReportWriter writer = new IncrementalReportWriter(new File(outFile));
+        try {
+            LiveReportConsumer consumer = new LiveReportConsumer(writer, System.out);
+            boolean finished = consumer.consume(new InputStreamReader(System.in, ENCODING_UTF_8));
+            System.out.println((finished ? "Run finished: " : "Run did not finish: ") + writer.getSummary());
+            if (!finished) {
+                throw new IOException("Instrumentation output ended before the run finished, partial report written to '" + outFile + "'");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void manifest(String[] argv) throws IOException {
+        ClassManifestBuilder builder = new ClassManifestBuilder();
+        for (int i = 2; i < argv.length; i++) {
+            builder.add(new File(argv[i]));
+        }
+        builder.save(new File(argv[1]));
+        System.out.println("Written: " + builder.getSummary());
+    }
+
+    private static void merge(String[] argv) throws IOException {
+        boolean split = argv[1].equals(OPTION_SPLIT);
+        int first = split ? 2 : 1;
+        if (argv.length - first < 2) {
+            usage();
+            System.exit(1);
+        }
+
+        List<File> reports = ReportMerger.findReports(Arrays.asList(argv).subList(first + 1, argv.length));
+        ReportMerger merger = new ReportMerger(Runtime.getRuntime().availableProcessors());
+        merger.merge(reports, new File(argv[first]), split);
+        System.out.println("Merged: " + merger.getSummary());
+        for (String duplicate: merger.getDuplicates()) {
+            System.out.println("Duplicate: " + duplicate);
+        }
+        for (String flaky: merger.getFlakyTests()) {
+            System.out.println("Flaky: " + flaky);
+        }
+    }
+
+    private static void recover(String inFile, String outFile) throws IOException {
+        ReportRecoverer recoverer = new ReportRecoverer();
+        recoverer.recover(new File(inFile), new File(outFile));
+        System.out.println("Recovered: " + recoverer.getSummary());
+    }
+
+    private static void replay(String inFile, String delay) throws IOException {
+        long delayMillis;
+        try {
+            delayMillis = Long.parseLong(delay);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid delay '" + delay + "'");
+        }
+
+        InputStream in = ReportFiles.open(new File(inFile));
+        try {
+            new LiveReportReplayer(new PrintStream(System.out, false, ENCODING_UTF_8), delayMillis).replay(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Runs report events on a dedicated writer thread, so that serialization and
+ * file I/O are kept off the instrumentation thread.  Events are handed over
+ * through a bounded queue.  When the queue is full, {@link #submit(Runnable)}
+ * blocks until the writer catches up: events are never dropped.  The queue
+ * uses separate locks for producers and the consumer, so handing over an
+ * event does not contend with the writer draining earlier ones.
+ */
+final class AsyncEventWriter implements Runnable {
+    private static final String LOG_TAG = AsyncEventWriter.class.getSimpleName();
+
+    private static final String DEFAULT_THREAD_NAME = "JUnitReportWriter";
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private static final Runnable STOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final BlockingQueue<Runnable> mQueue;
+    private final Thread mThread;
+    private volatile int mStallCount;
+
+    /**
+     * Creates and starts a new writer.
+     *
+     * @param capacity maximum number of events that may be queued before
+     *                 submitters block
+     */
+    AsyncEventWriter(int capacity) {
+        this(capacity, DEFAULT_THREAD_NAME);
+    }
+
+    /**
+     * Creates and starts a new writer with a thread of the given name.
+     *
+     * @param capacity   maximum number of events that may be queued before
+     *                   submitters block
+     * @param threadName name of the writer thread
+     */
+    AsyncEventWriter(int capacity, String threadName) {
+        mQueue = new LinkedBlockingQueue<Runnable>(capacity);
+        mThread = new Thread(this, threadName);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Queues an event to run on the writer thread, blocking while the queue
+     * is full.  Events run in the order they are submitted.
+     *
+     * @param event the event to run
+     */
+    void submit(Runnable event) {
+        if (mQueue.offer(event)) {
+            return;
+        }
+
+        mStallCount++;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(event);
+                break;
+            } catch (InterruptedException e) {
+                // Keep trying, losing results is worse than a late interrupt.
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs all queued events and stops the writer thread.  No further events
+     * may be submitted.
+     *
+     * @param timeoutMillis maximum time to wait for the queue to drain
+     * @return true if all events were run, false if the timeout elapsed
+     *         first
+     */
+    boolean shutdown(long timeoutMillis) {
+        submit(STOP);
+        try {
+            mThread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (mStallCount > 0) {
+            Log.i(LOG_TAG, "Test thread waited for a full queue " + mStallCount + " time(s)");
+        }
+
+        if (mThread.isAlive()) {
+            Log.e(LOG_TAG, "Timed out waiting for " + mQueue.size() + " queued report event(s)");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        List<Runnable> batch = new ArrayList<Runnable>(MAX_BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(mQueue.take());
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Writer thread interrupted, continuing until stopped");
+                continue;
+            }
+
+            mQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            for (Runnable event: batch) {
+                if (event == STOP) {
+                    return;
+                }
+
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Error writing report event: " + e.getMessage(), e);
+                }
+            }
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the report in a compact binary format that is cheap to both write
+ * and read.  The report starts with the four magic bytes "AJRB" and a
+ * version byte (currently 1), followed by a sequence of records.  Each record
+ * is a type byte, the length of the payload in bytes and then the payload.
+ * Readers skip records of types they do not know.  The record types are:
+ * <dl>
+ *   <dt>1: start tag</dt><dd>payload: element name</dd>
+ *   <dt>2: attribute</dt><dd>payload: name, value</dd>
+ *   <dt>3: text</dt><dd>payload: text</dd>
+ *   <dt>4: end tag</dt><dd>payload: element name</dd>
+ *   <dt>5: summary</dt><dd>payload: attribute count, then name, value for
+ *       each attribute of the enclosing element</dd>
+ *   <dt>6: end document</dt><dd>empty payload, marks a complete report</dd>
+ * </dl>
+ * Lengths and counts are unsigned LEB128 varints, and strings are a varint
+ * byte length followed by the UTF-8 bytes.  The host tools convert reports in
+ * this format to JUnit XML.
+ */
+final class BinaryReportWriter implements ReportWriter {
+    static final byte[] MAGIC = { 'A', 'J', 'R', 'B' };
+    static final int VERSION = 1;
+
+    static final int RECORD_START_TAG = 1;
+    static final int RECORD_ATTRIBUTE = 2;
+    static final int RECORD_TEXT = 3;
+    static final int RECORD_END_TAG = 4;
+    static final int RECORD_SUMMARY = 5;
+    static final int RECORD_END_DOCUMENT = 6;
+
+    private OutputStream mOut;
+    private final List<String> mElements = new ArrayList<String>();
+    // payload of the record being written, reused between records
+    private byte[] mPayload = new byte[1024];
+    private int mPayloadLength;
+    private final byte[] mHeader = new byte[6];
+
+    @Override
+    public void setOutput(OutputStream out) {
+        mOut = out;
+        mElements.clear();
+    }
+
+    @Override
+    public void startDocument() throws IOException {
+        mOut.write(MAGIC);
+        mOut.write(VERSION);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        while (!mElements.isEmpty()) {
+            endTag(getName());
+        }
+        mPayloadLength = 0;
+        writeRecord(RECORD_END_DOCUMENT);
+    }
+
+    @Override
+    public void startTag(String name) throws IOException {
+        mPayloadLength = 0;
+        putString(name);
+        writeRecord(RECORD_START_TAG);
+        mElements.add(name);
+    }
+
+    @Override
+    public void attribute(String name, String value) throws IOException {
+        mPayloadLength = 0;
+        putString(name);
+        putString(value);
+        writeRecord(RECORD_ATTRIBUTE);
+    }
+
+    @Override
+    public void attribute(String name, char[] buf, int start, int length) throws IOException {
+        mPayloadLength = 0;
+        putString(name);
+        putString(buf, start, length);
+        writeRecord(RECORD_ATTRIBUTE);
+    }
+
+    @Override
+    public void text(char[] buf, int start, int length) throws IOException {
+        mPayloadLength = 0;
+        putString(buf, start, length);
+        writeRecord(RECORD_TEXT);
+    }
+
+    @Override
+    public void text(String text) throws IOException {
+        mPayloadLength = 0;
+        putString(text);
+        writeRecord(RECORD_TEXT);
+    }
+
+    @Override
+    public void summary(String[] names, String[] values) throws IOException {
+        mPayloadLength = 0;
+        putVarint(names.length);
+        for (int i = 0; i < names.length; i++) {
+            putString(names[i]);
+            putString(values[i]);
+        }
+        writeRecord(RECORD_SUMMARY);
+    }
+
+    @Override
+    public void endTag(String name) throws IOException {
+        String current = getName();
+        if (!name.equals(current)) {
+            throw new IllegalStateException("End tag '" + name + "' does not match start tag '" + current + "'");
+        }
+
+        mPayloadLength = 0;
+        putString(name);
+        writeRecord(RECORD_END_TAG);
+        mElements.remove(mElements.size() - 1);
+    }
+
+    @Override
+    public String getName() {
+        return mElements.isEmpty() ? null : mElements.get(mElements.size() - 1);
+    }
+
+    @Override
+    public void flush() {
+        // Records are written straight through to the stream.
+    }
+
+    private void writeRecord(int type) throws IOException {
+        mHeader[0] = (byte) type;
+        int headerLength = 1;
+        int length = mPayloadLength;
+        while (length > 0x7f) {
+            mHeader[headerLength++] = (byte) ((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        mHeader[headerLength++] = (byte) length;
+        mOut.write(mHeader, 0, headerLength);
+        mOut.write(mPayload, 0, mPayloadLength);
+    }
+
+    private void putVarint(int value) {
+        ensureCapacity(5);
+        while (value > 0x7f) {
+            mPayload[mPayloadLength++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mPayload[mPayloadLength++] = (byte) value;
+    }
+
+    private void putString(String s) {
+        int length = s.length();
+        putVarint(utf8Length(s, length));
+        ensureCapacity(length * 3);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                mPayload[mPayloadLength++] = (byte) c;
+            } else {
+                i = putChar(c, i + 1 < length ? s.charAt(i + 1) : 0, i);
+            }
+        }
+    }
+
+    private void putString(char[] buf, int start, int length) {
+        int end = start + length;
+        int byteLength = 0;
+        for (int i = start; i < end; i++) {
+            char c = buf[i];
+            if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(buf[i + 1])) {
+                byteLength += 4;
+                i++;
+            } else {
+                byteLength += charLength(c);
+            }
+        }
+        putVarint(byteLength);
+        ensureCapacity(length * 3);
+        for (int i = start; i < end; i++) {
+            char c = buf[i];
+            if (c < 0x80) {
+                mPayload[mPayloadLength++] = (byte) c;
+            } else {
+                i = putChar(c, i + 1 < end ? buf[i + 1] : 0, i);
+            }
+        }
+    }
+
+    private static int utf8Length(String s, int length) {
+        int byteLength = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                byteLength += 4;
+                i++;
+            } else {
+                byteLength += charLength(c);
+            }
+        }
+        return byteLength;
+    }
+
+    /**
+     * @return the number of UTF-8 bytes for a char that is not part of a
+     *         surrogate pair, an unpaired surrogate being replaced with '?'
+     */
+    private static int charLength(char c) {
+        if (c < 0x80 || isSurrogate(c)) {
+            return 1;
+        } else if (c < 0x800) {
+            return 2;
+        } else {
+            return 3;
+        }
+    }
+
+    private static boolean isSurrogate(char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private int putChar(char c, char next, int i) {
+        if (c < 0x800) {
+            mPayload[mPayloadLength++] = (byte) (0xc0 | (c >> 6));
+            mPayload[mPayloadLength++] = (byte) (0x80 | (c & 0x3f));
+        } else if (isSurrogate(c)) {
+            if (Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+                int codePoint = Character.toCodePoint(c, next);
+                mPayload[mPayloadLength++] = (byte) (0xf0 | (codePoint >> 18));
+                mPayload[mPayloadLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                mPayload[mPayloadLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                mPayload[mPayloadLength++] = (byte) (0x80 | (codePoint & 0x3f));
+                return i + 1;
+            }
+            mPayload[mPayloadLength++] = '?';
+        } else {
+            mPayload[mPayloadLength++] = (byte) (0xe0 | (c >> 12));
+            mPayload[mPayloadLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            mPayload[mPayloadLength++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mPayloadLength + extra > mPayload.length) {
+            byte[] grown = new byte[Math.max(mPayload.length * 2, mPayloadLength + extra)];
+            System.arraycopy(mPayload, 0, grown, 0, mPayloadLength);
+            mPayload = grown;
+        }
+    }
+}
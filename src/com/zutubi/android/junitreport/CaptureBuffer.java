@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A fixed-size ring buffer of recent output.  Output is appended as bytes,
+ * overwriting the oldest bytes once the buffer is full, so memory use is
+ * capped however much is written.  Readers do not reset the buffer: they
+ * note the position before the output they are interested in, and later
+ * read everything appended since then that is still held.  Noting a
+ * position is a single read, so it is cheap enough to do for every test.
+ * <p/>
+ * Appends and reads are synchronized, as output may come from any thread.
+ */
+final class CaptureBuffer {
+    private static final String ENCODING_UTF_8 = "UTF-8";
+
+    private final byte[] mBuffer;
+    // Total number of bytes ever appended, the end of the held output.
+    private long mPosition;
+
+    /**
+     * Creates a buffer holding at most the given number of bytes.
+     *
+     * @param capacity the size of the buffer, in bytes
+     */
+    CaptureBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Appends output to the buffer.
+     *
+     * @param b   buffer holding the output
+     * @param off offset of the output in the buffer
+     * @param len number of bytes of output
+     */
+    synchronized void append(byte[] b, int off, int len) {
+        int capacity = mBuffer.length;
+        if (len > capacity) {
+            // Only the tail can be held.
+            off += len - capacity;
+            mPosition += len - capacity;
+            len = capacity;
+        }
+
+        int index = (int) (mPosition % capacity);
+        int n = Math.min(len, capacity - index);
+        System.arraycopy(b, off, mBuffer, index, n);
+        System.arraycopy(b, off + n, mBuffer, 0, len - n);
+        mPosition += len;
+    }
+
+    /**
+     * Appends a single byte of output to the buffer.
+     *
+     * @param b the byte to append
+     */
+    synchronized void append(int b) {
+        mBuffer[(int) (mPosition % mBuffer.length)] = (byte) b;
+        mPosition++;
+    }
+
+    /**
+     * @return the current end of the output, to pass to
+     *         {@link #getTextSince(long)} later
+     */
+    synchronized long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Returns the output appended since a given position, decoded as UTF-8.
+     * If some of that output has since been overwritten, the text starts
+     * with a marker noting how many bytes were dropped.
+     *
+     * @param position a position previously returned by
+     *                 {@link #getPosition()}
+     * @return the output since the position, or null if there is none
+     */
+    String getTextSince(long position) {
+        byte[] bytes;
+        long dropped;
+        synchronized (this) {
+            long length = mPosition - position;
+            if (length <= 0) {
+                return null;
+            }
+
+            int capacity = mBuffer.length;
+            int held = (int) Math.min(length, capacity);
+            dropped = length - held;
+            bytes = new byte[held];
+            int index = (int) ((mPosition - held) % capacity);
+            int n = Math.min(held, capacity - index);
+            System.arraycopy(mBuffer, index, bytes, 0, n);
+            System.arraycopy(mBuffer, 0, bytes, n, held - n);
+        }
+
+        int start = 0;
+        if (dropped > 0) {
+            // Skip any partial character left at the cut.
+            while (start < bytes.length && (bytes[start] & 0xc0) == 0x80) {
+                start++;
+            }
+            dropped += start;
+        }
+
+        try {
+            String text = new String(bytes, start, bytes.length - start, ENCODING_UTF_8);
+            return dropped > 0 ? "[truncated " + dropped + " earlier bytes] ..." + text : text;
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new RuntimeException(e);
+        }
+    }
+}
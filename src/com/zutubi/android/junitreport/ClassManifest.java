@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fingerprints of the classes of a build, used to tell which test classes
+ * are unchanged since a previous run.  The fingerprint of a class covers its
+ * own content and that of every class it depends on, directly or not, so
+ * it changes whenever anything that could affect its tests does.  The
+ * manifest is a text file, built from the compiled classes by the host tools
+ * manifest command, with one line per class:
+ * <pre>
+ *   class&lt;TAB&gt;fingerprint
+ * </pre>
+ * Lines starting with # are comments, and malformed lines are ignored.
+ */
+final class ClassManifest {
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    private static final String COMMENT_PREFIX = "#";
+
+    private final Map<String, String> mFingerprints = new HashMap<String, String>();
+
+    /**
+     * Loads a manifest file.
+     *
+     * @param file the file to load
+     * @return the loaded manifest
+     * @throws IOException if the file cannot be read
+     */
+    static ClassManifest load(File file) throws IOException {
+        ClassManifest manifest = new ClassManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING_UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(COMMENT_PREFIX)) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+                if (fields.length == 2) {
+                    manifest.mFingerprints.put(fields[0], fields[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * @return the number of classes in the manifest
+     */
+    int size() {
+        return mFingerprints.size();
+    }
+
+    /**
+     * @param className the fully-qualified name of a class
+     * @return the fingerprint of the class, or null if it is not in the
+     *         manifest
+     */
+    String getFingerprint(String className) {
+        return mFingerprints.get(className);
+    }
+
+    /**
+     * @return the fingerprints of all classes, keyed by class name
+     */
+    Map<String, String> getFingerprints() {
+        return Collections.unmodifiableMap(mFingerprints);
+    }
+}
@@ -1,9 +1,15 @@
 package com.zutubi.android.junitreport;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.zip.GZIPOutputStream;
 
 import android.content.Context;
+import android.os.Debug;
 import android.os.Environment;
 import android.util.Log;
 
@@ -24,6 +30,30 @@ public final class Compatibility {
         METHOD_GET_EXTERNAL_FILES_DIR = method;
     }
 
+    private static final String RUNTIME_STAT_GC_COUNT = "art.gc.gc-count";
+
+    private static final Method METHOD_GET_RUNTIME_STAT;
+    static {
+        Method method = null;
+        try {
+            method = Debug.class.getMethod("getRuntimeStat", String.class);
+        } catch (Exception e) {
+            // Expected for API 22 and below.  Fall back will be engaged.
+        }
+        METHOD_GET_RUNTIME_STAT = method;
+    }
+
+    private static final Constructor<GZIPOutputStream> CONSTRUCTOR_SYNC_FLUSH_GZIP;
+    static {
+        Constructor<GZIPOutputStream> constructor = null;
+        try {
+            constructor = GZIPOutputStream.class.getConstructor(OutputStream.class, int.class, boolean.class);
+        } catch (Exception e) {
+            // Expected for API 18 and below.  Fall back will be engaged.
+        }
+        CONSTRUCTOR_SYNC_FLUSH_GZIP = constructor;
+    }
+
     /**
      * Do not instantiate.
      */
@@ -58,4 +88,55 @@ public final class Compatibility {
             }
         }
     }
+
+    /**
+     * Creates a {@link GZIPOutputStream} which, where supported (API 19 and
+     * above), compresses and writes all pending output when flushed.  On
+     * earlier versions flushing does not force compressed output, so only
+     * data written before the stream is closed is guaranteed to be complete.
+     *
+     * @param out the stream to write compressed data to
+     * @param size the size of the compression output buffer
+     * @return the new stream
+     * @throws IOException on any error writing the gzip header
+     */
+    public static GZIPOutputStream newSyncFlushGzipOutputStream(final OutputStream out, final int size) throws IOException {
+        if (CONSTRUCTOR_SYNC_FLUSH_GZIP != null) {
+            try {
+                return CONSTRUCTOR_SYNC_FLUSH_GZIP.newInstance(out, size, true);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                Log.e(LOG_TAG, "Could not create sync flush gzip stream: " + e.getMessage(), e);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Could not create sync flush gzip stream: " + e.getMessage(), e);
+            }
+        }
+        return new GZIPOutputStream(out, size);
+    }
+
+    /**
+     * Returns the number of garbage collections run in this process.  Uses
+     * the runtime statistics available on API 23 and above, falling back to
+     * {@link Debug#getGlobalGcInvocationCount()} (which requires allocation
+     * counting to be started) on earlier versions or if the statistic is not
+     * available.
+     *
+     * @return the number of garbage collections so far
+     */
+    @SuppressWarnings("deprecation")
+    public static long getGcCount() {
+        if (METHOD_GET_RUNTIME_STAT != null) {
+            try {
+                String value = (String) METHOD_GET_RUNTIME_STAT.invoke(null, RUNTIME_STAT_GC_COUNT);
+                if (value != null) {
+                    return Long.parseLong(value);
+                }
+            } catch (Exception e) {
+                // Fall back below.
+            }
+        }
+        return Debug.getGlobalGcInvocationCount();
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats durations in nanoseconds as decimal seconds with a fixed number of
+ * fraction digits, e.g. "1.234".  Rounds half up, like
+ * String.format("%.3f", ...), but uses integer arithmetic and a reusable
+ * buffer rather than a new {@link java.util.Formatter} per call.  Durations
+ * written as attributes go straight from the buffer to the writer, without
+ * allocating a string.  Instances are not thread-safe.
+ */
+final class DurationFormat {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final int MAX_LENGTH = 32;
+
+    private final int mFractionDigits;
+    private final long mNanosPerUnit;
+    private final long mUnitsPerSecond;
+    private final char[] mBuffer = new char[MAX_LENGTH];
+
+    /**
+     * Creates a format with the given precision.
+     *
+     * @param precision smallest unit to show, either
+     *                  {@link TimeUnit#MILLISECONDS} (three fraction
+     *                  digits) or {@link TimeUnit#MICROSECONDS} (six)
+     */
+    DurationFormat(TimeUnit precision) {
+        if (precision == TimeUnit.MILLISECONDS) {
+            mFractionDigits = 3;
+        } else if (precision == TimeUnit.MICROSECONDS) {
+            mFractionDigits = 6;
+        } else {
+            throw new IllegalArgumentException("Unsupported time precision " + precision);
+        }
+
+        mNanosPerUnit = precision.toNanos(1);
+        mUnitsPerSecond = NANOS_PER_SECOND / mNanosPerUnit;
+    }
+
+    /**
+     * Formats a duration into the internal buffer.
+     *
+     * @param nanos the duration to format, negative durations are treated as
+     *              zero
+     * @return the number of characters written to the start of the buffer
+     */
+    private int formatToBuffer(long nanos) {
+        long units = nanos <= 0 ? 0 : (nanos + mNanosPerUnit / 2) / mNanosPerUnit;
+        long seconds = units / mUnitsPerSecond;
+        long fraction = units % mUnitsPerSecond;
+
+        // Fill from the end: fraction digits, point, then whole seconds.
+        int pos = MAX_LENGTH;
+        for (int i = 0; i < mFractionDigits; i++) {
+            mBuffer[--pos] = (char) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        mBuffer[--pos] = '.';
+        do {
+            mBuffer[--pos] = (char) ('0' + seconds % 10);
+            seconds /= 10;
+        } while (seconds > 0);
+
+        int length = MAX_LENGTH - pos;
+        System.arraycopy(mBuffer, pos, mBuffer, 0, length);
+        return length;
+    }
+
+    /**
+     * Writes a duration as an attribute, without allocating.
+     *
+     * @param writer writer to write the attribute to
+     * @param name   name of the attribute
+     * @param nanos  the duration to format, negative durations are treated
+     *               as zero
+     * @throws IOException on any error writing
+     */
+    void writeAttribute(ReportWriter writer, String name, long nanos) throws IOException {
+        writer.attribute(name, mBuffer, 0, formatToBuffer(nanos));
+    }
+
+    /**
+     * Formats a duration as a string.
+     *
+     * @param nanos the duration to format, negative durations are treated as
+     *              zero
+     * @return the formatted duration
+     */
+    String format(long nanos) {
+        return new String(mBuffer, 0, formatToBuffer(nanos));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Durations of tests in previous runs, used to predict how long each test
+ * will take.  The history is a text file, built from reports by the host
+ * tools history command, with one line per test:
+ * <pre>
+ *   suite&lt;TAB&gt;case&lt;TAB&gt;milliseconds
+ * </pre>
+ * Lines starting with # are comments.  Malformed lines are ignored, so a
+ * damaged history only makes predictions worse.
+ */
+final class DurationHistory {
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    private static final String COMMENT_PREFIX = "#";
+
+    private final Map<String, Long> mDurations = new HashMap<String, Long>();
+    private long mTotalDuration;
+
+    /**
+     * Loads a history file.
+     *
+     * @param file the file to load
+     * @return the loaded history
+     * @throws IOException if the file cannot be read
+     */
+    static DurationHistory load(File file) throws IOException {
+        DurationHistory history = new DurationHistory();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING_UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(COMMENT_PREFIX)) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+                if (fields.length == 3) {
+                    try {
+                        history.put(fields[0], fields[1], Long.parseLong(fields[2]));
+                    } catch (NumberFormatException e) {
+                        // Ignore the line.
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return history;
+    }
+
+    private void put(String suiteName, String caseName, long millis) {
+        if (millis >= 0) {
+            Long previous = mDurations.put(key(suiteName, caseName), millis);
+            mTotalDuration += millis - (previous == null ? 0 : previous);
+        }
+    }
+
+    private static String key(String suiteName, String caseName) {
+        return suiteName + "#" + caseName;
+    }
+
+    /**
+     * @return the number of tests in the history
+     */
+    int size() {
+        return mDurations.size();
+    }
+
+    /**
+     * Predicts the duration of a test.  Tests not in the history are
+     * predicted to take the mean duration of those that are.
+     *
+     * @param suiteName     name of the suite (test class)
+     * @param caseName      name of the test case
+     * @param defaultMillis duration predicted if the history is empty
+     * @return the predicted duration in milliseconds
+     */
+    long predict(String suiteName, String caseName, long defaultMillis) {
+        Long millis = mDurations.get(key(suiteName, caseName));
+        if (millis != null) {
+            return millis;
+        } else if (mDurations.isEmpty()) {
+            return defaultMillis;
+        } else {
+            return mTotalDuration / mDurations.size();
+        }
+    }
+}
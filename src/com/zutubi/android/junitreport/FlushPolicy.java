@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.util.Locale;
+
+/**
+ * Decides how often a {@link JUnitReportListener} commits buffered report
+ * output to storage.  Committing after every test is the safest option, but
+ * costs at least one write per test.  The other policies group many tests
+ * into a single write.  Regardless of policy, the report is always committed
+ * when a test fails, when a suite ends and when the listener is closed, so
+ * the results of failing tests survive a crash.
+ * <p/>
+ * Policies are usually created by {@link #parse(String)}, which accepts:
+ * <ul>
+ *   <li>test: commit after every test (the default)</li>
+ *   <li>suite: commit only at the end of each suite</li>
+ *   <li>&lt;N&gt;: commit after every N tests</li>
+ *   <li>&lt;T&gt;ms: commit after a test if at least T milliseconds have
+ *       passed since the last commit</li>
+ * </ul>
+ */
+public final class FlushPolicy {
+    private static final String VALUE_TEST = "test";
+    private static final String VALUE_SUITE = "suite";
+    private static final String SUFFIX_MILLIS = "ms";
+
+    /**
+     * Commit after every test.
+     */
+    public static final FlushPolicy PER_TEST = new FlushPolicy(1, 0);
+    /**
+     * Commit only at suite boundaries (and on failures).
+     */
+    public static final FlushPolicy PER_SUITE = new FlushPolicy(0, 0);
+
+    private final int mTestInterval;
+    private final long mTimeInterval;
+
+    private FlushPolicy(int testInterval, long timeInterval) {
+        this.mTestInterval = testInterval;
+        this.mTimeInterval = timeInterval;
+    }
+
+    /**
+     * Creates a policy that commits after every given number of tests.
+     *
+     * @param tests number of tests to complete between commits, must be
+     *              positive
+     * @return the new policy
+     */
+    public static FlushPolicy everyTests(int tests) {
+        if (tests <= 0) {
+            throw new IllegalArgumentException("Test interval must be positive, got " + tests);
+        }
+        return tests == 1 ? PER_TEST : new FlushPolicy(tests, 0);
+    }
+
+    /**
+     * Creates a policy that commits after a test once the given time has
+     * elapsed since the previous commit.
+     *
+     * @param millis minimum number of milliseconds between commits, must be
+     *               positive
+     * @return the new policy
+     */
+    public static FlushPolicy everyMillis(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Time interval must be positive, got " + millis);
+        }
+        return new FlushPolicy(0, millis);
+    }
+
+    /**
+     * Parses a policy from its string form, as described in the class
+     * documentation.
+     *
+     * @param value the value to parse
+     * @return the parsed policy
+     * @throws IllegalArgumentException if the value is not a valid policy
+     */
+    public static FlushPolicy parse(String value) {
+        String trimmed = value.trim().toLowerCase(Locale.ENGLISH);
+        if (trimmed.equals(VALUE_TEST)) {
+            return PER_TEST;
+        } else if (trimmed.equals(VALUE_SUITE)) {
+            return PER_SUITE;
+        }
+
+        try {
+            if (trimmed.endsWith(SUFFIX_MILLIS)) {
+                return everyMillis(Long.parseLong(trimmed.substring(0, trimmed.length() - SUFFIX_MILLIS.length())));
+            } else {
+                return everyTests(Integer.parseInt(trimmed));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid flush policy '" + value + "'", e);
+        }
+    }
+
+    /**
+     * Indicates if a commit is due after a test has completed.
+     *
+     * @param testsSinceCommit number of tests completed since the last commit
+     * @param millisSinceCommit time elapsed since the last commit
+     * @return true if the report should be committed now
+     */
+    boolean isDue(int testsSinceCommit, long millisSinceCommit) {
+        if (mTestInterval > 0) {
+            return testsSinceCommit >= mTestInterval;
+        } else if (mTimeInterval > 0) {
+            return millisSinceCommit >= mTimeInterval;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if this policy needs to know the time since the last
+     *         commit
+     */
+    boolean isTimed() {
+        return mTimeInterval > 0;
+    }
+
+    @Override
+    public String toString() {
+        if (mTestInterval == 1) {
+            return VALUE_TEST;
+        } else if (mTestInterval > 0) {
+            return Integer.toString(mTestInterval);
+        } else if (mTimeInterval > 0) {
+            return mTimeInterval + SUFFIX_MILLIS;
+        } else {
+            return VALUE_SUITE;
+        }
+    }
+}
@@ -17,23 +17,29 @@
 package com.zutubi.android.junitreport;
 
 import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.AssertionFailedError;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestListener;
 
-import org.xmlpull.v1.XmlSerializer;
-
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.Xml;
 
 /**
  * Custom test listener that outputs test results to XML files. The files
@@ -47,66 +53,169 @@ import android.util.Xml;
  *     tools.
  *   </li>
  *   <li>
- *     Redundant information about the number of nested cases within a suite is
- *     omitted.
+ *     The case counts and durations of suites are written to a reserved space
+ *     in the &lt;testsuite&gt; element once the suite completes.  If the run
+ *     crashes before then, these attributes read as zero.
+ *   </li>
+ *   <li>
+ *     When the report is compressed it cannot be patched in place, so suite
+ *     summaries are omitted.
  *   </li>
  *   <li>
- *     Durations are omitted from suites.
+ *     Failed attempts at tests that are retried (see
+ *     {@link RetryingTestResult}) are recorded in the &lt;testcase&gt; as
+ *     &lt;flakyFailure&gt; or &lt;flakyError&gt; elements if the test then
+ *     passed, or &lt;rerunFailure&gt; or &lt;rerunError&gt; elements if it
+ *     failed every attempt, as in Maven Surefire reports.
  *   </li>
  *   <li>
- *     Neither standard output nor system properties are included.
+ *     Tests that were not run, but whose results were carried over from a
+ *     previous run, are reported as passing with a carriedOver attribute.
+ *     Suites carry a fingerprint attribute when class fingerprints are set.
+ *   </li>
+ *   <li>
+ *     System properties are not included, and standard output is only
+ *     included for failed tests when output capture is enabled.
  *   </li>
  * </ul>
  * The differences mainly revolve around making this reporting as lightweight as
- * possible. The report is streamed as the tests run, making it impossible to,
- * e.g. include the case count in a &lt;testsuite&gt; element.
+ * possible. The report is streamed as the tests run, so suite summaries can
+ * only be filled in after the fact.  The time spent in each callback is
+ * measured too, so the cost of reporting can be checked (see
+ * {@link ReporterMetrics}).
+ * <p/>
+ * The same report may instead be written in another {@link ReportFormat}, in
+ * which case suite summaries are recorded when each suite ends.
  */
-public class JUnitReportListener implements TestListener {
+public class JUnitReportListener implements TestListener, RetryListener {
     private static final String LOG_TAG = JUnitReportListener.class.getSimpleName();
 
-    private static final String ENCODING_UTF_8 = "utf-8";
+    private static final long ASYNC_SHUTDOWN_TIMEOUT = 60000;
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    /**
+     * Default cap on the length of a failure message attribute, in characters.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 64 * 1024;
+    /**
+     * Default cap on the length of a stack trace, in characters.
+     */
+    public static final int DEFAULT_MAX_TRACE_LENGTH = 1024 * 1024;
+
+    // Same format as the Ant JUnit task.
+    private static final String TIMESTAMP_PATTERN = "yyyy-MM-dd'T'HH:mm:ss";
 
     public static final String TOKEN_SUITE = "__suite__";
     public static final String TOKEN_EXTERNAL = "__external__";
+    public static final String TOKEN_SHARD = "__shard__";
 
     private static final String TAG_SUITES = "testsuites";
     private static final String TAG_SUITE = "testsuite";
     private static final String TAG_CASE = "testcase";
     private static final String TAG_ERROR = "error";
     private static final String TAG_FAILURE = "failure";
+    private static final String TAG_FLAKY_ERROR = "flakyError";
+    private static final String TAG_FLAKY_FAILURE = "flakyFailure";
+    private static final String TAG_RERUN_ERROR = "rerunError";
+    private static final String TAG_RERUN_FAILURE = "rerunFailure";
+    private static final String TAG_STACK_TRACE = "stackTrace";
 
     private static final String ATTRIBUTE_NAME = "name";
     private static final String ATTRIBUTE_CLASS = "classname";
     private static final String ATTRIBUTE_TYPE = "type";
     private static final String ATTRIBUTE_MESSAGE = "message";
     private static final String ATTRIBUTE_TIME = "time";
+    private static final String ATTRIBUTE_TIMESTAMP = "timestamp";
+    private static final String ATTRIBUTE_TESTS = "tests";
+    private static final String ATTRIBUTE_FAILURES = "failures";
+    private static final String ATTRIBUTE_ERRORS = "errors";
+    private static final String ATTRIBUTE_TRACE_ID = "traceId";
+    private static final String ATTRIBUTE_TRACE_REF = "traceRef";
+    private static final String ATTRIBUTE_OCCURRENCE = "occurrence";
+    private static final String ATTRIBUTE_FINGERPRINT = "fingerprint";
+    private static final String ATTRIBUTE_CARRIED_OVER = "carriedOver";
 
-    // With thanks to org.apache.tools.ant.taskdefs.optional.junit.JUnitTestRunner.
-    // Trimmed some entries, added others for Android.
-    private static final String[] DEFAULT_TRACE_FILTERS = new String[] {
-            "junit.framework.TestCase", "junit.framework.TestResult",
-            "junit.framework.TestSuite",
-            "junit.framework.Assert.", // don't filter AssertionFailure
-            "java.lang.reflect.Method.invoke(", "sun.reflect.",
-            // JUnit 4 support:
-            "org.junit.", "junit.framework.JUnit4TestAdapter", " more",
-            // Added for Android
-            "android.test.", "android.app.Instrumentation",
-            "java.lang.reflect.Method.invokeNative",
-    };
+    private static final String[] SUMMARY_ATTRIBUTES = { ATTRIBUTE_TESTS, ATTRIBUTE_FAILURES, ATTRIBUTE_ERRORS, ATTRIBUTE_TIME };
 
     private Context mTargetContext;
     private String mReportFile;
     private String mReportDir;
     private boolean mFilterTraces;
+    private StackTraceFilter mTraceFilter = StackTraceFilter.DEFAULT;
+    private TraceDeduplicator mTraceDeduplicator;
+    private int mMaxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+    private int mMaxTraceLength = DEFAULT_MAX_TRACE_LENGTH;
     private boolean mMultiFile;
-    private FileOutputStream mOutputStream;
-    private XmlSerializer mSerializer;
+    private boolean mCompress;
+    private ReportFormat mFormat = ReportFormat.XML;
+    private FlushPolicy mFlushPolicy = FlushPolicy.PER_TEST;
+    private AsyncEventWriter mAsyncWriter;
+    // Only used in concurrent and regrouping modes, see setConcurrent.
+    private ConcurrentHashMap<Test, RunningCase> mRunningCases;
+    private SuiteRegrouper mRegrouper;
+    private boolean mRecordResources;
+    // The usage of the running test in sequential modes, used on the test thread only.
+    private ResourceUsage mCaseResources;
+    private final ResourceUsage mSuiteResources = new ResourceUsage();
+    private final ResourceUsage mTotalResources = new ResourceUsage();
+    private final ReporterMetrics mMetrics = new ReporterMetrics();
+    private final Map<String, ResourceUsage> mGroupResources = new HashMap<String, ResourceUsage>();
+    private OutputCapture mOutputCapture;
+    private Map<String, String> mFingerprints;
+    // Output positions and outcome of the running test in sequential modes, used on the test thread only.
+    private long mCaseOutPosition;
+    private long mCaseErrPosition;
+    private boolean mCaseFailed;
+    private List<Attempt> mCaseAttempts;
+    private final Object mWriteLock = new Object();
+    private final ThreadLocal<CaseRenderer> mRenderers = new ThreadLocal<CaseRenderer>() {
+        @Override
+        protected CaseRenderer initialValue() {
+            return new CaseRenderer();
+        }
+    };
+    private ReportOutputStream mOutputStream;
+    // Kept from the last file closed, for reuse by the next.
+    private ReportOutputStream mSpareOutputStream;
+    private ReportWriter mSpareWriter;
+    // In multiFile mode, patches in the suite summary when the current file
+    // is closed.
+    private Runnable mClosingPatch;
+    private ReportFileCloser mFileCloser;
+    private volatile File mResolvedReportDir;
+    private File mReportPath;
+    private ReportWriter mWriter;
     private String mCurrentSuite;
 
-    // simple time tracking
+    // commit tracking, see FlushPolicy
+    private int mTestsSinceCommit;
+    private long mLastCommitTime;
+    private long mTotalBytesWritten;
+    private int mTotalCommitCount;
+
+    // time tracking, all times are from System.nanoTime() which is
+    // monotonic (unlike the wall clock)
+    private TimeUnit mTimePrecision = TimeUnit.MILLISECONDS;
+    private DurationFormat mDurationFormat = new DurationFormat(mTimePrecision);
+    private SimpleDateFormat mTimestampFormat = new SimpleDateFormat(TIMESTAMP_PATTERN, Locale.ENGLISH);
     private boolean mTimeAlreadyWritten = false;
+    private boolean mProblemAlreadyWritten = false;
     private long mTestStartTime;
+    private long mSuiteStartTime = -1;
+    private long mSuiteEndTime;
+
+    // summary attributes patched into the current suite element, see SummarySlot
+    private final SummarySlot mSummarySlot = new SummarySlot(SUMMARY_ATTRIBUTES,
+            new String[] { "0000000000", "0000000000", "0000000000", "0000000000.000000" });
+    private long mSummarySlotOffset = -1;
+    // resource totals patched into the current suite element, see PropertiesSlot
+    private final PropertiesSlot mPropertiesSlot = new PropertiesSlot(ResourceUsage.PROPERTY_NAMES,
+            new String[] { "0000000000.000000", "-0000000000000000000", "-0000000000000000000",
+                    "-0000000000000000000", "-0000000000000000000", "-0000000000000000000" });
+    private long mPropertiesSlotOffset = -1;
+    private int mSuiteTests;
+    private int mSuiteFailures;
+    private int mSuiteErrors;
 
     /**
      * Creates a new listener.
@@ -135,58 +244,508 @@ public class JUnitReportListener implements TestListener {
         this.mMultiFile = multiFile;
     }
 
-    @Override
-    public void startTest(Test test) {
+    /**
+     * Sets the policy used to decide when buffered report output is committed
+     * to storage.  Must be called before any tests are started.
+     *
+     * @param flushPolicy the policy to use, by default output is committed
+     *                    after every test
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        Log.i(LOG_TAG, "Using flush policy: " + flushPolicy);
+        this.mFlushPolicy = flushPolicy;
+    }
+
+    /**
+     * Enables or disables gzip compression of report files.  Compressed
+     * reports omit the summary attributes of suites, as they cannot be
+     * patched once written.  Must be called before any tests are started.
+     *
+     * @param compress true to compress report files, false to write plain
+     *                 XML (the default)
+     */
+    public void setCompress(boolean compress) {
+        this.mCompress = compress;
+    }
+
+    /**
+     * Sets the format in which reports are written.  Must be called before
+     * any tests are started.
+     *
+     * @param format the format to use, by default {@link ReportFormat#XML}
+     */
+    public void setFormat(ReportFormat format) {
+        this.mFormat = format;
+    }
+
+    /**
+     * Sets the precision of test and suite durations in the report.  Must be
+     * called before any tests are started.
+     *
+     * @param precision either {@link TimeUnit#MILLISECONDS} (the default) or
+     *                  {@link TimeUnit#MICROSECONDS}
+     */
+    public void setTimePrecision(TimeUnit precision) {
+        mDurationFormat = new DurationFormat(precision);
+        mTimePrecision = precision;
+    }
+
+    /**
+     * Sets the filter used to remove noise from stack traces when trace
+     * filtering is enabled.
+     *
+     * @param traceFilter the filter to use, by default
+     *                    {@link StackTraceFilter#DEFAULT}
+     */
+    public void setTraceFilter(StackTraceFilter traceFilter) {
+        this.mTraceFilter = traceFilter;
+    }
+
+    /**
+     * Enables or disables deduplication of stack traces.  When enabled, the
+     * first occurrence of each distinct trace in a report file is written in
+     * full and tagged with a traceId attribute.  Later failures with the same
+     * trace omit the text, and instead carry a traceRef attribute with the
+     * id and an occurrence attribute counting the failures so far with that
+     * trace.  Such reports can be turned back into the standard format with
+     * the host-side expand tool.  Must be called before any tests are
+     * started.
+     *
+     * @param deduplicateTraces true to deduplicate traces, false to write
+     *                          every trace in full (the default)
+     */
+    public void setDeduplicateTraces(boolean deduplicateTraces) {
+        mTraceDeduplicator = deduplicateTraces ? new TraceDeduplicator() : null;
+    }
+
+    /**
+     * Sets the maximum length of the message attribute written for a failure
+     * or error.  Longer messages are cut short and end with a marker noting
+     * how many characters were dropped.
+     *
+     * @param maxMessageLength maximum message length in characters, or zero
+     *                         for no limit
+     */
+    public void setMaxMessageLength(int maxMessageLength) {
+        mMaxMessageLength = maxMessageLength;
+    }
+
+    /**
+     * Sets the maximum length of the stack trace written for a failure or
+     * error.  Traces are streamed into the report in small chunks, and text
+     * beyond this length is replaced by a marker noting how many characters
+     * were dropped.
+     *
+     * @param maxTraceLength maximum trace length in characters, or zero for
+     *                       no limit
+     */
+    public void setMaxTraceLength(int maxTraceLength) {
+        mMaxTraceLength = maxTraceLength;
+    }
+
+    /**
+     * Switches the listener to asynchronous mode, where report serialization
+     * and file I/O happen on a dedicated writer thread instead of the thread
+     * running the tests.  Test callbacks just record a small event in a
+     * bounded queue.  If the queue fills the test thread waits for the writer
+     * to catch up, so no results are lost.  Queued events are written out by
+     * {@link #close()}.  Must be called before any tests are started.
+     *
+     * @param queueSize maximum number of events to queue, or zero to write
+     *                  synchronously (the default)
+     */
+    public void setAsyncQueueSize(int queueSize) {
+        if (mAsyncWriter == null && queueSize > 0) {
+            Log.i(LOG_TAG, "Writing report asynchronously with queue size " + queueSize);
+            mAsyncWriter = new AsyncEventWriter(queueSize);
+        }
+    }
+
+    /**
+     * Enables or disables concurrent mode, which allows tests to run on
+     * multiple threads at once.  In this mode the state of each running test
+     * is tracked separately, keyed by the identity of the {@link Test}.  When
+     * a test ends, its complete &lt;testcase&gt; element is rendered on the
+     * thread that ran it, and only then appended to the report as a single
+     * unit.  Thus tests never interleave their output, and only the final
+     * append is serialized (or queued, in asynchronous mode).
+     * <p/>
+     * Trace deduplication is not applied in concurrent mode, as the order in
+     * which traces reach the report is not known when they are rendered.
+     * Must be called before any tests are started.
+     *
+     * @param concurrent true to support concurrently running tests, false
+     *                   for sequential tests only (the default)
+     */
+    public void setConcurrent(boolean concurrent) {
+        if (concurrent) {
+            mRunningCases = new ConcurrentHashMap<Test, RunningCase>();
+        } else if (mRegrouper == null) {
+            mRunningCases = null;
+        }
+    }
+
+    /**
+     * Enables or disables suite regrouping.  Normally a new suite is started
+     * whenever the test class changes, so if the tests of different classes
+     * are interleaved a class is reported as several suites (and in multiFile
+     * mode later files overwrite earlier ones).  With regrouping, rendered
+     * test cases are collected per class, and each class is written as a
+     * single suite when the listener is closed.  Cases are buffered in memory
+     * up to the given budget, beyond which they are spilled to temporary files
+     * in the cache directory of the application under test.
+     * <p/>
+     * As nothing is written to the report until the end of the run, results
+     * are lost if the run crashes.  Trace deduplication is not applied in
+     * this mode.  Must be called before any tests are started.
+     *
+     * @param memoryBudget maximum number of bytes of rendered test cases to
+     *                     hold in memory, or zero to disable regrouping (the
+     *                     default)
+     */
+    public void setRegroupMemoryBudget(int memoryBudget) {
+        if (memoryBudget > 0) {
+            Log.i(LOG_TAG, "Regrouping suites with memory budget " + memoryBudget);
+            mRegrouper = new SuiteRegrouper(memoryBudget, mTargetContext.getCacheDir());
+            if (mRunningCases == null) {
+                mRunningCases = new ConcurrentHashMap<Test, RunningCase>();
+            }
+        } else {
+            mRegrouper = null;
+        }
+    }
+
+    /**
+     * Enables or disables recording of the resources used by each test: the
+     * CPU time and allocations of the thread running the test, and the
+     * number of garbage collections and change in heap usage while it ran.
+     * These are written as properties of each case, with totals for each
+     * suite.  Suite totals come first in the suite, as the Ant JUnit schema
+     * expects (other than for compressed XML, JSON lines and binary reports,
+     * where they come after the cases).  Case properties are an extension
+     * the schema has no place for: they come last in the case, after any
+     * failure or error, and strict consumers may drop them.  The time taken
+     * to sample the resources is also recorded, and is available from
+     * {@link #getResourceSamplingOverhead()}.  Enabling this starts
+     * allocation counting in the runtime, which is stopped by
+     * {@link #close()}.  Must be called before any tests are started.
+     *
+     * @param recordResources true to record resource usage, false to record
+     *                        only durations (the default)
+     */
+    public void setRecordResources(boolean recordResources) {
+        if (recordResources && !mRecordResources) {
+            ResourceUsage.startCounting();
+        }
+        mRecordResources = recordResources;
+    }
+
+    /**
+     * Enables capture of the output of failed tests.  Recent output is held
+     * in fixed-size buffers, one each for standard output and standard
+     * error, and when a test fails the output since it started is written
+     * as &lt;system-out&gt; and &lt;system-err&gt; elements of its
+     * &lt;testcase&gt;.  Passing tests only note the position of the buffers
+     * when they start.  If the output of a test overflows a buffer, only
+     * the end of it is kept.  See {@link OutputCapture} for details.  Capture
+     * is stopped by {@link #close()}.  Must be called before any tests are
+     * started.
+     *
+     * @param bufferSize size of each buffer in bytes, or zero to disable
+     *                   capture (the default)
+     * @param captureLog if true, the log lines of the application are
+     *                   captured, otherwise System.out and System.err are
+     */
+    public void setCaptureOutput(int bufferSize, boolean captureLog) {
+        if (mOutputCapture == null && bufferSize > 0) {
+            Log.i(LOG_TAG, "Capturing " + (captureLog ? "log" : "output") + " of failed tests with buffer size " + bufferSize);
+            mOutputCapture = new OutputCapture(bufferSize);
+            mOutputCapture.start(captureLog);
+        }
+    }
+
+    /**
+     * Sets the fingerprints of test classes, which are recorded as the
+     * fingerprint attribute of their suites.  The fingerprint of a class
+     * changes whenever it, or anything it depends on, changes.  Recording
+     * them allows the host tools to build a baseline for later runs, which
+     * can then carry over the results of unchanged classes (see
+     * {@link #carryOverTest(String, String, long)}).  Must be called before
+     * any tests are started.
+     *
+     * @param fingerprints fingerprints keyed by class name, or null to
+     *                     record none (the default)
+     */
+    public void setFingerprints(Map<String, String> fingerprints) {
+        mFingerprints = fingerprints;
+    }
+
+    /**
+     * Adds a test that was not run, as it passed in a previous run and
+     * nothing it depends on has changed since, to the report.  The test is
+     * reported as passing, with the duration it took when it was run and a
+     * carriedOver attribute.  To keep the tests of a class in one suite,
+     * tests should be carried over a whole class at a time, and before or
+     * after any other tests of the class run.
+     *
+     * @param suiteName name of the suite (test class)
+     * @param caseName  name of the test case
+     * @param duration  duration of the test when it was run, in nanoseconds
+     */
+    public void carryOverTest(final String suiteName, final String caseName, final long duration) {
+        final long callbackStart = System.nanoTime();
+        final long timestamp = System.currentTimeMillis();
+        if (mRunningCases != null) {
+            RunningCase runningCase = new RunningCase(suiteName, caseName, timestamp);
+            runningCase.mStartTime = System.nanoTime();
+            runningCase.mCarriedOver = true;
+            finishCase(runningCase, runningCase.mStartTime + duration);
+        } else if (mAsyncWriter == null) {
+            writeCarriedOverTest(suiteName, caseName, timestamp, callbackStart, duration);
+        } else {
+            mAsyncWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    writeCarriedOverTest(suiteName, caseName, timestamp, callbackStart, duration);
+                }
+            });
+        }
+        mMetrics.record(ReporterMetrics.Event.CARRY_OVER_TEST, callbackStart);
+    }
+
+    private void writeCarriedOverTest(String suiteName, String caseName, long timestamp, long startTime, long duration) {
+        writeStartTest(suiteName, caseName, timestamp);
+        // Carried over cases take no time now, so lay them end to end to
+        // have the suite time account for all of them.
+        if (mSuiteEndTime > startTime) {
+            startTime = mSuiteEndTime;
+        }
+        startTestTiming(startTime);
         try {
-            if (test instanceof TestCase) {
-                TestCase testCase = (TestCase) test;
-                checkForNewSuite(testCase);
-                mSerializer.startTag("", TAG_CASE);
-                mSerializer.attribute("", ATTRIBUTE_CLASS, mCurrentSuite);
-                mSerializer.attribute("", ATTRIBUTE_NAME, testCase.getName());
+            recordTestTime(startTime + duration);
+            mWriter.attribute(ATTRIBUTE_CARRIED_OVER, Boolean.TRUE.toString());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, safeMessage(e));
+        }
+        writeEndTest(startTime + duration, null, null, null);
+    }
 
-                mTimeAlreadyWritten = false;
-                mTestStartTime = System.currentTimeMillis();
+    @Override
+    public void startTest(Test test) {
+        final long callbackStart = System.nanoTime();
+        if (test instanceof TestCase) {
+            final TestCase testCase = (TestCase) test;
+            final String suiteName = testCase.getClass().getName();
+            final String caseName = testCase.getName();
+            final long timestamp = System.currentTimeMillis();
+            if (mRunningCases != null) {
+                RunningCase runningCase = new RunningCase(suiteName, caseName, timestamp);
+                if (mOutputCapture != null) {
+                    runningCase.mOutPosition = mOutputCapture.getOutPosition();
+                    runningCase.mErrPosition = mOutputCapture.getErrPosition();
+                }
+                runningCase.mResources = startResources();
+                runningCase.mStartTime = System.nanoTime();
+                mRunningCases.put(test, runningCase);
+            } else if (mAsyncWriter == null) {
+                writeStartTest(suiteName, caseName, timestamp);
+                resetCase();
+                mCaseResources = startResources();
+                startTestTiming(System.nanoTime());
+            } else {
+                resetCase();
+                mCaseResources = startResources();
+                final long startTime = System.nanoTime();
+                mAsyncWriter.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeStartTest(suiteName, caseName, timestamp);
+                        startTestTiming(startTime);
+                    }
+                });
             }
+        }
+        mMetrics.record(ReporterMetrics.Event.START_TEST, callbackStart);
+    }
+
+    private void resetCase() {
+        mCaseFailed = false;
+        mCaseAttempts = null;
+        if (mOutputCapture != null) {
+            mCaseOutPosition = mOutputCapture.getOutPosition();
+            mCaseErrPosition = mOutputCapture.getErrPosition();
+        }
+    }
+
+    private ResourceUsage startResources() {
+        if (!mRecordResources) {
+            return null;
+        }
+
+        ResourceUsage resources = new ResourceUsage();
+        resources.start();
+        return resources;
+    }
+
+    private void startTestTiming(long startTime) {
+        mTestStartTime = startTime;
+        if (mSuiteStartTime < 0) {
+            mSuiteStartTime = startTime;
+        }
+    }
+
+    private void writeStartTest(String suiteName, String caseName, long timestamp) {
+        try {
+            checkForNewSuite(suiteName, timestamp);
+            mWriter.startTag(TAG_CASE);
+            mWriter.attribute(ATTRIBUTE_CLASS, mCurrentSuite);
+            mWriter.attribute(ATTRIBUTE_NAME, caseName);
+            mTimeAlreadyWritten = false;
+            mProblemAlreadyWritten = false;
+            mSuiteTests++;
         } catch (IOException e) {
             Log.e(LOG_TAG, safeMessage(e));
         }
     }
 
-    private void checkForNewSuite(TestCase testCase) throws IOException {
-        String suiteName = testCase.getClass().getName();
+    private void checkForNewSuite(String suiteName, long timestamp) throws IOException {
         if (mCurrentSuite == null || !mCurrentSuite.equals(suiteName)) {
             if (mCurrentSuite != null) {
                 if (mMultiFile) {
-                    close();
+                    closeReport();
                 } else {
-                    mSerializer.endTag("", TAG_SUITE);
-                    mSerializer.flush();
+                    endSuite();
                 }
             }
 
             openIfRequired(suiteName);
 
-            mSerializer.startTag("", TAG_SUITE);
-            mSerializer.attribute("", ATTRIBUTE_NAME, suiteName);
+            if (usesSummarySlot()) {
+                // Flush the writer so the offset of the new tag is known.
+                mWriter.flush();
+                mSummarySlotOffset = mOutputStream.getBytesWritten() + 1 + TAG_SUITE.length();
+                mWriter.startTag(TAG_SUITE);
+                mSummarySlot.writePlaceholders(mWriter);
+            } else {
+                mWriter.startTag(TAG_SUITE);
+            }
+            mWriter.attribute(ATTRIBUTE_NAME, suiteName);
+            mWriter.attribute(ATTRIBUTE_TIMESTAMP, mTimestampFormat.format(new Date(timestamp)));
+            writeFingerprint(suiteName);
+            if (mRecordResources && usesSummarySlot()) {
+                mPropertiesSlotOffset = mPropertiesSlot.writePlaceholder(mWriter, mOutputStream);
+            }
             mCurrentSuite = suiteName;
+            mSuiteStartTime = -1;
+            mSuiteEndTime = -1;
+            mSuiteTests = 0;
+            mSuiteFailures = 0;
+            mSuiteErrors = 0;
+        }
+    }
+
+    private void writeFingerprint(String suiteName) throws IOException {
+        String fingerprint = mFingerprints == null ? null : mFingerprints.get(suiteName);
+        if (fingerprint != null) {
+            mWriter.attribute(ATTRIBUTE_FINGERPRINT, fingerprint);
+        }
+    }
+
+    /**
+     * @return true if suite summaries are patched into a slot reserved in the
+     *         report file, false if they are left to the writer (which only
+     *         formats other than XML can record at the end of a suite)
+     */
+    private boolean usesSummarySlot() {
+        return mFormat == ReportFormat.XML && !mCompress;
+    }
+
+    private void endSuite() throws IOException {
+        long suiteTime = mSuiteStartTime < 0 || mSuiteEndTime < 0 ? 0 : mSuiteEndTime - mSuiteStartTime;
+        String[] summary = new String[] {
+                Integer.toString(mSuiteTests),
+                Integer.toString(mSuiteFailures),
+                Integer.toString(mSuiteErrors),
+                mDurationFormat.format(suiteTime)
+        };
+        String[] properties = null;
+        if (mRecordResources) {
+            if (mPropertiesSlotOffset < 0) {
+                mSuiteResources.write(mWriter, mDurationFormat);
+            } else {
+                properties = mSuiteResources.getValues(mDurationFormat);
+            }
+            mSuiteResources.reset();
+        }
+        if (mSummarySlotOffset < 0) {
+            mWriter.summary(SUMMARY_ATTRIBUTES, summary);
+        }
+        mWriter.endTag(TAG_SUITE);
+        commit();
+
+        if (mReportPath != null && mSummarySlotOffset >= 0) {
+            Runnable patch = newSuitePatch(mReportPath, mSummarySlotOffset, summary, mPropertiesSlotOffset, properties);
+            if (mMultiFile) {
+                // The file is about to be closed, which patches the summary
+                // off this thread.
+                mClosingPatch = patch;
+            } else {
+                patch.run();
+            }
         }
+        mSummarySlotOffset = -1;
+        mPropertiesSlotOffset = -1;
+    }
+
+    private Runnable newSuitePatch(final File reportPath, final long summaryOffset, final String[] summary,
+                                   final long propertiesOffset, final String[] properties) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mSummarySlot.patch(reportPath, summaryOffset, summary);
+                    if (properties != null) {
+                        mPropertiesSlot.patch(reportPath, propertiesOffset, properties);
+                    }
+                } catch (IOException e) {
+                    // The report is still valid, just without the summary.
+                    Log.e(LOG_TAG, "Unable to write suite summary: " + safeMessage(e));
+                }
+            }
+        };
     }
 
     private void openIfRequired(String suiteName) {
         try {
-            if (mSerializer == null) {
-                mOutputStream = openOutputStream(resolveFileName(suiteName));
-                mSerializer = Xml.newSerializer();
-                mSerializer.setOutput(mOutputStream, ENCODING_UTF_8);
-                mSerializer.startDocument(ENCODING_UTF_8, true);
+            if (mWriter == null) {
+                OutputStream out = openOutputStream(resolveFileName(suiteName));
+                if (mCompress) {
+                    out = Compatibility.newSyncFlushGzipOutputStream(out, GZIP_BUFFER_SIZE);
+                }
+                if (mSpareOutputStream == null) {
+                    mOutputStream = new ReportOutputStream(out);
+                } else {
+                    // Reuse the buffer of the last file closed.
+                    mOutputStream = mSpareOutputStream;
+                    mOutputStream.reset(out);
+                    mSpareOutputStream = null;
+                }
+                mLastCommitTime = SystemClock.uptimeMillis();
+                mWriter = mSpareWriter == null ? mFormat.newWriter() : mSpareWriter;
+                mSpareWriter = null;
+                mWriter.setOutput(mOutputStream);
+                mWriter.startDocument();
+                if (mTraceDeduplicator != null) {
+                    // References may only point within the same file.
+                    mTraceDeduplicator.reset();
+                }
                 if (!mMultiFile) {
-                    mSerializer.startTag("", TAG_SUITES);
+                    mWriter.startTag(TAG_SUITES);
                 }
             }
         } catch (IOException e) {
             Log.e(LOG_TAG, safeMessage(e));
-            throw new RuntimeException("Unable to open serializer: " + e.getMessage(), e);
+            throw new RuntimeException("Unable to open report writer: " + e.getMessage(), e);
         }
     }
 
@@ -199,31 +758,66 @@ public class JUnitReportListener implements TestListener {
     }
 
     private FileOutputStream openOutputStream(String fileName) throws IOException {
+        long openStart = System.nanoTime();
+        FileOutputStream out;
+        mReportPath = resolveReportFile(fileName);
+        if (mFileCloser != null) {
+            mFileCloser.awaitClosed(mReportPath);
+        }
         if (mReportDir == null) {
             Log.d(LOG_TAG, "No reportDir specified. Opening report file '" + fileName + "' in internal storage of app under test");
-            return mTargetContext.openFileOutput(fileName, Context.MODE_PRIVATE);
+            out = mTargetContext.openFileOutput(fileName, Context.MODE_PRIVATE);
         } else {
-            if (mReportDir.contains(TOKEN_EXTERNAL)) {
-                File externalDir = Compatibility.getExternalFilesDir(mTargetContext, null);
-                if (externalDir == null) {
-                    Log.e(LOG_TAG, "reportDir references external storage, but external storage is not available (check mounting and permissions)");
-                    throw new IOException("Cannot access external storage");
-                }
+            Log.d(LOG_TAG, "Opening report file '" + mReportPath.getAbsolutePath() + "'");
+            out = new FileOutputStream(mReportPath);
+        }
+        mMetrics.record(ReporterMetrics.Event.OPEN_FILE, openStart);
+        return out;
+    }
 
-                String externalPath = externalDir.getAbsolutePath();
-                if (externalPath.endsWith("/")) {
-                    externalPath = externalPath.substring(0, externalPath.length() - 1);
-                }
+    /**
+     * Resolves the location of a file in the report directory, creating the
+     * directory if required.  Files are located in the same way as reports:
+     * in the internal storage directory of the app under test if no report
+     * directory was specified, or in the report directory otherwise.  The
+     * report directory is only resolved and checked the first time.
+     *
+     * @param fileName name of the file to resolve
+     * @return the file with the given name in the report directory
+     * @throws IOException if the report directory cannot be accessed or
+     *         created
+     */
+    public File resolveReportFile(String fileName) throws IOException {
+        if (mReportDir == null) {
+            return mTargetContext.getFileStreamPath(fileName);
+        }
+
+        File reportDir = mResolvedReportDir;
+        if (reportDir == null) {
+            reportDir = resolveReportDir();
+            mResolvedReportDir = reportDir;
+        }
+        return new File(reportDir, fileName);
+    }
 
-                mReportDir = mReportDir.replace(TOKEN_EXTERNAL, externalPath);
+    private File resolveReportDir() throws IOException {
+        if (mReportDir.contains(TOKEN_EXTERNAL)) {
+            File externalDir = Compatibility.getExternalFilesDir(mTargetContext, null);
+            if (externalDir == null) {
+                Log.e(LOG_TAG, "reportDir references external storage, but external storage is not available (check mounting and permissions)");
+                throw new IOException("Cannot access external storage");
             }
 
-            ensureDirectoryExists(mReportDir);
+            String externalPath = externalDir.getAbsolutePath();
+            if (externalPath.endsWith("/")) {
+                externalPath = externalPath.substring(0, externalPath.length() - 1);
+            }
 
-            File outputFile = new File(mReportDir, fileName);
-            Log.d(LOG_TAG, "Opening report file '" + outputFile.getAbsolutePath() + "'");
-            return new FileOutputStream(outputFile);
+            mReportDir = mReportDir.replace(TOKEN_EXTERNAL, externalPath);
         }
+
+        ensureDirectoryExists(mReportDir);
+        return new File(mReportDir);
     }
 
     private void ensureDirectoryExists(String path) throws IOException {
@@ -237,74 +831,411 @@ public class JUnitReportListener implements TestListener {
 
     @Override
     public void addError(Test test, Throwable error) {
-        addProblem(TAG_ERROR, error);
+        final long callbackStart = System.nanoTime();
+        addProblem(test, TAG_ERROR, error);
+        mMetrics.record(ReporterMetrics.Event.ADD_ERROR, callbackStart);
     }
 
     @Override
     public void addFailure(Test test, AssertionFailedError error) {
-        addProblem(TAG_FAILURE, error);
+        final long callbackStart = System.nanoTime();
+        addProblem(test, TAG_FAILURE, error);
+        mMetrics.record(ReporterMetrics.Event.ADD_FAILURE, callbackStart);
+    }
+
+    private void addProblem(Test test, final String tag, final Throwable error) {
+        final long time = System.nanoTime();
+        if (mRunningCases != null) {
+            RunningCase runningCase = mRunningCases.get(test);
+            if (runningCase != null) {
+                runningCase.addProblem(tag, error, time);
+            }
+        } else if (mAsyncWriter == null) {
+            mCaseFailed = true;
+            writeProblem(tag, error, time);
+        } else {
+            mCaseFailed = true;
+            // The trace is rendered on the writer thread: throwables are not
+            // expected to change once reported.
+            mAsyncWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    writeProblem(tag, error, time);
+                }
+            });
+        }
     }
 
-    private void addProblem(String tag, Throwable error) {
+    private void writeProblem(String tag, Throwable error, long time) {
         try {
-            recordTestTime();
-
-            mSerializer.startTag("", tag);
-            mSerializer.attribute("", ATTRIBUTE_MESSAGE, safeMessage(error));
-            mSerializer.attribute("", ATTRIBUTE_TYPE, error.getClass().getName());
-            StringWriter w = new StringWriter();
-            error.printStackTrace(mFilterTraces ? new FilteringWriter(w) : new PrintWriter(w));
-            mSerializer.text(w.toString());
-            mSerializer.endTag("", tag);
-            mSerializer.flush();
+            recordTestTime(time);
+            if (tag.equals(TAG_FAILURE)) {
+                mSuiteFailures++;
+            } else {
+                mSuiteErrors++;
+            }
+
+            writeProblemElement(mWriter, tag, error, mTraceDeduplicator);
+            mProblemAlreadyWritten = true;
+            // Failures are always committed so they survive a crash.
+            commit();
         } catch (IOException e) {
             Log.e(LOG_TAG, safeMessage(e));
         }
     }
 
-    private void recordTestTime() throws IOException {
+    private void writeProblemElement(ReportWriter writer, String tag, Throwable error, TraceDeduplicator deduplicator) throws IOException {
+        writer.startTag(tag);
+        writer.attribute(ATTRIBUTE_MESSAGE, truncatedMessage(error));
+        writer.attribute(ATTRIBUTE_TYPE, error.getClass().getName());
+        TraceDeduplicator.Entry traceEntry = null;
+        if (deduplicator != null) {
+            traceEntry = deduplicator.record(error, mFilterTraces ? mTraceFilter : null);
+        }
+
+        if (traceEntry != null && traceEntry.getCount() > 1) {
+            writer.attribute(ATTRIBUTE_TRACE_REF, Integer.toString(traceEntry.getId()));
+            writer.attribute(ATTRIBUTE_OCCURRENCE, Integer.toString(traceEntry.getCount()));
+        } else {
+            if (traceEntry != null) {
+                writer.attribute(ATTRIBUTE_TRACE_ID, Integer.toString(traceEntry.getId()));
+            }
+
+            TextChunkWriter w = new TextChunkWriter(writer, mMaxTraceLength);
+            if (mFilterTraces) {
+                mTraceFilter.printStackTrace(error, w);
+            } else {
+                error.printStackTrace(new PrintWriter(w));
+            }
+            w.close();
+        }
+        writer.endTag(tag);
+    }
+
+    /**
+     * Records a failed attempt at a test that is being retried.  Attempts are
+     * held until the test ends, when it is known whether it eventually
+     * passed.
+     */
+    @Override
+    public void retryTest(Test test, Throwable error, long duration) {
+        final long callbackStart = System.nanoTime();
+        if (test instanceof TestCase) {
+            Attempt attempt = new Attempt(error instanceof AssertionFailedError ? TAG_FAILURE : TAG_ERROR, error, duration);
+            if (mRunningCases != null) {
+                RunningCase runningCase = mRunningCases.get(test);
+                if (runningCase != null) {
+                    runningCase.addAttempt(attempt);
+                }
+            } else {
+                if (mCaseAttempts == null) {
+                    mCaseAttempts = new ArrayList<Attempt>(1);
+                }
+                mCaseAttempts.add(attempt);
+            }
+        }
+        mMetrics.record(ReporterMetrics.Event.RETRY_TEST, callbackStart);
+    }
+
+    private void writeAttempts(ReportWriter writer, List<Attempt> attempts, boolean failed, DurationFormat durationFormat) throws IOException {
+        for (Attempt attempt: attempts) {
+            String tag;
+            if (attempt.mTag.equals(TAG_FAILURE)) {
+                tag = failed ? TAG_RERUN_FAILURE : TAG_FLAKY_FAILURE;
+            } else {
+                tag = failed ? TAG_RERUN_ERROR : TAG_FLAKY_ERROR;
+            }
+
+            writer.startTag(tag);
+            writer.attribute(ATTRIBUTE_MESSAGE, truncatedMessage(attempt.mError));
+            writer.attribute(ATTRIBUTE_TYPE, attempt.mError.getClass().getName());
+            durationFormat.writeAttribute(writer, ATTRIBUTE_TIME, attempt.mDuration);
+            writer.startTag(TAG_STACK_TRACE);
+            TextChunkWriter w = new TextChunkWriter(writer, mMaxTraceLength);
+            if (mFilterTraces) {
+                mTraceFilter.printStackTrace(attempt.mError, w);
+            } else {
+                attempt.mError.printStackTrace(new PrintWriter(w));
+            }
+            w.close();
+            writer.endTag(TAG_STACK_TRACE);
+            writer.endTag(tag);
+        }
+    }
+
+    private void recordTestTime(long time) throws IOException {
+        if (time > mSuiteEndTime) {
+            mSuiteEndTime = time;
+        }
         if (!mTimeAlreadyWritten) {
             mTimeAlreadyWritten = true;
-            mSerializer.attribute("", ATTRIBUTE_TIME, String.format(Locale.ENGLISH, "%.3f",
-                    (System.currentTimeMillis() - mTestStartTime) / 1000.));
+            mDurationFormat.writeAttribute(mWriter, ATTRIBUTE_TIME, time - mTestStartTime);
         }
     }
 
     @Override
     public void endTest(Test test) {
+        final long callbackStart = System.nanoTime();
+        if (test instanceof TestCase) {
+            final long time = System.nanoTime();
+            if (mRunningCases != null) {
+                RunningCase runningCase = mRunningCases.remove(test);
+                if (runningCase != null) {
+                    if (runningCase.mResources != null) {
+                        runningCase.mResources.end();
+                    }
+                    if (mOutputCapture != null && runningCase.hasProblems()) {
+                        runningCase.mOutput = mOutputCapture.snapshot(runningCase.mOutPosition, runningCase.mErrPosition);
+                    }
+                    finishCase(runningCase, time);
+                }
+            } else {
+                final ResourceUsage resources = mCaseResources;
+                mCaseResources = null;
+                final List<Attempt> attempts = mCaseAttempts;
+                mCaseAttempts = null;
+                if (resources != null) {
+                    resources.end();
+                }
+                // Output is only read out of the capture for failed tests.
+                final OutputCapture.Snapshot output = mOutputCapture != null && mCaseFailed ? mOutputCapture.snapshot(mCaseOutPosition, mCaseErrPosition) : null;
+
+                if (mAsyncWriter == null) {
+                    writeEndTest(time, resources, attempts, output);
+                } else {
+                    mAsyncWriter.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            writeEndTest(time, resources, attempts, output);
+                        }
+                    });
+                }
+            }
+        }
+        mMetrics.record(ReporterMetrics.Event.END_TEST, callbackStart);
+    }
+
+    private void writeEndTest(long time, ResourceUsage resources, List<Attempt> attempts, OutputCapture.Snapshot output) {
+        try {
+            recordTestTime(time);
+            if (attempts != null) {
+                writeAttempts(mWriter, attempts, mProblemAlreadyWritten, mDurationFormat);
+            }
+            if (resources != null) {
+                resources.write(mWriter, mDurationFormat);
+                mSuiteResources.add(resources);
+                mTotalResources.add(resources);
+            }
+            if (output != null) {
+                output.write(mWriter);
+            }
+            mWriter.endTag(TAG_CASE);
+            mTestsSinceCommit++;
+            if (mFlushPolicy.isDue(mTestsSinceCommit, mFlushPolicy.isTimed() ? SystemClock.uptimeMillis() - mLastCommitTime : 0)) {
+                commit();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, safeMessage(e));
+        }
+    }
+
+    private void finishCase(final RunningCase runningCase, final long endTime) {
+        CaseRenderer renderer = mRenderers.get();
+        try {
+            renderer.render(runningCase, endTime);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, safeMessage(e));
+            return;
+        }
+
+        if (mAsyncWriter == null) {
+            synchronized (mWriteLock) {
+                writeCase(runningCase, endTime, renderer.getBytes(), renderer.getLength());
+            }
+        } else {
+            final byte[] bytes = renderer.copyBytes();
+            mAsyncWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    writeCase(runningCase, endTime, bytes, bytes.length);
+                }
+            });
+        }
+    }
+
+    private void writeCase(RunningCase runningCase, long endTime, byte[] bytes, int length) {
+        if (runningCase.mResources != null) {
+            mTotalResources.add(runningCase.mResources);
+        }
+
+        if (mRegrouper != null) {
+            if (runningCase.mResources != null) {
+                ResourceUsage groupResources = mGroupResources.get(runningCase.mSuiteName);
+                if (groupResources == null) {
+                    groupResources = new ResourceUsage();
+                    mGroupResources.put(runningCase.mSuiteName, groupResources);
+                }
+                groupResources.add(runningCase.mResources);
+            }
+
+            try {
+                mRegrouper.add(runningCase.mSuiteName, runningCase.mTimestamp, runningCase.mStartTime, endTime,
+                        runningCase.countProblems(TAG_FAILURE), runningCase.countProblems(TAG_ERROR), bytes, length);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, safeMessage(e));
+            }
+            return;
+        }
+
         try {
-            if (test instanceof TestCase) {
-                recordTestTime();
-                mSerializer.endTag("", TAG_CASE);
-                mSerializer.flush();
+            checkForNewSuite(runningCase.mSuiteName, runningCase.mTimestamp);
+            // Complete any pending start tag before appending raw output.
+            mWriter.flush();
+            mOutputStream.write(bytes, 0, length);
+
+            mSuiteTests++;
+            if (mSuiteStartTime < 0 || runningCase.mStartTime < mSuiteStartTime) {
+                mSuiteStartTime = runningCase.mStartTime;
+            }
+            if (endTime > mSuiteEndTime) {
+                mSuiteEndTime = endTime;
+            }
+
+            if (runningCase.mResources != null) {
+                mSuiteResources.add(runningCase.mResources);
+            }
+
+            int failures = runningCase.countProblems(TAG_FAILURE);
+            int errors = runningCase.countProblems(TAG_ERROR);
+            mSuiteFailures += failures;
+            mSuiteErrors += errors;
+            if (failures + errors > 0) {
+                // As in sequential mode, failures are committed immediately.
+                commit();
+            } else {
+                mTestsSinceCommit++;
+                if (mFlushPolicy.isDue(mTestsSinceCommit, mFlushPolicy.isTimed() ? SystemClock.uptimeMillis() - mLastCommitTime : 0)) {
+                    commit();
+                }
             }
         } catch (IOException e) {
             Log.e(LOG_TAG, safeMessage(e));
         }
     }
 
+    private void commit() throws IOException {
+        mWriter.flush();
+        mOutputStream.commit();
+        mTestsSinceCommit = 0;
+        if (mFlushPolicy.isTimed()) {
+            mLastCommitTime = SystemClock.uptimeMillis();
+        }
+    }
+
     /**
      * Releases all resources associated with this listener.  Must be called
-     * when the listener is finished with.
+     * when the listener is finished with.  In asynchronous mode this first
+     * waits for all queued events to be written.
      */
     public void close() {
-        if (mSerializer != null) {
+        final long callbackStart = System.nanoTime();
+        if (mRunningCases != null) {
+            // Write out anything still running rather than losing it.
+            for (RunningCase runningCase: mRunningCases.values()) {
+                // Resource usage cannot be sampled off the test's thread.
+                runningCase.mResources = null;
+                finishCase(runningCase, System.nanoTime());
+            }
+            mRunningCases.clear();
+        }
+
+        if (mAsyncWriter == null) {
+            synchronized (mWriteLock) {
+                writeRegroupedSuites();
+                closeReport();
+            }
+        } else {
+            mAsyncWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    writeRegroupedSuites();
+                    closeReport();
+                }
+            });
+            mAsyncWriter.shutdown(ASYNC_SHUTDOWN_TIMEOUT);
+            mAsyncWriter = null;
+        }
+
+        if (mRecordResources) {
+            ResourceUsage.stopCounting();
+            mRecordResources = false;
+        }
+        if (mOutputCapture != null) {
+            mOutputCapture.stop();
+            mOutputCapture = null;
+        }
+        if (mFileCloser != null) {
+            mFileCloser.shutdown(ASYNC_SHUTDOWN_TIMEOUT);
+            mFileCloser = null;
+        }
+        mMetrics.record(ReporterMetrics.Event.CLOSE, callbackStart);
+    }
+
+    private void writeRegroupedSuites() {
+        if (mRegrouper == null) {
+            return;
+        }
+
+        try {
+            for (SuiteRegrouper.SuiteGroup group: mRegrouper.getGroups()) {
+                openIfRequired(group.getName());
+                mWriter.startTag(TAG_SUITE);
+                mWriter.attribute(ATTRIBUTE_TESTS, Integer.toString(group.getTests()));
+                mWriter.attribute(ATTRIBUTE_FAILURES, Integer.toString(group.getFailures()));
+                mWriter.attribute(ATTRIBUTE_ERRORS, Integer.toString(group.getErrors()));
+                mDurationFormat.writeAttribute(mWriter, ATTRIBUTE_TIME, group.getDuration());
+                mWriter.attribute(ATTRIBUTE_NAME, group.getName());
+                mWriter.attribute(ATTRIBUTE_TIMESTAMP, mTimestampFormat.format(new Date(group.getTimestamp())));
+                writeFingerprint(group.getName());
+                ResourceUsage groupResources = mGroupResources.get(group.getName());
+                if (groupResources != null) {
+                    groupResources.write(mWriter, mDurationFormat);
+                }
+                mWriter.flush();
+                group.writeCases(mOutputStream);
+                mWriter.endTag(TAG_SUITE);
+                commit();
+                if (mMultiFile) {
+                    closeReport();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, safeMessage(e));
+        } finally {
+            mRegrouper.clear();
+            mGroupResources.clear();
+        }
+    }
+
+    private void closeReport() {
+        if (mWriter != null) {
             try {
                 // Do this just in case endTest() was not called due to a crash in native code.
-                if (TAG_CASE.equals(mSerializer.getName())) {
-                    mSerializer.endTag("", TAG_CASE);
+                if (TAG_CASE.equals(mWriter.getName())) {
+                    mWriter.endTag(TAG_CASE);
                 }
 
                 if (mCurrentSuite != null) {
-                    mSerializer.endTag("", TAG_SUITE);
+                    endSuite();
                 }
 
                 if (!mMultiFile) {
-                    mSerializer.endTag("", TAG_SUITES);
+                    mWriter.endTag(TAG_SUITES);
                 }
-                mSerializer.endDocument();
-                mSerializer.flush();
-                mSerializer = null;
+                mWriter.endDocument();
+                mWriter.flush();
+                mSpareWriter = mWriter;
+                mWriter = null;
             } catch (IOException e) {
                 Log.e(LOG_TAG, safeMessage(e));
             }
@@ -312,37 +1243,251 @@ public class JUnitReportListener implements TestListener {
 
         if (mOutputStream != null) {
             try {
-                mOutputStream.close();
-                mOutputStream = null;
+                mOutputStream.commit();
             } catch (IOException e) {
                 Log.e(LOG_TAG, safeMessage(e));
             }
+
+            mTotalBytesWritten += mOutputStream.getBytesWritten();
+            mTotalCommitCount += mOutputStream.getCommitCount();
+            mMetrics.setOutput(mTotalBytesWritten, mTotalCommitCount);
+            closeFile(mReportPath, mOutputStream.release(), mClosingPatch);
+            mClosingPatch = null;
+            mSpareOutputStream = mOutputStream;
+            mOutputStream = null;
+            Log.d(LOG_TAG, "Report output so far: " + mTotalBytesWritten + " bytes in " + mTotalCommitCount + " flushes");
         }
     }
 
+    /**
+     * Closes a report file once all output has been committed to it.  In
+     * multiFile mode, where a file is closed at every change of suite, this
+     * is done on a background thread.
+     */
+    private void closeFile(final File reportPath, final OutputStream out, final Runnable patch) {
+        Runnable close = new Runnable() {
+            @Override
+            public void run() {
+                if (patch != null) {
+                    patch.run();
+                }
+
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, safeMessage(e));
+                }
+            }
+        };
+
+        if (mMultiFile) {
+            if (mFileCloser == null) {
+                mFileCloser = new ReportFileCloser();
+            }
+            mFileCloser.submit(reportPath, close);
+        } else {
+            close.run();
+        }
+    }
+
+    /**
+     * @return the total number of report bytes written by this listener
+     */
+    public long getBytesWritten() {
+        return mTotalBytesWritten + (mOutputStream == null ? 0 : mOutputStream.getBytesWritten());
+    }
+
+    /**
+     * @return the total number of times report output has been flushed to
+     *         storage by this listener
+     */
+    public int getFlushCount() {
+        return mTotalCommitCount + (mOutputStream == null ? 0 : mOutputStream.getCommitCount());
+    }
+
+    /**
+     * @return the total time spent sampling the resource usage of tests, in
+     *         nanoseconds (zero if resources are not recorded)
+     */
+    public long getResourceSamplingOverhead() {
+        return mTotalResources.getOverhead();
+    }
+
+    /**
+     * @return measurements of the overhead of this listener, complete once
+     *         the listener is closed
+     */
+    ReporterMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    private String truncatedMessage(Throwable error) {
+        String message = error.getMessage();
+        if (message == null) {
+            return safeMessage(error);
+        }
+
+        String type = error.getClass().getName();
+        int available = mMaxMessageLength - type.length() - 2;
+        if (mMaxMessageLength <= 0 || message.length() <= available) {
+            return type + ": " + message;
+        }
+
+        available = Math.max(0, available);
+        return type + ": " + message.substring(0, available) + "... [truncated " + (message.length() - available) + " more characters]";
+    }
+
     private String safeMessage(Throwable error) {
         String message = error.getMessage();
         return error.getClass().getName() + ": " + (message == null ? "<null>" : message);
     }
 
     /**
-     * Wrapper around a print writer that filters out common noise from stack
-     * traces, making it easier to see the actual failure.
+     * State of a test that is running in concurrent mode.
      */
-    private static class FilteringWriter extends PrintWriter {
-        public FilteringWriter(Writer out) {
-            super(out);
+    private static final class RunningCase {
+        private final String mSuiteName;
+        private final String mCaseName;
+        private final long mTimestamp;
+        private final List<Problem> mProblems = new ArrayList<Problem>(1);
+        private List<Attempt> mAttempts;
+        // Set as the test starts, before it is shared.
+        private long mStartTime;
+        private long mOutPosition;
+        private long mErrPosition;
+        private ResourceUsage mResources;
+        private OutputCapture.Snapshot mOutput;
+        private boolean mCarriedOver;
+
+        RunningCase(String suiteName, String caseName, long timestamp) {
+            this.mSuiteName = suiteName;
+            this.mCaseName = caseName;
+            this.mTimestamp = timestamp;
         }
 
-        @Override
-        public void println(String s) {
-            for (String filtered : DEFAULT_TRACE_FILTERS) {
-                if (s.contains(filtered)) {
-                    return;
+        synchronized void addProblem(String tag, Throwable error, long time) {
+            mProblems.add(new Problem(tag, error, time));
+        }
+
+        synchronized void addAttempt(Attempt attempt) {
+            if (mAttempts == null) {
+                mAttempts = new ArrayList<Attempt>(1);
+            }
+            mAttempts.add(attempt);
+        }
+
+        synchronized List<Attempt> getAttempts() {
+            return mAttempts;
+        }
+
+        synchronized boolean hasProblems() {
+            return !mProblems.isEmpty();
+        }
+
+        synchronized List<Problem> getProblems() {
+            return new ArrayList<Problem>(mProblems);
+        }
+
+        synchronized int countProblems(String tag) {
+            int count = 0;
+            for (Problem problem: mProblems) {
+                if (problem.mTag.equals(tag)) {
+                    count++;
                 }
             }
+            return count;
+        }
+    }
+
+    /**
+     * An error or failure reported for a running test.
+     */
+    private static final class Problem {
+        private final String mTag;
+        private final Throwable mError;
+        private final long mTime;
+
+        Problem(String tag, Throwable error, long time) {
+            this.mTag = tag;
+            this.mError = error;
+            this.mTime = time;
+        }
+    }
+
+    /**
+     * A failed attempt at a test that was retried.
+     */
+    private static final class Attempt {
+        private final String mTag;
+        private final Throwable mError;
+        private final long mDuration;
+
+        Attempt(String tag, Throwable error, long duration) {
+            this.mTag = tag;
+            this.mError = error;
+            this.mDuration = duration;
+        }
+    }
+
+    /**
+     * Renders complete &lt;testcase&gt; elements into a reusable buffer.  Each
+     * thread running tests in concurrent mode has its own renderer.
+     */
+    private final class CaseRenderer {
+        private final ExposedByteArrayOutputStream mBuffer = new ExposedByteArrayOutputStream();
+        private final ReportWriter mCaseWriter = mFormat.newWriter();
+        private final DurationFormat mCaseDurationFormat = new DurationFormat(mTimePrecision);
+
+        void render(RunningCase runningCase, long endTime) throws IOException {
+            mBuffer.reset();
+            mCaseWriter.setOutput(mBuffer);
+            mCaseWriter.startTag(TAG_CASE);
+            mCaseWriter.attribute(ATTRIBUTE_CLASS, runningCase.mSuiteName);
+            mCaseWriter.attribute(ATTRIBUTE_NAME, runningCase.mCaseName);
+
+            // As in sequential mode, the time is up to the first problem.
+            List<Problem> problems = runningCase.getProblems();
+            long time = problems.isEmpty() ? endTime : problems.get(0).mTime;
+            mCaseDurationFormat.writeAttribute(mCaseWriter, ATTRIBUTE_TIME, time - runningCase.mStartTime);
+            if (runningCase.mCarriedOver) {
+                mCaseWriter.attribute(ATTRIBUTE_CARRIED_OVER, Boolean.TRUE.toString());
+            }
+            for (Problem problem: problems) {
+                writeProblemElement(mCaseWriter, problem.mTag, problem.mError, null);
+            }
+            List<Attempt> attempts = runningCase.getAttempts();
+            if (attempts != null) {
+                writeAttempts(mCaseWriter, attempts, !problems.isEmpty(), mCaseDurationFormat);
+            }
+            if (runningCase.mResources != null) {
+                runningCase.mResources.write(mCaseWriter, mCaseDurationFormat);
+            }
+            if (runningCase.mOutput != null) {
+                runningCase.mOutput.write(mCaseWriter);
+            }
+            mCaseWriter.endTag(TAG_CASE);
+            mCaseWriter.flush();
+        }
+
+        byte[] getBytes() {
+            return mBuffer.getBuffer();
+        }
+
+        int getLength() {
+            return mBuffer.size();
+        }
 
-            super.println(s);
+        byte[] copyBytes() {
+            return mBuffer.toByteArray();
+        }
+    }
+
+    /**
+     * Byte array stream that gives access to its buffer without a copy.
+     */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
         }
     }
 }
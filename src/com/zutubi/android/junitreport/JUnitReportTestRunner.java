@@ -16,6 +16,20 @@
 
 package com.zutubi.android.junitreport;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestResult;
+
 import android.os.Bundle;
 import android.test.AndroidTestRunner;
 import android.test.InstrumentationTestRunner;
@@ -52,19 +66,187 @@ public class JUnitReportTestRunner extends InstrumentationTestRunner {
      * methods).
      */
     private static final String ARG_FILTER_TRACES = "filterTraces";
+    /**
+     * Comma-separated list of extra stack trace filter patterns, applied on top of the defaults
+     * when traces are filtered.  See {@link StackTraceFilter#withPatterns(String)}.
+     */
+    private static final String ARG_TRACE_FILTERS = "traceFilters";
     /**
      * If true, produce a separate file for each test suite.  By default a single report is created
      * for all suites.
      */
     private static final String ARG_MULTI_FILE = "multiFile";
     /**
-     * Default name of the single report file.
+     * If true, report files are gzip compressed.  Also enabled when the reportFile ends with .gz.
+     */
+    private static final String ARG_COMPRESS = "compress";
+    /**
+     * Format of the report: xml (the default), json (JSON lines) or binary.  See
+     * {@link ReportFormat}.
+     */
+    private static final String ARG_FORMAT = "format";
+    /**
+     * If true, repeated stack traces are written in full only once per report file, with later
+     * occurrences referring back to the first.
+     */
+    private static final String ARG_DEDUPLICATE_TRACES = "deduplicateTraces";
+    /**
+     * How often to flush the report to storage: test (the default), suite, a number of tests, or
+     * a number of milliseconds followed by "ms".  See {@link FlushPolicy}.
+     */
+    private static final String ARG_FLUSH_POLICY = "flushPolicy";
+    /**
+     * Precision of durations in the report: ms (the default) or us.
+     */
+    private static final String ARG_TIME_PRECISION = "timePrecision";
+    /**
+     * If true, the report is serialized and written on a separate thread rather than the thread
+     * running the tests.
+     */
+    private static final String ARG_ASYNC = "async";
+    /**
+     * If true, the listener supports tests that run concurrently on multiple threads.
+     */
+    private static final String ARG_CONCURRENT = "concurrent";
+    /**
+     * If true, all tests of a class are reported in a single suite even when the tests of
+     * different classes are interleaved.
+     */
+    private static final String ARG_REGROUP_SUITES = "regroupSuites";
+    /**
+     * In regroupSuites mode, the maximum number of bytes of test results to hold in memory before
+     * spilling to temporary files.
+     */
+    private static final String ARG_REGROUP_MEMORY = "regroupMemory";
+    /**
+     * In async mode, the maximum number of report events that may be queued before the test thread
+     * waits for the writer to catch up.
+     */
+    private static final String ARG_ASYNC_QUEUE_SIZE = "asyncQueueSize";
+    /**
+     * Maximum length, in characters, of a failure message.  Longer messages are truncated.  Zero
+     * means no limit.
+     */
+    private static final String ARG_MAX_MESSAGE_LENGTH = "maxMessageLength";
+    /**
+     * Maximum length, in characters, of a stack trace.  Longer traces are truncated.  Zero means
+     * no limit.
+     */
+    private static final String ARG_MAX_TRACE_LENGTH = "maxTraceLength";
+    /**
+     * If true, a compact record of each test is sent to the host through the instrumentation
+     * status channel as soon as the test finishes.  See {@link LiveResultListener}.
+     */
+    private static final String ARG_LIVE_RESULTS = "liveResults";
+    /**
+     * If true, each test is recorded in a crash-resilient journal as it starts and finishes.  See
+     * {@link ReportJournal}.
+     */
+    private static final String ARG_JOURNAL = "journal";
+    /**
+     * If true, the CPU time, allocations, garbage collections and heap growth of each test are
+     * recorded as properties in the report.
+     */
+    private static final String ARG_RECORD_RESOURCES = "recordResources";
+    /**
+     * If true, the recent standard output and error of each failed test are included in the
+     * report.  See {@link OutputCapture}.
+     */
+    private static final String ARG_CAPTURE_OUTPUT = "captureOutput";
+    /**
+     * If true, the recent log lines of the application are captured in place of standard output
+     * and error.  Implies captureOutput.
+     */
+    private static final String ARG_CAPTURE_LOG = "captureLog";
+    /**
+     * Size, in bytes, of each of the buffers holding captured standard output and error.
+     */
+    private static final String ARG_CAPTURE_SIZE = "captureSize";
+    /**
+     * Maximum number of times to run a test: failed tests are retried in the same process until
+     * they pass or this many attempts have been made.  See {@link RetryingTestResult}.
      */
-    private static final String DEFAULT_SINGLE_REPORT_FILE = "junit-report.xml";
+    private static final String ARG_MAX_ATTEMPTS = "maxAttempts";
     /**
-     * Default name pattern for multiple report files.
+     * Number of shards to split the tests into.  This run executes only the tests of the shard
+     * given by shardIndex.
      */
-    private static final String DEFAULT_MULTI_REPORT_FILE = "junit-report-" + JUnitReportListener.TOKEN_SUITE + ".xml";
+    private static final String ARG_NUM_SHARDS = "numShards";
+    /**
+     * Index, from 0, of the shard to run when numShards is specified.
+     */
+    private static final String ARG_SHARD_INDEX = "shardIndex";
+    /**
+     * Path of a file of test durations from previous runs, used to balance shards.  Relative paths
+     * are resolved against the report directory.  See {@link DurationHistory}.
+     */
+    private static final String ARG_DURATION_HISTORY = "durationHistory";
+    /**
+     * If true, tests already run according to the journal of a previous run are skipped, and the
+     * results of this run are added to that journal.  Implies journal.
+     */
+    private static final String ARG_RESUME = "resume";
+    /**
+     * Path of a manifest of class fingerprints for the build under test, recorded on suites in the
+     * report.  Relative paths are resolved against the report directory.  See
+     * {@link ClassManifest}.
+     */
+    private static final String ARG_CLASS_MANIFEST = "classManifest";
+    /**
+     * Path of a baseline of tests that passed in previous runs.  With classManifest, test classes
+     * that are unchanged and passed in the baseline are not run, but carried over into the report.
+     * Relative paths are resolved against the report directory.  See {@link TestBaseline}.
+     */
+    private static final String ARG_BASELINE = "baseline";
+    /**
+     * If specified, path of a file to write measurements of the reporter's own overhead to, when
+     * the run finishes.  Relative paths are resolved against the report directory.  A summary is
+     * always added to the results.  See {@link ReporterMetrics}.
+     */
+    private static final String ARG_METRICS_FILE = "metricsFile";
+    /**
+     * Default name of the single report file, without an extension.
+     */
+    private static final String DEFAULT_SINGLE_REPORT_FILE = "junit-report";
+    /**
+     * Default name pattern for multiple report files, without an extension.
+     */
+    private static final String DEFAULT_MULTI_REPORT_FILE = "junit-report-" + JUnitReportListener.TOKEN_SUITE;
+    /**
+     * Suffix added to default report file names when sharding.
+     */
+    private static final String DEFAULT_SHARD_SUFFIX = "-shard" + JUnitReportListener.TOKEN_SHARD;
+    /**
+     * Default size of the event queue in async mode.
+     */
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1024;
+    /**
+     * Default memory budget in regroupSuites mode.
+     */
+    private static final int DEFAULT_REGROUP_MEMORY = 4 * 1024 * 1024;
+    /**
+     * Default size of each output capture buffer.
+     */
+    private static final int DEFAULT_CAPTURE_SIZE = 64 * 1024;
+    /**
+     * Extension of compressed report files.
+     */
+    private static final String EXTENSION_GZIP = ".gz";
+    /**
+     * Extension added to the report file name to form the journal file name.
+     */
+    private static final String EXTENSION_JOURNAL = ".journal";
+    /**
+     * Key of the human-readable summary of reporter overhead in the results.
+     */
+    private static final String REPORT_KEY_METRICS = "junitReportMetrics";
+    /**
+     * Key of the total time spent in the reporter, in nanoseconds, in the results.
+     */
+    private static final String REPORT_KEY_OVERHEAD = "junitReportOverheadNanos";
+
+    private static final String TIME_PRECISION_MILLISECONDS = "ms";
+    private static final String TIME_PRECISION_MICROSECONDS = "us";
 
     private static final String LOG_TAG = JUnitReportTestRunner.class.getSimpleName();
     
@@ -72,7 +254,41 @@ public class JUnitReportTestRunner extends InstrumentationTestRunner {
     private String mReportFile;
     private String mReportDir;
     private boolean mFilterTraces = true;
+    private String mTraceFilters;
     private boolean mMultiFile = false;
+    private boolean mCompress = false;
+    private ReportFormat mFormat = ReportFormat.XML;
+    private boolean mDeduplicateTraces = false;
+    private FlushPolicy mFlushPolicy = FlushPolicy.PER_TEST;
+    private TimeUnit mTimePrecision = TimeUnit.MILLISECONDS;
+    private boolean mAsync = false;
+    private boolean mConcurrent = false;
+    private boolean mRegroupSuites = false;
+    private int mRegroupMemory = DEFAULT_REGROUP_MEMORY;
+    private int mAsyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+    private int mMaxMessageLength = JUnitReportListener.DEFAULT_MAX_MESSAGE_LENGTH;
+    private int mMaxTraceLength = JUnitReportListener.DEFAULT_MAX_TRACE_LENGTH;
+    private boolean mLiveResults = false;
+    private boolean mJournal = false;
+    private boolean mResume = false;
+    private boolean mRecordResources = false;
+    private boolean mCaptureOutput = false;
+    private boolean mCaptureLog = false;
+    private int mCaptureSize = DEFAULT_CAPTURE_SIZE;
+    private int mMaxAttempts = 1;
+    private int mNumShards = 1;
+    private int mShardIndex = 0;
+    private String mDurationHistory;
+    private String mClassManifest;
+    private String mBaseline;
+    private String mMetricsFile;
+    private AndroidTestRunner mRunner;
+    private ReportJournal mReportJournal;
+    private Set<String> mFinishedTests;
+    private boolean mTestsSelected;
+    // Tests removed to be carried over, with their durations in nanoseconds,
+    // reported when the run starts.
+    private final Map<TestCase, Long> mCarriedOverTests = new LinkedHashMap<TestCase, Long>();
 
     @Override
     public void onCreate(Bundle arguments) {
@@ -81,15 +297,54 @@ public class JUnitReportTestRunner extends InstrumentationTestRunner {
             mReportFile = arguments.getString(ARG_REPORT_FILE);
             mReportDir = arguments.getString(ARG_REPORT_DIR);
             mFilterTraces = getBooleanArgument(arguments, ARG_FILTER_TRACES, true);
+            mTraceFilters = arguments.getString(ARG_TRACE_FILTERS);
             mMultiFile = getBooleanArgument(arguments, ARG_MULTI_FILE, false);
+            mCompress = getBooleanArgument(arguments, ARG_COMPRESS, false);
+            mFormat = getFormatArgument(arguments);
+            mDeduplicateTraces = getBooleanArgument(arguments, ARG_DEDUPLICATE_TRACES, false);
+            mFlushPolicy = getFlushPolicyArgument(arguments);
+            mTimePrecision = getTimePrecisionArgument(arguments);
+            mAsync = getBooleanArgument(arguments, ARG_ASYNC, false);
+            mConcurrent = getBooleanArgument(arguments, ARG_CONCURRENT, false);
+            mRegroupSuites = getBooleanArgument(arguments, ARG_REGROUP_SUITES, false);
+            mRegroupMemory = getIntArgument(arguments, ARG_REGROUP_MEMORY, DEFAULT_REGROUP_MEMORY);
+            mAsyncQueueSize = getIntArgument(arguments, ARG_ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE);
+            mMaxMessageLength = getIntArgument(arguments, ARG_MAX_MESSAGE_LENGTH, JUnitReportListener.DEFAULT_MAX_MESSAGE_LENGTH);
+            mMaxTraceLength = getIntArgument(arguments, ARG_MAX_TRACE_LENGTH, JUnitReportListener.DEFAULT_MAX_TRACE_LENGTH);
+            mLiveResults = getBooleanArgument(arguments, ARG_LIVE_RESULTS, false);
+            mResume = getBooleanArgument(arguments, ARG_RESUME, false);
+            mJournal = mResume || getBooleanArgument(arguments, ARG_JOURNAL, false);
+            mRecordResources = getBooleanArgument(arguments, ARG_RECORD_RESOURCES, false);
+            mCaptureLog = getBooleanArgument(arguments, ARG_CAPTURE_LOG, false);
+            mCaptureOutput = mCaptureLog || getBooleanArgument(arguments, ARG_CAPTURE_OUTPUT, false);
+            mCaptureSize = getIntArgument(arguments, ARG_CAPTURE_SIZE, DEFAULT_CAPTURE_SIZE);
+            mMaxAttempts = getIntArgument(arguments, ARG_MAX_ATTEMPTS, 1);
+            mNumShards = getIntArgument(arguments, ARG_NUM_SHARDS, 1);
+            mShardIndex = getIntArgument(arguments, ARG_SHARD_INDEX, 0);
+            mDurationHistory = arguments.getString(ARG_DURATION_HISTORY);
+            mClassManifest = arguments.getString(ARG_CLASS_MANIFEST);
+            mBaseline = arguments.getString(ARG_BASELINE);
+            mMetricsFile = arguments.getString(ARG_METRICS_FILE);
         } else {
             Log.i(LOG_TAG, "No arguments provided");
         }
 
+        if (mNumShards < 1 || mShardIndex < 0 || mShardIndex >= mNumShards) {
+            Log.e(LOG_TAG, "Invalid shard " + mShardIndex + " of " + mNumShards + ", running all tests");
+            mNumShards = 1;
+            mShardIndex = 0;
+        }
+
         if (mReportFile == null) {
-            mReportFile = mMultiFile ? DEFAULT_MULTI_REPORT_FILE : DEFAULT_SINGLE_REPORT_FILE;
+            mReportFile = (mMultiFile ? DEFAULT_MULTI_REPORT_FILE : DEFAULT_SINGLE_REPORT_FILE) + (mNumShards > 1 ? DEFAULT_SHARD_SUFFIX : "") + "." + mFormat.getExtension();
+            if (mCompress) {
+                mReportFile += EXTENSION_GZIP;
+            }
             Log.i(LOG_TAG, "Defaulted report file to '" + mReportFile + "'");
+        } else if (mReportFile.endsWith(EXTENSION_GZIP)) {
+            mCompress = true;
         }
+        mReportFile = mReportFile.replace(JUnitReportListener.TOKEN_SHARD, Integer.toString(mShardIndex));
 
         super.onCreate(arguments);
     }
@@ -104,29 +359,329 @@ public class JUnitReportTestRunner extends InstrumentationTestRunner {
         }
     }
 
+    private int getIntArgument(Bundle arguments, String name, int defaultValue)
+    {
+        String value = arguments.getString(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "Invalid value '" + value + "' for argument " + name + ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private FlushPolicy getFlushPolicyArgument(Bundle arguments) {
+        String value = arguments.getString(ARG_FLUSH_POLICY);
+        if (value == null) {
+            return FlushPolicy.PER_TEST;
+        }
+
+        try {
+            return FlushPolicy.parse(value);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, e.getMessage() + ", flushing after every test");
+            return FlushPolicy.PER_TEST;
+        }
+    }
+
+    private ReportFormat getFormatArgument(Bundle arguments) {
+        String value = arguments.getString(ARG_FORMAT);
+        if (value == null) {
+            return ReportFormat.XML;
+        }
+
+        try {
+            return ReportFormat.parse(value);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, e.getMessage() + ", using xml");
+            return ReportFormat.XML;
+        }
+    }
+
+    private TimeUnit getTimePrecisionArgument(Bundle arguments) {
+        String value = arguments.getString(ARG_TIME_PRECISION);
+        if (value == null || value.equals(TIME_PRECISION_MILLISECONDS)) {
+            return TimeUnit.MILLISECONDS;
+        } else if (value.equals(TIME_PRECISION_MICROSECONDS)) {
+            return TimeUnit.MICROSECONDS;
+        } else {
+            Log.e(LOG_TAG, "Invalid time precision '" + value + "', using milliseconds");
+            return TimeUnit.MILLISECONDS;
+        }
+    }
+
     /**
-     * Subclass and override this if you want to use a different TestRunner type.
+     * Subclass and override this if you want to use a different TestRunner type.  Note that
+     * failed tests are only retried (see maxAttempts) by the default test runner, unless the
+     * replacement also runs tests with a {@link RetryingTestResult}.  Similarly, the default
+     * test runner selects the tests to run (see numShards, resume and baseline) as soon as
+     * they are set, so that the test count reported by the instrumentation covers only those
+     * tests.  With a replacement, tests are selected when the run starts, after they have been
+     * counted.
      * 
      * @return the test runner to use
      */
     protected AndroidTestRunner makeAndroidTestRunner() {
-        return new AndroidTestRunner();
+        if (mMaxAttempts > 1) {
+            Log.i(LOG_TAG, "Retrying failed tests up to " + mMaxAttempts + " attempts");
+        }
+        return new SelectingAndroidTestRunner(mMaxAttempts);
     }
 
     @Override
     protected AndroidTestRunner getAndroidTestRunner() {
         AndroidTestRunner runner = makeAndroidTestRunner();
         mListener = new JUnitReportListener(getContext(), getTargetContext(), mReportFile, mReportDir, mFilterTraces, mMultiFile);
+        mListener.setFlushPolicy(mFlushPolicy);
+        mListener.setCompress(mCompress);
+        mListener.setFormat(mFormat);
+        mListener.setTimePrecision(mTimePrecision);
+        StackTraceFilter traceFilter = StackTraceFilter.withPatterns(mTraceFilters);
+        mListener.setTraceFilter(traceFilter);
+        mListener.setDeduplicateTraces(mDeduplicateTraces);
+        mListener.setMaxMessageLength(mMaxMessageLength);
+        mListener.setMaxTraceLength(mMaxTraceLength);
+        mListener.setConcurrent(mConcurrent);
+        mListener.setRecordResources(mRecordResources);
+        if (mCaptureOutput) {
+            mListener.setCaptureOutput(mCaptureSize, mCaptureLog);
+        }
+        if (mRegroupSuites) {
+            mListener.setRegroupMemoryBudget(mRegroupMemory);
+        }
+        if (mAsync) {
+            mListener.setAsyncQueueSize(mAsyncQueueSize);
+        }
         runner.addTestListener(mListener);
+        if (mLiveResults) {
+            runner.addTestListener(new LiveResultListener(this, mFilterTraces ? traceFilter : null));
+        }
+        if (mJournal) {
+            openJournal(runner, mFilterTraces ? traceFilter : null);
+        }
+        mRunner = runner;
         return runner;
     }
 
+    private void openJournal(AndroidTestRunner runner, StackTraceFilter traceFilter) {
+        String journalName = (mMultiFile ? DEFAULT_SINGLE_REPORT_FILE + (mNumShards > 1 ? "-shard" + mShardIndex : "") : mReportFile) + EXTENSION_JOURNAL;
+        try {
+            File journalFile = mListener.resolveReportFile(journalName);
+            if (mResume) {
+                mFinishedTests = ReportJournal.readFinishedTests(journalFile);
+                Log.i(LOG_TAG, "Resuming run: " + mFinishedTests.size() + " tests already run according to journal '" + journalFile.getAbsolutePath() + "'");
+            }
+            mReportJournal = new ReportJournal(journalFile, mResume, traceFilter, mMaxMessageLength, mMaxTraceLength);
+            runner.addTestListener(mReportJournal);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to open journal '" + journalName + "', journaling disabled: " + e.getMessage());
+            mFinishedTests = null;
+        }
+    }
+
+    @Override
+    public void onStart() {
+        if (!mTestsSelected && mRunner != null) {
+            selectTests(mRunner.getTestCases());
+        }
+        for (Map.Entry<TestCase, Long> entry: mCarriedOverTests.entrySet()) {
+            TestCase testCase = entry.getKey();
+            mListener.carryOverTest(testCase.getClass().getName(), testCase.getName(), entry.getValue());
+        }
+        mCarriedOverTests.clear();
+
+        super.onStart();
+    }
+
+    private void selectTests(List<TestCase> testCases) {
+        mTestsSelected = true;
+        if (mNumShards > 1) {
+            selectShard(testCases);
+        }
+        if (mFinishedTests != null && !mFinishedTests.isEmpty()) {
+            skipFinishedTests(testCases);
+        }
+        if (mClassManifest != null) {
+            carryOverUnchangedTests(testCases);
+        }
+    }
+
+    private void selectShard(List<TestCase> testCases) {
+        DurationHistory history = null;
+        if (mDurationHistory != null) {
+            try {
+                File historyFile = resolveReportPath(mDurationHistory);
+                history = DurationHistory.load(historyFile);
+                Log.i(LOG_TAG, "Loaded durations of " + history.size() + " tests from '" + historyFile.getAbsolutePath() + "'");
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to load duration history '" + mDurationHistory + "', splitting tests evenly: " + e.getMessage());
+            }
+        }
+
+        TestSharder sharder = new TestSharder(history, mNumShards);
+        int[] shards = sharder.assign(testCases);
+        int selected = 0;
+        try {
+            Iterator<TestCase> it = testCases.iterator();
+            for (int shard: shards) {
+                it.next();
+                if (shard == mShardIndex) {
+                    selected++;
+                } else {
+                    it.remove();
+                }
+            }
+            Log.i(LOG_TAG, "Running shard " + mShardIndex + " of " + mNumShards + ": " + selected + " tests, predicted " + sharder.getPredictedMillis(mShardIndex) + "ms");
+        } catch (UnsupportedOperationException e) {
+            Log.e(LOG_TAG, "Unable to select shard: the test runner does not allow tests to be removed");
+        }
+    }
+
+    private File resolveReportPath(String path) throws IOException {
+        File file = new File(path);
+        return file.isAbsolute() ? file : mListener.resolveReportFile(path);
+    }
+
+    private void skipFinishedTests(List<TestCase> testCases) {
+        int skipped = 0;
+        try {
+            Iterator<TestCase> it = testCases.iterator();
+            while (it.hasNext()) {
+                TestCase testCase = it.next();
+                if (mFinishedTests.contains(ReportJournal.testKey(testCase.getClass().getName(), testCase.getName()))) {
+                    it.remove();
+                    skipped++;
+                }
+            }
+        } catch (UnsupportedOperationException e) {
+            Log.e(LOG_TAG, "Unable to skip tests already run: the test runner does not allow tests to be removed");
+        }
+        Log.i(LOG_TAG, "Skipped " + skipped + " tests already run");
+    }
+
+    private void carryOverUnchangedTests(List<TestCase> testCases) {
+        ClassManifest manifest;
+        try {
+            File manifestFile = resolveReportPath(mClassManifest);
+            manifest = ClassManifest.load(manifestFile);
+            Log.i(LOG_TAG, "Loaded fingerprints of " + manifest.size() + " classes from '" + manifestFile.getAbsolutePath() + "'");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to load class manifest '" + mClassManifest + "', running all tests: " + e.getMessage());
+            return;
+        }
+        mListener.setFingerprints(manifest.getFingerprints());
+
+        if (mBaseline == null) {
+            return;
+        }
+
+        TestBaseline baseline;
+        try {
+            File baselineFile = resolveReportPath(mBaseline);
+            baseline = TestBaseline.load(baselineFile);
+            Log.i(LOG_TAG, "Loaded " + baseline.size() + " passed tests from baseline '" + baselineFile.getAbsolutePath() + "'");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to load baseline '" + mBaseline + "', running all tests: " + e.getMessage());
+            return;
+        }
+
+        // Classes are carried over as a whole: only if every test passed
+        // with the current fingerprint.
+        Map<String, Boolean> unchanged = new HashMap<String, Boolean>();
+        for (TestCase testCase: testCases) {
+            String className = testCase.getClass().getName();
+            Boolean classUnchanged = unchanged.get(className);
+            if (classUnchanged == null || classUnchanged) {
+                String fingerprint = manifest.getFingerprint(className);
+                unchanged.put(className, fingerprint != null && baseline.passed(className, testCase.getName(), fingerprint));
+            }
+        }
+
+        int carried = 0;
+        try {
+            Iterator<TestCase> it = testCases.iterator();
+            while (it.hasNext()) {
+                TestCase testCase = it.next();
+                String className = testCase.getClass().getName();
+                if (unchanged.get(className)) {
+                    it.remove();
+                    mCarriedOverTests.put(testCase, TimeUnit.MILLISECONDS.toNanos(baseline.getMillis(className, testCase.getName())));
+                    carried++;
+                }
+            }
+        } catch (UnsupportedOperationException e) {
+            Log.e(LOG_TAG, "Unable to carry over unchanged tests: the test runner does not allow tests to be removed");
+        }
+        Log.i(LOG_TAG, "Carried over " + carried + " tests of unchanged classes, running " + testCases.size());
+    }
+
     @Override
     public void finish(int resultCode, Bundle results) {
         if (mListener != null) {
             mListener.close();
+            Log.i(LOG_TAG, "Report written: " + mListener.getBytesWritten() + " bytes in " + mListener.getFlushCount() + " flushes");
+            if (mRecordResources) {
+                Log.i(LOG_TAG, "Resource sampling overhead: " + TimeUnit.NANOSECONDS.toMicros(mListener.getResourceSamplingOverhead()) + "us");
+            }
+            reportMetrics(results);
+        }
+        if (mReportJournal != null) {
+            mReportJournal.close();
         }
 
         super.finish(resultCode, results);
     }
+
+    private void reportMetrics(Bundle results) {
+        ReporterMetrics metrics = mListener.getMetrics();
+        String summary = metrics.getSummary();
+        Log.i(LOG_TAG, summary);
+        if (results != null) {
+            results.putString(REPORT_KEY_METRICS, summary);
+            results.putLong(REPORT_KEY_OVERHEAD, metrics.getOverhead());
+        }
+
+        if (mMetricsFile != null) {
+            try {
+                metrics.save(resolveReportPath(mMetricsFile));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to write metrics file '" + mMetricsFile + "': " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Test runner that selects the tests to run as soon as they are set, and
+     * runs them with a {@link RetryingTestResult} if they may be attempted
+     * more than once, unless test execution is skipped.
+     */
+    private final class SelectingAndroidTestRunner extends AndroidTestRunner {
+        private final int mMaxAttempts;
+        private boolean mSkipExecution;
+
+        SelectingAndroidTestRunner(int maxAttempts) {
+            this.mMaxAttempts = maxAttempts;
+        }
+
+        @Override
+        public void setTest(Test test) {
+            super.setTest(test);
+            selectTests(getTestCases());
+        }
+
+        @Override
+        public void setSkipExecution(boolean skip) {
+            super.setSkipExecution(skip);
+            mSkipExecution = skip;
+        }
+
+        @Override
+        protected TestResult createTestResult() {
+            return mSkipExecution || mMaxAttempts <= 1 ? super.createTestResult() : new RetryingTestResult(mMaxAttempts);
+        }
+    }
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the report as JSON lines: a stream of JSON objects, one per line,
+ * which can be processed record by record without parsing the report as a
+ * whole.  The lines are:
+ * <dl>
+ *   <dt>{"format":"android-junit-report","version":1}</dt>
+ *   <dd>The first line of the report.</dd>
+ *   <dt>{"element":<i>name</i>,<i>attribute</i>:<i>value</i>,...,"text":<i>text</i>}</dt>
+ *   <dd>The start of an element, with its attributes and any text directly
+ *       inside it.</dd>
+ *   <dt>{"summary":<i>name</i>,<i>attribute</i>:<i>value</i>,...}</dt>
+ *   <dd>Attributes of the enclosing element that are only known once its
+ *       children are complete, e.g. the counts of a suite.</dd>
+ *   <dt>{"end":<i>name</i>}</dt>
+ *   <dd>The end of an element.</dd>
+ * </dl>
+ * All values are strings.  As the element and attribute names come from the
+ * JUnit XML format, they never clash with the keys above.
+ */
+final class JsonLinesReportWriter implements ReportWriter {
+    private static final String HEADER = "{\"format\":\"android-junit-report\",\"version\":1}";
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // The writer, with its encoder and buffer, is built once and retargeted
+    // through mTarget, as in concurrent mode a writer is set to a new output
+    // for every test case.
+    private final TargetStream mTarget = new TargetStream();
+    private final Writer mWriter;
+    private final List<String> mElements = new ArrayList<String>();
+    // true while the current element's line is still being written
+    private boolean mLineOpen;
+    // true while the text value of the current line is still being written
+    private boolean mTextOpen;
+
+    JsonLinesReportWriter() {
+        try {
+            mWriter = new BufferedWriter(new OutputStreamWriter(mTarget, ENCODING_UTF_8));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void setOutput(OutputStream out) throws IOException {
+        // Anything left unflushed belongs to the last output and is dropped.
+        mTarget.setTarget(null);
+        mWriter.flush();
+        mTarget.setTarget(out);
+        mElements.clear();
+        mLineOpen = false;
+        mTextOpen = false;
+    }
+
+    @Override
+    public void startDocument() throws IOException {
+        mWriter.write(HEADER);
+        mWriter.write('\n');
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        while (!mElements.isEmpty()) {
+            endTag(getName());
+        }
+        flush();
+    }
+
+    @Override
+    public void startTag(String name) throws IOException {
+        closeLine();
+        mWriter.write("{\"element\":");
+        writeString(name);
+        mElements.add(name);
+        mLineOpen = true;
+    }
+
+    @Override
+    public void attribute(String name, String value) throws IOException {
+        if (!mLineOpen || mTextOpen) {
+            throw new IllegalStateException("Attribute '" + name + "' must directly follow a start tag");
+        }
+
+        mWriter.write(',');
+        writeString(name);
+        mWriter.write(':');
+        writeString(value);
+    }
+
+    @Override
+    public void attribute(String name, char[] buf, int start, int length) throws IOException {
+        if (!mLineOpen || mTextOpen) {
+            throw new IllegalStateException("Attribute '" + name + "' must directly follow a start tag");
+        }
+
+        mWriter.write(',');
+        writeString(name);
+        mWriter.write(':');
+        mWriter.write('"');
+        writeEscaped(buf, start, length);
+        mWriter.write('"');
+    }
+
+    @Override
+    public void text(char[] buf, int start, int length) throws IOException {
+        openText();
+        writeEscaped(buf, start, length);
+    }
+
+    @Override
+    public void text(String text) throws IOException {
+        openText();
+        for (int i = 0; i < text.length(); i++) {
+            writeEscaped(text.charAt(i));
+        }
+    }
+
+    private void openText() throws IOException {
+        if (!mTextOpen) {
+            if (!mLineOpen) {
+                // Text after a child element gets a line of its own.
+                mWriter.write('{');
+            } else {
+                mWriter.write(',');
+            }
+            mWriter.write("\"text\":\"");
+            mLineOpen = true;
+            mTextOpen = true;
+        }
+    }
+
+    @Override
+    public void summary(String[] names, String[] values) throws IOException {
+        closeLine();
+        mWriter.write("{\"summary\":");
+        writeString(getName());
+        for (int i = 0; i < names.length; i++) {
+            mWriter.write(',');
+            writeString(names[i]);
+            mWriter.write(':');
+            writeString(values[i]);
+        }
+        mWriter.write("}\n");
+    }
+
+    @Override
+    public void endTag(String name) throws IOException {
+        String current = getName();
+        if (!name.equals(current)) {
+            throw new IllegalStateException("End tag '" + name + "' does not match start tag '" + current + "'");
+        }
+
+        closeLine();
+        mWriter.write("{\"end\":");
+        writeString(name);
+        mWriter.write("}\n");
+        mElements.remove(mElements.size() - 1);
+    }
+
+    @Override
+    public String getName() {
+        return mElements.isEmpty() ? null : mElements.get(mElements.size() - 1);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        closeLine();
+        mWriter.flush();
+    }
+
+    private void closeLine() throws IOException {
+        if (mTextOpen) {
+            mWriter.write('"');
+            mTextOpen = false;
+        }
+
+        if (mLineOpen) {
+            mWriter.write("}\n");
+            mLineOpen = false;
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        mWriter.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            writeEscaped(s.charAt(i));
+        }
+        mWriter.write('"');
+    }
+
+    private void writeEscaped(char[] buf, int start, int length) throws IOException {
+        int end = start + length;
+        int plain = start;
+        for (int i = start; i < end; i++) {
+            char c = buf[i];
+            if (c < 0x20 || c == '"' || c == '\\') {
+                mWriter.write(buf, plain, i - plain);
+                writeEscaped(c);
+                plain = i + 1;
+            }
+        }
+        mWriter.write(buf, plain, end - plain);
+    }
+
+    private void writeEscaped(char c) throws IOException {
+        switch (c) {
+            case '"':
+                mWriter.write("\\\"");
+                break;
+            case '\\':
+                mWriter.write("\\\\");
+                break;
+            case '\n':
+                mWriter.write("\\n");
+                break;
+            case '\r':
+                mWriter.write("\\r");
+                break;
+            case '\t':
+                mWriter.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    mWriter.write("\\u00");
+                    mWriter.write(HEX_DIGITS[c >> 4]);
+                    mWriter.write(HEX_DIGITS[c & 0xf]);
+                } else {
+                    mWriter.write(c);
+                }
+        }
+    }
+
+    /**
+     * Forwards to a target stream that can be changed, so the writer built on
+     * top of it can be reused.  Output is discarded while there is no target.
+     */
+    private static final class TargetStream extends OutputStream {
+        private OutputStream mOut;
+
+        void setTarget(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mOut != null) {
+                mOut.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mOut != null) {
+                mOut.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mOut != null) {
+                mOut.flush();
+            }
+        }
+    }
+}
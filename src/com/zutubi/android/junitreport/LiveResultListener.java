@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import android.app.Instrumentation;
+import android.os.Bundle;
+
+/**
+ * Test listener that streams a compact record of each test to the host as
+ * soon as the test finishes, via the instrumentation status channel.  When
+ * the run is started with am instrument -r, the records show up in the
+ * output as lines of the form:
+ * <pre>
+ *   INSTRUMENTATION_STATUS: junitreport=&lt;record&gt;
+ *   INSTRUMENTATION_STATUS_CODE: 10
+ * </pre>
+ * The host tools live command consumes this output and builds a JUnit XML
+ * report incrementally, so results are available while the run is still in
+ * progress.  See {@link RecordingListener} for the record format.  Messages
+ * and traces are truncated to keep records small.
+ * <p/>
+ * This listener is independent of the report file, and supports tests that
+ * run concurrently.
+ */
+public class LiveResultListener extends RecordingListener {
+    /**
+     * Key of the record in status bundles.
+     */
+    public static final String STATUS_KEY = "junitreport";
+    /**
+     * Result code of status reports carrying records, chosen to be distinct
+     * from the codes of the standard InstrumentationTestRunner.
+     */
+    public static final int STATUS_CODE = 10;
+
+    private static final int MAX_MESSAGE_LENGTH = 4 * 1024;
+    private static final int MAX_TRACE_LENGTH = 16 * 1024;
+
+    private final Instrumentation mInstrumentation;
+
+    /**
+     * Creates a listener that sends records through the given
+     * instrumentation.
+     *
+     * @param instrumentation instrumentation used to send status reports
+     * @param traceFilter     filter to apply to stack traces, or null to
+     *                        send traces unfiltered
+     */
+    public LiveResultListener(Instrumentation instrumentation, StackTraceFilter traceFilter) {
+        super(traceFilter, MAX_MESSAGE_LENGTH, MAX_TRACE_LENGTH);
+        this.mInstrumentation = instrumentation;
+    }
+
+    @Override
+    protected void testFinished(String record) {
+        Bundle status = new Bundle();
+        status.putString(STATUS_KEY, record);
+        mInstrumentation.sendStatus(STATUS_CODE, status);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import android.util.Log;
+
+/**
+ * Captures the recent output of the process under test, so that the output
+ * of a failed test can be included in the report.  Output is held in two
+ * fixed-size {@link CaptureBuffer}s, one for standard output and one for
+ * standard error, so memory use is strictly capped.  A test notes the
+ * positions of the buffers when it starts, which costs next to nothing, and
+ * the output since then is only read out if the test fails.
+ * <p/>
+ * Output is captured from one of two sources:
+ * <ul>
+ *   <li>
+ *     By default, System.out and System.err are replaced with streams that
+ *     pass everything through to the original streams, and also append it to
+ *     the buffers.
+ *   </li>
+ *   <li>
+ *     If the log is captured, the log lines of the application (which on
+ *     Android include anything printed to System.out and System.err) are
+ *     read from logcat on a background thread.  Lines of priority warning
+ *     and above go to the standard error buffer, and the rest to the
+ *     standard output buffer.  Lines are read as logcat emits them, so the
+ *     last lines logged by a failed test may be missed.
+ *   </li>
+ * </ul>
+ * The output of everything running in the process is captured, so when
+ * tests run concurrently the output of a test includes that of any other
+ * tests running at the same time.
+ */
+final class OutputCapture {
+    private static final String LOG_TAG = OutputCapture.class.getSimpleName();
+
+    private static final String TAG_SYSTEM_OUT = "system-out";
+    private static final String TAG_SYSTEM_ERR = "system-err";
+
+    private static final String THREAD_NAME = "JUnitReportLogReader";
+    private static final String[] LOGCAT_COMMAND = { "logcat", "-v", "time", "-T", "1" };
+    // In time format, lines start "MM-DD HH:MM:SS.mmm P/", where P is the priority.
+    private static final int LOG_PRIORITY_OFFSET = 19;
+    private static final int MAX_LOG_LINE_LENGTH = 4096;
+
+    private final CaptureBuffer mOut;
+    private final CaptureBuffer mErr;
+    private PrintStream mOriginalOut;
+    private PrintStream mOriginalErr;
+    private PrintStream mCapturingOut;
+    private PrintStream mCapturingErr;
+    private Process mLogProcess;
+
+    /**
+     * Creates a capture with buffers of the given size.  Nothing is
+     * captured until {@link #start(boolean)} is called.
+     *
+     * @param bufferSize size of each of the standard output and standard
+     *                   error buffers, in bytes
+     */
+    OutputCapture(int bufferSize) {
+        mOut = new CaptureBuffer(bufferSize);
+        mErr = new CaptureBuffer(bufferSize);
+    }
+
+    /**
+     * Starts capturing output.
+     *
+     * @param captureLog if true, capture the log lines of the application,
+     *                   otherwise capture System.out and System.err
+     */
+    void start(boolean captureLog) {
+        if (captureLog) {
+            startLogReader();
+        } else {
+            mOriginalOut = System.out;
+            mOriginalErr = System.err;
+            mCapturingOut = new PrintStream(new TeeOutputStream(mOriginalOut, mOut), true);
+            mCapturingErr = new PrintStream(new TeeOutputStream(mOriginalErr, mErr), true);
+            System.setOut(mCapturingOut);
+            System.setErr(mCapturingErr);
+        }
+    }
+
+    private void startLogReader() {
+        try {
+            mLogProcess = Runtime.getRuntime().exec(LOGCAT_COMMAND);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to start logcat, log will not be captured: " + e.getMessage());
+            return;
+        }
+
+        final InputStream in = mLogProcess.getInputStream();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLog(in);
+            }
+        }, THREAD_NAME);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readLog(InputStream in) {
+        byte[] chunk = new byte[MAX_LOG_LINE_LENGTH];
+        byte[] line = new byte[MAX_LOG_LINE_LENGTH];
+        int lineLength = 0;
+        try {
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = chunk[i];
+                    line[lineLength++] = b;
+                    if (b == '\n' || lineLength == line.length) {
+                        appendLogLine(line, lineLength);
+                        lineLength = 0;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The process was stopped.
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing more to read anyway.
+            }
+        }
+    }
+
+    private void appendLogLine(byte[] line, int length) {
+        byte priority = length > LOG_PRIORITY_OFFSET ? line[LOG_PRIORITY_OFFSET] : 0;
+        boolean error = priority == 'W' || priority == 'E' || priority == 'F' || priority == 'A';
+        (error ? mErr : mOut).append(line, 0, length);
+    }
+
+    /**
+     * Stops capturing output, restoring System.out and System.err.
+     */
+    void stop() {
+        // Leave the streams alone if something else has since replaced them.
+        if (mCapturingOut != null && System.out == mCapturingOut) {
+            System.setOut(mOriginalOut);
+        }
+        if (mCapturingErr != null && System.err == mCapturingErr) {
+            System.setErr(mOriginalErr);
+        }
+        mCapturingOut = null;
+        mCapturingErr = null;
+
+        if (mLogProcess != null) {
+            mLogProcess.destroy();
+            mLogProcess = null;
+        }
+    }
+
+    /**
+     * @return the current end of standard output, to pass to
+     *         {@link #snapshot(long, long)}
+     */
+    long getOutPosition() {
+        return mOut.getPosition();
+    }
+
+    /**
+     * @return the current end of standard error, to pass to
+     *         {@link #snapshot(long, long)}
+     */
+    long getErrPosition() {
+        return mErr.getPosition();
+    }
+
+    /**
+     * Reads out the output captured since the given positions.
+     *
+     * @param outPosition position in standard output to read from
+     * @param errPosition position in standard error to read from
+     * @return the output since the given positions
+     */
+    Snapshot snapshot(long outPosition, long errPosition) {
+        return new Snapshot(mOut.getTextSince(outPosition), mErr.getTextSince(errPosition));
+    }
+
+    /**
+     * Output read out of a capture, for writing to the report.
+     */
+    static final class Snapshot {
+        private final String mOut;
+        private final String mErr;
+
+        Snapshot(String out, String err) {
+            this.mOut = out;
+            this.mErr = err;
+        }
+
+        /**
+         * Writes the output as &lt;system-out&gt; and &lt;system-err&gt;
+         * elements, omitting either if there was no such output.
+         *
+         * @param writer writer to write the elements with
+         * @throws IOException on any error writing
+         */
+        void write(ReportWriter writer) throws IOException {
+            writeElement(writer, TAG_SYSTEM_OUT, mOut);
+            writeElement(writer, TAG_SYSTEM_ERR, mErr);
+        }
+
+        private static void writeElement(ReportWriter writer, String tag, String text) throws IOException {
+            if (text != null) {
+                writer.startTag(tag);
+                writer.text(text);
+                writer.endTag(tag);
+            }
+        }
+    }
+
+    /**
+     * Passes output through to a stream, also appending it to a buffer.
+     */
+    private static final class TeeOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final CaptureBuffer mBuffer;
+
+        TeeOutputStream(OutputStream out, CaptureBuffer buffer) {
+            this.mOut = out;
+            this.mBuffer = buffer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mBuffer.append(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mBuffer.append(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+    }
+}
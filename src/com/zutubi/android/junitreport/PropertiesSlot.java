@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * A fixed-width region reserved for a properties element whose values are
+ * only known once the enclosing element is complete, such as the resource
+ * totals of a suite.  The Ant JUnit schema puts properties before the test
+ * cases of a suite, so they must be written before the totals are known.
+ * The element is first written holding just whitespace.  Once the values
+ * are known the whitespace is overwritten in place in the report file with
+ * the property elements, any leftover space remaining as whitespace.  As
+ * with {@link SummarySlot}, this keeps the report streamed with constant
+ * memory.
+ * <p/>
+ * All property names and values must be ASCII, so that their length in
+ * characters and in UTF-8 bytes is the same.
+ */
+final class PropertiesSlot {
+    private static final String LOG_TAG = PropertiesSlot.class.getSimpleName();
+
+    private static final String TAG_PROPERTIES = "properties";
+
+    private final String[] mNames;
+    private final String mPlaceholder;
+    private final byte[] mPlaceholderBytes;
+
+    /**
+     * Creates a slot for the given properties.
+     *
+     * @param names        names of the properties in the slot
+     * @param placeholders placeholder values for each property, which
+     *                     determine the space reserved for them
+     */
+    PropertiesSlot(String[] names, String[] placeholders) {
+        this.mNames = names;
+        this.mPlaceholderBytes = new byte[render(placeholders, 0).length];
+        Arrays.fill(mPlaceholderBytes, (byte) ' ');
+        char[] spaces = new char[mPlaceholderBytes.length];
+        Arrays.fill(spaces, ' ');
+        this.mPlaceholder = new String(spaces);
+    }
+
+    /**
+     * Writes the properties element holding the whitespace placeholder.
+     *
+     * @param writer writer to write the element to, which must be writing
+     *               XML
+     * @param out    the stream the writer is writing to
+     * @return byte offset of the slot in the stream, i.e. the position just
+     *         after the properties start tag
+     * @throws IOException on any error writing to the writer
+     */
+    long writePlaceholder(ReportWriter writer, ReportOutputStream out) throws IOException {
+        writer.startTag(TAG_PROPERTIES);
+        // Flush the writer so the start tag is closed and the offset known.
+        writer.flush();
+        long offset = out.getBytesWritten();
+        writer.text(mPlaceholder);
+        writer.endTag(TAG_PROPERTIES);
+        return offset;
+    }
+
+    /**
+     * Overwrites the slot in a report file with the actual properties.  The
+     * placeholder must already be committed to the file.  As a safety check,
+     * the file is only changed if it still holds the placeholder at the given
+     * offset.
+     *
+     * @param file   the report file to patch
+     * @param offset byte offset of the slot in the file
+     * @param values the values of the properties
+     * @return true if the file was patched
+     * @throws IOException on any error accessing the file
+     */
+    boolean patch(File file, long offset, String[] values) throws IOException {
+        byte[] replacement = render(values, mPlaceholderBytes.length);
+        if (replacement == null) {
+            Log.w(LOG_TAG, "Property values do not fit in reserved slot, leaving properties empty");
+            return false;
+        }
+
+        if (!SummarySlot.overwrite(file, offset, mPlaceholderBytes, replacement)) {
+            Log.w(LOG_TAG, "Unexpected content at properties slot in '" + file + "', leaving properties empty");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Renders property elements in the same form as the XML serializer, i.e.
+     * each as '&lt;property name="name" value="value" /&gt;'.
+     *
+     * @param values the property values
+     * @param width  if positive, the exact width to pad the result to with
+     *               trailing spaces
+     * @return the rendered properties, or null if they are wider than the
+     *         given width
+     */
+    private byte[] render(String[] values, int width) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mNames.length; i++) {
+            builder.append("<property name=\"").append(mNames[i]).append("\" value=\"").append(values[i]).append("\" />");
+        }
+
+        if (width > 0) {
+            if (builder.length() > width) {
+                return null;
+            }
+
+            while (builder.length() < width) {
+                builder.append(' ');
+            }
+        }
+
+        byte[] bytes = new byte[builder.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) builder.charAt(i);
+        }
+        return bytes;
+    }
+}
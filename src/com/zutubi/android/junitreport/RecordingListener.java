@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+
+/**
+ * Base for listeners that produce a compact, single-line record of each
+ * test as soon as it finishes.  A record is a line of tab-separated fields:
+ * <pre>
+ *   1 suite case timestamp duration problems [tag type message trace]...
+ * </pre>
+ * where 1 is the record version, timestamp is the wall clock start time of
+ * the test in milliseconds, duration is its duration in nanoseconds and
+ * problems is the number of failures and errors that follow, each as four
+ * fields (tag is failure or error).  Within fields, backslash, tab, newline
+ * and carriage return are escaped as \\, \t, \n and \r.
+ * <p/>
+ * Running tests are tracked by identity, so tests may run concurrently.
+ */
+abstract class RecordingListener implements TestListener {
+    static final String RECORD_VERSION = "1";
+
+    private static final String TAG_ERROR = "error";
+    private static final String TAG_FAILURE = "failure";
+
+    private final StackTraceFilter mTraceFilter;
+    private final int mMaxMessageLength;
+    private final int mMaxTraceLength;
+    private final ConcurrentHashMap<Test, LiveCase> mRunningCases = new ConcurrentHashMap<Test, LiveCase>();
+
+    /**
+     * @param traceFilter      filter to apply to stack traces, or null to
+     *                         record traces unfiltered
+     * @param maxMessageLength maximum length of recorded messages, or zero
+     *                         for no limit
+     * @param maxTraceLength   maximum length of recorded traces, or zero for
+     *                         no limit
+     */
+    RecordingListener(StackTraceFilter traceFilter, int maxMessageLength, int maxTraceLength) {
+        this.mTraceFilter = traceFilter;
+        this.mMaxMessageLength = maxMessageLength;
+        this.mMaxTraceLength = maxTraceLength;
+    }
+
+    /**
+     * Called on the thread running a test when it starts.
+     *
+     * @param suiteName name of the suite (test class)
+     * @param caseName  name of the test case
+     * @param timestamp wall clock start time of the test in milliseconds
+     */
+    protected void testStarted(String suiteName, String caseName, long timestamp) {
+    }
+
+    /**
+     * Called on the thread running a test when it finishes.
+     *
+     * @param record the record of the test
+     */
+    protected abstract void testFinished(String record);
+
+    @Override
+    public void startTest(Test test) {
+        if (test instanceof TestCase) {
+            TestCase testCase = (TestCase) test;
+            long timestamp = System.currentTimeMillis();
+            mRunningCases.put(test, new LiveCase(timestamp, System.nanoTime()));
+            testStarted(testCase.getClass().getName(), testCase.getName(), timestamp);
+        }
+    }
+
+    @Override
+    public void addError(Test test, Throwable error) {
+        addProblem(test, TAG_ERROR, error);
+    }
+
+    @Override
+    public void addFailure(Test test, AssertionFailedError error) {
+        addProblem(test, TAG_FAILURE, error);
+    }
+
+    private void addProblem(Test test, String tag, Throwable error) {
+        LiveCase liveCase = mRunningCases.get(test);
+        if (liveCase != null) {
+            liveCase.addProblem(tag, error);
+        }
+    }
+
+    @Override
+    public void endTest(Test test) {
+        LiveCase liveCase = mRunningCases.remove(test);
+        if (liveCase != null) {
+            long duration = System.nanoTime() - liveCase.mStartTime;
+            TestCase testCase = (TestCase) test;
+            testFinished(buildRecord(testCase.getClass().getName(), testCase.getName(), liveCase, duration));
+        }
+    }
+
+    /**
+     * Appends a field to a record, preceded by a tab separator.
+     *
+     * @param record    the record to append to
+     * @param value     the field value, which is escaped
+     * @param maxLength maximum length of the value, or zero for no limit
+     */
+    static void appendField(StringBuilder record, String value, int maxLength) {
+        record.append('\t');
+        EscapingWriter writer = new EscapingWriter(record, maxLength);
+        writer.write(value, 0, value.length());
+        writer.close();
+    }
+
+    private String buildRecord(String suiteName, String caseName, LiveCase liveCase, long duration) {
+        StringBuilder record = new StringBuilder(128);
+        record.append(RECORD_VERSION);
+        appendField(record, suiteName, 0);
+        appendField(record, caseName, 0);
+        record.append('\t').append(liveCase.mTimestamp);
+        record.append('\t').append(duration);
+
+        List<String> tags = new ArrayList<String>();
+        List<Throwable> errors = new ArrayList<Throwable>();
+        liveCase.getProblems(tags, errors);
+        record.append('\t').append(tags.size());
+        for (int i = 0; i < tags.size(); i++) {
+            Throwable error = errors.get(i);
+            String message = error.getMessage();
+            record.append('\t').append(tags.get(i));
+            appendField(record, error.getClass().getName(), 0);
+            appendField(record, message == null ? "" : message, mMaxMessageLength);
+            record.append('\t');
+            EscapingWriter trace = new EscapingWriter(record, mMaxTraceLength);
+            try {
+                if (mTraceFilter == null) {
+                    error.printStackTrace(new PrintWriter(trace));
+                } else {
+                    mTraceFilter.printStackTrace(error, trace);
+                }
+            } catch (IOException e) {
+                // Not possible when writing to a StringBuilder.
+            }
+            trace.close();
+        }
+        return record.toString();
+    }
+
+    /**
+     * State of a test that is running.
+     */
+    private static final class LiveCase {
+        private final long mTimestamp;
+        private final long mStartTime;
+        private final List<String> mTags = new ArrayList<String>(1);
+        private final List<Throwable> mErrors = new ArrayList<Throwable>(1);
+
+        LiveCase(long timestamp, long startTime) {
+            this.mTimestamp = timestamp;
+            this.mStartTime = startTime;
+        }
+
+        synchronized void addProblem(String tag, Throwable error) {
+            mTags.add(tag);
+            mErrors.add(error);
+        }
+
+        synchronized void getProblems(List<String> tags, List<Throwable> errors) {
+            tags.addAll(mTags);
+            errors.addAll(mErrors);
+        }
+    }
+
+    /**
+     * Writer that appends escaped text to a record, up to a maximum length
+     * after which "..." is appended in place of the rest.
+     */
+    private static final class EscapingWriter extends Writer {
+        private final StringBuilder mRecord;
+        private final int mMaxLength;
+        private int mLength;
+
+        EscapingWriter(StringBuilder record, int maxLength) {
+            this.mRecord = record;
+            this.mMaxLength = maxLength <= 0 ? Integer.MAX_VALUE : maxLength;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            for (int i = off; i < off + len && mLength <= mMaxLength; i++) {
+                appendEscaped(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            for (int i = off; i < off + len && mLength <= mMaxLength; i++) {
+                appendEscaped(str.charAt(i));
+            }
+        }
+
+        private void appendEscaped(char c) {
+            if (mLength++ == mMaxLength) {
+                return;
+            }
+
+            switch (c) {
+                case '\\':
+                    mRecord.append("\\\\");
+                    break;
+                case '\t':
+                    mRecord.append("\\t");
+                    break;
+                case '\n':
+                    mRecord.append("\\n");
+                    break;
+                case '\r':
+                    mRecord.append("\\r");
+                    break;
+                default:
+                    mRecord.append(c);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            if (mLength > mMaxLength) {
+                mRecord.append("...");
+            }
+        }
+    }
+}
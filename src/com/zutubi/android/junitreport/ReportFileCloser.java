@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Closes report files on a background thread.  In multiFile mode a file is
+ * finished every time the suite changes, and closing it (along with patching
+ * in its suite summary) costs several system calls.  Handing this off keeps
+ * it out of the timing of the next test.
+ * <p/>
+ * Files are closed in the order they are submitted.  A file must not be
+ * opened again while it is still being closed, as the close could then
+ * change the new content: {@link #awaitClosed(File)} waits for this.
+ */
+final class ReportFileCloser {
+    private static final String THREAD_NAME = "JUnitReportCloser";
+    private static final int QUEUE_SIZE = 16;
+
+    private final AsyncEventWriter mWriter = new AsyncEventWriter(QUEUE_SIZE, THREAD_NAME);
+    private final Set<File> mPending = new HashSet<File>();
+
+    /**
+     * Queues a file to be closed.
+     *
+     * @param file  the file being closed
+     * @param close task that finishes and closes the file, which must not
+     *              throw
+     */
+    void submit(final File file, final Runnable close) {
+        synchronized (mPending) {
+            mPending.add(file);
+        }
+
+        mWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    close.run();
+                } finally {
+                    synchronized (mPending) {
+                        mPending.remove(file);
+                        mPending.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the given file is not waiting to be closed.  Returns at
+     * once in the usual case that the file is not pending.
+     *
+     * @param file the file about to be opened
+     */
+    void awaitClosed(File file) {
+        boolean interrupted = false;
+        synchronized (mPending) {
+            while (mPending.contains(file)) {
+                try {
+                    mPending.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes all queued files and stops the background thread.
+     *
+     * @param timeoutMillis maximum time to wait for the files to close
+     * @return true if all files were closed, false if the timeout elapsed
+     *         first
+     */
+    boolean shutdown(long timeoutMillis) {
+        return mWriter.shutdown(timeoutMillis);
+    }
+}
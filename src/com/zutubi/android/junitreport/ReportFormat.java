@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+/**
+ * The formats in which reports can be written.
+ */
+public enum ReportFormat {
+    /**
+     * Standard JUnit XML, as written by the Ant JUnit task.
+     */
+    XML("xml", "xml"),
+    /**
+     * JSON lines, one object per element event.  See
+     * {@link JsonLinesReportWriter}.
+     */
+    JSON("json", "jsonl"),
+    /**
+     * A compact binary format of length-prefixed records.  See
+     * {@link BinaryReportWriter}.  Reports in this format can be converted to
+     * JUnit XML with the host tools.
+     */
+    BINARY("binary", "bin");
+
+    private final String mName;
+    private final String mExtension;
+
+    ReportFormat(String name, String extension) {
+        this.mName = name;
+        this.mExtension = extension;
+    }
+
+    /**
+     * @return the name of the format used to select it
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the conventional extension (without a dot) of report files in
+     *         this format
+     */
+    public String getExtension() {
+        return mExtension;
+    }
+
+    /**
+     * Creates a new writer for this format.
+     *
+     * @return the new writer
+     */
+    public ReportWriter newWriter() {
+        switch (this) {
+            case JSON:
+                return new JsonLinesReportWriter();
+            case BINARY:
+                return new BinaryReportWriter();
+            default:
+                return new XmlReportWriter();
+        }
+    }
+
+    /**
+     * Finds a format by name.
+     *
+     * @param name name of the format: xml, json or binary
+     * @return the format with the given name
+     * @throws IllegalArgumentException if there is no such format
+     */
+    public static ReportFormat parse(String name) {
+        for (ReportFormat format: values()) {
+            if (format.mName.equals(name.trim())) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Invalid report format '" + name + "'");
+    }
+}
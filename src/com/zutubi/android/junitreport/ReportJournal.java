@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Append-only journal of test results that survives the process under test
+ * crashing or being killed.  Each line is written to the file with a single
+ * unbuffered write as soon as it is known, so at most the line being
+ * written when the process dies is lost.  The lines are:
+ * <ul>
+ *   <li><code>R timestamp</code>: written when a run starts.</li>
+ *   <li><code>S suite case timestamp</code>: written when a test starts.</li>
+ *   <li>a record as described in {@link RecordingListener}: written when a
+ *       test finishes.</li>
+ * </ul>
+ * with fields separated by tabs.  A test that started but did not finish
+ * in the same run took down the process.  The host tools recover command
+ * turns a journal into a JUnit XML report, including such tests as errors.
+ * <p/>
+ * When resuming a run, {@link #readFinishedTests(File)} gives the tests
+ * already run according to an existing journal, which may then be skipped.
+ */
+public class ReportJournal extends RecordingListener {
+    static final String LINE_RUN = "R";
+    static final String LINE_START = "S";
+
+    private static final String LOG_TAG = ReportJournal.class.getSimpleName();
+    private static final String ENCODING_UTF_8 = "UTF-8";
+
+    private final File mFile;
+    private FileOutputStream mOutput;
+
+    /**
+     * Opens a journal, starting a new run in it.
+     *
+     * @param file             the journal file
+     * @param append           if true, the run is added to the end of any
+     *                         existing journal, otherwise the file is
+     *                         truncated
+     * @param traceFilter      filter to apply to stack traces, or null to
+     *                         record traces unfiltered
+     * @param maxMessageLength maximum length of recorded messages, or zero
+     *                         for no limit
+     * @param maxTraceLength   maximum length of recorded traces, or zero for
+     *                         no limit
+     * @throws IOException if the journal cannot be opened or written
+     */
+    public ReportJournal(File file, boolean append, StackTraceFilter traceFilter, int maxMessageLength, int maxTraceLength) throws IOException {
+        super(traceFilter, maxMessageLength, maxTraceLength);
+        this.mFile = file;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory '" + dir.getAbsolutePath() + "'");
+        }
+
+        // A line torn by a crash is ended so it does not run into the next.
+        boolean torn = append && endsTorn(file);
+        mOutput = new FileOutputStream(file, append);
+        if (torn) {
+            mOutput.write('\n');
+        }
+        writeLine(LINE_RUN + "\t" + System.currentTimeMillis());
+    }
+
+    private static boolean endsTorn(File file) throws IOException {
+        if (file.length() == 0) {
+            return false;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(raf.length() - 1);
+            return raf.read() != '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the journal file
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    protected void testStarted(String suiteName, String caseName, long timestamp) {
+        StringBuilder line = new StringBuilder(LINE_START);
+        appendField(line, suiteName, 0);
+        appendField(line, caseName, 0);
+        line.append('\t').append(timestamp);
+        writeLine(line.toString());
+    }
+
+    @Override
+    protected void testFinished(String record) {
+        writeLine(record);
+    }
+
+    private synchronized void writeLine(String line) {
+        if (mOutput == null) {
+            return;
+        }
+
+        try {
+            mOutput.write((line + "\n").getBytes(ENCODING_UTF_8));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to write to journal '" + mFile.getAbsolutePath() + "', journaling disabled: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Closes the journal.  Subsequent results are not recorded.
+     */
+    public synchronized void close() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to close journal: " + e.getMessage());
+            }
+            mOutput = null;
+        }
+    }
+
+    /**
+     * Reads the tests that have already been run according to a journal.
+     * This includes tests that finished, and tests that started but never
+     * finished because they crashed the process.  Lines that are torn or
+     * otherwise malformed are ignored.
+     *
+     * @param file the journal to read
+     * @return keys, as formed by {@link #testKey(String, String)}, of all
+     *         tests that have been run, which is empty if the journal does
+     *         not exist
+     * @throws IOException on error reading the journal
+     */
+    public static Set<String> readFinishedTests(File file) throws IOException {
+        Set<String> tests = new HashSet<String>();
+        if (!file.exists()) {
+            return tests;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING_UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length >= 4 && (fields[0].equals(LINE_START) || fields[0].equals(RECORD_VERSION))) {
+                    tests.add(testKey(unescape(fields[1]), unescape(fields[2])));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return tests;
+    }
+
+    /**
+     * Forms the key used to identify a test in the set returned by
+     * {@link #readFinishedTests(File)}.
+     *
+     * @param suiteName name of the suite (test class)
+     * @param caseName  name of the test case
+     * @return the key for the test
+     */
+    public static String testKey(String suiteName, String caseName) {
+        return suiteName + "#" + caseName;
+    }
+
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+
+        StringBuilder result = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                c = field.charAt(++i);
+                switch (c) {
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    default:
+                        break;
+                }
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered output stream for reports which only writes to the underlying
+ * stream when explicitly committed (or when its buffer fills).  A plain
+ * {@link #flush()} is deliberately a no-op, so that flushing the XML
+ * serializer just moves its pending output into this buffer without a
+ * system call.  Counts of bytes written and commits made are kept so the
+ * cost of reporting can be logged.
+ * <p/>
+ * Once committed, the underlying stream can be released to be closed
+ * elsewhere, and the stream (with its buffer) reused for another file.
+ */
+final class ReportOutputStream extends OutputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private OutputStream mOut;
+    private final byte[] mBuffer;
+    private int mCount;
+    private long mBytesWritten;
+    private int mCommitCount;
+
+    /**
+     * Creates a stream with the default buffer size.
+     *
+     * @param out the underlying stream to commit to
+     */
+    ReportOutputStream(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a stream with the given buffer size.
+     *
+     * @param out the underlying stream to commit to
+     * @param bufferSize size of the buffer, in bytes
+     */
+    ReportOutputStream(OutputStream out, int bufferSize) {
+        this.mOut = out;
+        this.mBuffer = new byte[bufferSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mCount == mBuffer.length) {
+            drain();
+        }
+        mBuffer[mCount++] = (byte) b;
+        mBytesWritten++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        mBytesWritten += len;
+        if (len >= mBuffer.length) {
+            drain();
+            mOut.write(b, off, len);
+            return;
+        }
+
+        if (len > mBuffer.length - mCount) {
+            drain();
+        }
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+    }
+
+    /**
+     * Does nothing: use {@link #commit()} to push output to storage.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Writes all buffered output to the underlying stream and flushes it.
+     *
+     * @throws IOException on any error writing to the underlying stream
+     */
+    public void commit() throws IOException {
+        drain();
+        mOut.flush();
+        mCommitCount++;
+    }
+
+    private void drain() throws IOException {
+        if (mCount > 0) {
+            mOut.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+
+    /**
+     * Releases the underlying stream without closing it, so that it can be
+     * closed elsewhere.  Output that has not been committed is discarded.
+     * This stream may then be used again after {@link #reset(OutputStream)}.
+     *
+     * @return the underlying stream, which the caller must close
+     */
+    public OutputStream release() {
+        OutputStream out = mOut;
+        mOut = null;
+        mCount = 0;
+        return out;
+    }
+
+    /**
+     * Directs this stream to a new underlying stream, resetting the counts of
+     * bytes written and commits made.
+     *
+     * @param out the underlying stream to commit to
+     */
+    public void reset(OutputStream out) {
+        mOut = out;
+        mCount = 0;
+        mBytesWritten = 0;
+        mCommitCount = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    /**
+     * @return the total number of bytes written to this stream, including
+     *         any still buffered
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return the number of times this stream has been committed
+     */
+    public int getCommitCount() {
+        return mCommitCount;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes the report as it is streamed by the {@link JUnitReportListener}.
+ * The listener describes the report as a tree of elements with attributes
+ * and text, using the element and attribute names of the JUnit XML format,
+ * and the writer encodes this tree in its own format.  See
+ * {@link ReportFormat} for the available writers.
+ * <p/>
+ * Writers must produce output that can be concatenated: a sequence of
+ * elements written to a separate stream (without a document start or end)
+ * is appended to the report as-is, for example in concurrent mode.
+ * <p/>
+ * Writers are not thread safe.
+ */
+public interface ReportWriter {
+    /**
+     * Directs output to the given stream, resetting all state.  Output may
+     * be buffered until {@link #flush()} is called.
+     *
+     * @param out stream to write to
+     * @throws IOException on any error preparing the stream
+     */
+    void setOutput(OutputStream out) throws IOException;
+
+    /**
+     * Writes any header required at the start of the report.
+     *
+     * @throws IOException on any error writing to the stream
+     */
+    void startDocument() throws IOException;
+
+    /**
+     * Finishes the report, closing any elements that are still open.
+     *
+     * @throws IOException on any error writing to the stream
+     */
+    void endDocument() throws IOException;
+
+    /**
+     * Starts a new element nested in the current one.
+     *
+     * @param name name of the element
+     * @throws IOException on any error writing to the stream
+     */
+    void startTag(String name) throws IOException;
+
+    /**
+     * Adds an attribute to the element just started.  Attributes may only be
+     * added before any text, child elements or flushes.
+     *
+     * @param name  name of the attribute
+     * @param value value of the attribute
+     * @throws IOException on any error writing to the stream
+     */
+    void attribute(String name, String value) throws IOException;
+
+    /**
+     * Adds an attribute with a value held in a buffer, so that values built
+     * on the fly (such as durations) need not be turned into strings.
+     * Otherwise the same as {@link #attribute(String, String)}.
+     *
+     * @param name   name of the attribute
+     * @param buf    buffer holding the value
+     * @param start  offset of the value in the buffer
+     * @param length number of characters in the value
+     * @throws IOException on any error writing to the stream
+     */
+    void attribute(String name, char[] buf, int start, int length) throws IOException;
+
+    /**
+     * Adds text to the current element.  Text may be added in any number of
+     * pieces.
+     *
+     * @param buf    buffer holding the text
+     * @param start  offset of the text in the buffer
+     * @param length number of characters of text
+     * @throws IOException on any error writing to the stream
+     */
+    void text(char[] buf, int start, int length) throws IOException;
+
+    /**
+     * Adds text to the current element.
+     *
+     * @param text the text to add
+     * @throws IOException on any error writing to the stream
+     */
+    void text(String text) throws IOException;
+
+    /**
+     * Records summary attributes of the current element that are only known
+     * once its children have been written, such as the counts of a suite.
+     * Formats that cannot add attributes at this point ignore the summary.
+     *
+     * @param names  names of the summary attributes
+     * @param values values of the summary attributes
+     * @throws IOException on any error writing to the stream
+     */
+    void summary(String[] names, String[] values) throws IOException;
+
+    /**
+     * Ends the current element.
+     *
+     * @param name name of the element, which must match the start
+     * @throws IOException on any error writing to the stream
+     */
+    void endTag(String name) throws IOException;
+
+    /**
+     * @return the name of the current (innermost open) element, or null if
+     *         there is none
+     */
+    String getName();
+
+    /**
+     * Writes all buffered output to the stream.  This does not flush the
+     * stream itself.
+     *
+     * @throws IOException on any error writing to the stream
+     */
+    void flush() throws IOException;
+}
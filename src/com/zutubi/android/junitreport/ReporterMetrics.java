@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the reporter itself: the time spent in each
+ * listener callback, the files opened and the output written.  Times are
+ * kept in histograms with power-of-two buckets, so recording one is a few
+ * arithmetic operations and no allocation, at the cost of percentiles only
+ * being known to within a factor of two.
+ * <p/>
+ * Callback times are those seen by the thread running the tests.  When
+ * writing asynchronously, the time spent writing on the writer thread only
+ * shows up when a callback has to wait for room in the queue.
+ * <p/>
+ * Each thread records into its own histograms, so recording takes no locks
+ * that would serialise concurrently running tests.  The histograms of all
+ * threads are merged when read, which should happen once recording has
+ * stopped.
+ */
+final class ReporterMetrics {
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    private static final String HEADER = "# android-junit-report metrics: name, value";
+
+    private static final String METRIC_OVERHEAD = "overheadNanos";
+    private static final String METRIC_BYTES_WRITTEN = "bytesWritten";
+    private static final String METRIC_FLUSHES = "flushes";
+    private static final String METRIC_FILE_OPENS = "fileOpens";
+    private static final String SUFFIX_COUNT = ".count";
+    private static final String SUFFIX_TOTAL = ".totalNanos";
+    private static final String SUFFIX_P50 = ".p50Nanos";
+    private static final String SUFFIX_P90 = ".p90Nanos";
+    private static final String SUFFIX_P99 = ".p99Nanos";
+    private static final String SUFFIX_MAX = ".maxNanos";
+
+    /**
+     * The events that are timed.  All but {@link #OPEN_FILE} are listener
+     * callbacks, files are opened within callbacks or on the writer thread.
+     */
+    enum Event {
+        START_TEST("startTest", true),
+        END_TEST("endTest", true),
+        ADD_FAILURE("addFailure", true),
+        ADD_ERROR("addError", true),
+        RETRY_TEST("retryTest", true),
+        CARRY_OVER_TEST("carryOverTest", true),
+        CLOSE("close", true),
+        OPEN_FILE("openFile", false);
+
+        private final String mName;
+        private final boolean mCallback;
+
+        Event(String name, boolean callback) {
+            this.mName = name;
+            this.mCallback = callback;
+        }
+    }
+
+    private final List<Histogram[]> mThreadHistograms = new ArrayList<Histogram[]>();
+    private final ThreadLocal<Histogram[]> mHistograms = new ThreadLocal<Histogram[]>() {
+        @Override
+        protected Histogram[] initialValue() {
+            Histogram[] histograms = newHistograms();
+            synchronized (mThreadHistograms) {
+                mThreadHistograms.add(histograms);
+            }
+            return histograms;
+        }
+    };
+    private volatile long mBytesWritten;
+    private volatile int mFlushCount;
+
+    private static Histogram[] newHistograms() {
+        Histogram[] histograms = new Histogram[Event.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        return histograms;
+    }
+
+    private Histogram[] mergeHistograms() {
+        Histogram[] merged = newHistograms();
+        synchronized (mThreadHistograms) {
+            for (Histogram[] histograms: mThreadHistograms) {
+                for (int i = 0; i < merged.length; i++) {
+                    merged[i].add(histograms[i]);
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Records an occurrence of an event that has just ended.
+     *
+     * @param event     the event
+     * @param startTime value of {@link System#nanoTime()} when the event
+     *                  started
+     */
+    void record(Event event, long startTime) {
+        mHistograms.get()[event.ordinal()].record(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Sets the totals of report output.
+     *
+     * @param bytesWritten total number of bytes written to report files
+     * @param flushCount   total number of times output was flushed to
+     *                     storage
+     */
+    void setOutput(long bytesWritten, int flushCount) {
+        mBytesWritten = bytesWritten;
+        mFlushCount = flushCount;
+    }
+
+    /**
+     * @return the total time spent in listener callbacks, in nanoseconds
+     */
+    long getOverhead() {
+        return getOverhead(mergeHistograms());
+    }
+
+    private static long getOverhead(Histogram[] histograms) {
+        long total = 0;
+        for (Event event: Event.values()) {
+            if (event.mCallback) {
+                total += histograms[event.ordinal()].getTotal();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return a short, human-readable summary, with a line for each event
+     *         that occurred
+     */
+    String getSummary() {
+        Histogram[] histograms = mergeHistograms();
+        StringBuilder summary = new StringBuilder();
+        summary.append("Reporter overhead: ").append(formatNanos(getOverhead(histograms))).append(" in callbacks, ")
+                .append(histograms[Event.OPEN_FILE.ordinal()].getCount()).append(" file(s) opened, ")
+                .append(mBytesWritten).append(" bytes in ").append(mFlushCount).append(" flushes");
+        for (Event event: Event.values()) {
+            Histogram histogram = histograms[event.ordinal()];
+            if (histogram.getCount() > 0) {
+                summary.append("\n  ").append(event.mName).append(": ").append(histogram.getCount())
+                        .append(" in ").append(formatNanos(histogram.getTotal()))
+                        .append(", p50 ").append(formatNanos(histogram.getPercentile(50)))
+                        .append(", p99 ").append(formatNanos(histogram.getPercentile(99)))
+                        .append(", max ").append(formatNanos(histogram.getMax()));
+            }
+        }
+        return summary.toString();
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < TimeUnit.MILLISECONDS.toNanos(10)) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+        } else {
+            return TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+        }
+    }
+
+    /**
+     * Saves the metrics as a text file for other tools to read, with one
+     * line per metric:
+     * <pre>
+     *   name&lt;TAB&gt;value
+     * </pre>
+     * Each event has metrics for its count and its total, median, 90th and
+     * 99th percentile and maximum times, named after the event (e.g.
+     * startTest.p99Nanos).
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    void save(File file) throws IOException {
+        Histogram[] histograms = mergeHistograms();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), ENCODING_UTF_8));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            writeMetric(writer, METRIC_OVERHEAD, getOverhead(histograms));
+            writeMetric(writer, METRIC_BYTES_WRITTEN, mBytesWritten);
+            writeMetric(writer, METRIC_FLUSHES, mFlushCount);
+            writeMetric(writer, METRIC_FILE_OPENS, histograms[Event.OPEN_FILE.ordinal()].getCount());
+            for (Event event: Event.values()) {
+                Histogram histogram = histograms[event.ordinal()];
+                writeMetric(writer, event.mName + SUFFIX_COUNT, histogram.getCount());
+                writeMetric(writer, event.mName + SUFFIX_TOTAL, histogram.getTotal());
+                writeMetric(writer, event.mName + SUFFIX_P50, histogram.getPercentile(50));
+                writeMetric(writer, event.mName + SUFFIX_P90, histogram.getPercentile(90));
+                writeMetric(writer, event.mName + SUFFIX_P99, histogram.getPercentile(99));
+                writeMetric(writer, event.mName + SUFFIX_MAX, histogram.getMax());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeMetric(Writer writer, String name, long value) throws IOException {
+        writer.write(name);
+        writer.write('\t');
+        writer.write(Long.toString(value));
+        writer.write('\n');
+    }
+
+    /**
+     * Counts of times by power-of-two buckets: bucket i holds times t where
+     * 2^(i-1) &lt;= t &lt; 2^i, with bucket 0 holding zero times.  Not
+     * thread safe: each is recorded by one thread.
+     */
+    private static final class Histogram {
+        private final long[] mBuckets = new long[Long.SIZE + 1];
+        private long mCount;
+        private long mTotal;
+        private long mMax;
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            mBuckets[Long.SIZE - Long.numberOfLeadingZeros(nanos)]++;
+            mCount++;
+            mTotal += nanos;
+            if (nanos > mMax) {
+                mMax = nanos;
+            }
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] += other.mBuckets[i];
+            }
+            mCount += other.mCount;
+            mTotal += other.mTotal;
+            if (other.mMax > mMax) {
+                mMax = other.mMax;
+            }
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getTotal() {
+            return mTotal;
+        }
+
+        long getMax() {
+            return mMax;
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the bucket it falls
+         * in (but no more than the maximum).
+         *
+         * @param percentile the percentile, from 1 to 100
+         * @return the estimated time, or zero if nothing was recorded
+         */
+        long getPercentile(int percentile) {
+            long rank = (mCount * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    long upper = i == 0 ? 0 : i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(upper, mMax);
+                }
+            }
+            return 0;
+        }
+    }
+}
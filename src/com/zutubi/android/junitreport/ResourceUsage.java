@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+
+import android.os.Debug;
+
+/**
+ * Resources used by a test, or the total for a suite: thread CPU time,
+ * allocations, garbage collections and the change in heap usage.  A test's
+ * usage is measured by calling {@link #start()} just before the test and
+ * {@link #end()} just after it, on the thread running the test.  Thread CPU
+ * time and allocations are those of that thread only, garbage collections
+ * and heap usage are process wide.
+ * <p/>
+ * Sampling makes a handful of cheap runtime calls.  The time these take is
+ * measured and recorded as the overhead of sampling, so the cost of leaving
+ * this on can be seen in the report itself.  Allocations made by sampling
+ * fall outside the window measured.  Not thread-safe.
+ * <p/>
+ * The runtime's allocation counting calls are deprecated, but nothing else
+ * counts the allocations of a single thread, so their deprecation warnings
+ * are suppressed.
+ */
+final class ResourceUsage {
+    private static final String TAG_PROPERTIES = "properties";
+    private static final String TAG_PROPERTY = "property";
+    private static final String ATTRIBUTE_NAME = "name";
+    private static final String ATTRIBUTE_VALUE = "value";
+
+    private static final String PROPERTY_CPU_TIME = "cpuTime";
+    private static final String PROPERTY_ALLOC_COUNT = "allocCount";
+    private static final String PROPERTY_ALLOC_BYTES = "allocBytes";
+    private static final String PROPERTY_GC_COUNT = "gcCount";
+    private static final String PROPERTY_HEAP_DELTA = "heapDelta";
+    private static final String PROPERTY_SAMPLING_OVERHEAD = "samplingOverheadNanos";
+
+    /**
+     * Names of the properties written, in the order of the values returned
+     * by {@link #getValues(DurationFormat)}.
+     */
+    static final String[] PROPERTY_NAMES = {
+            PROPERTY_CPU_TIME,
+            PROPERTY_ALLOC_COUNT,
+            PROPERTY_ALLOC_BYTES,
+            PROPERTY_GC_COUNT,
+            PROPERTY_HEAP_DELTA,
+            PROPERTY_SAMPLING_OVERHEAD
+    };
+
+    private long mCpuTime;
+    private long mAllocCount;
+    private long mAllocBytes;
+    private long mGcCount;
+    private long mHeapDelta;
+    private long mOverhead;
+
+    /**
+     * Starts counting allocations, which the runtime only does on request.
+     * Must be called before any usage is measured.
+     */
+    @SuppressWarnings("deprecation")
+    static void startCounting() {
+        Debug.startAllocCounting();
+    }
+
+    /**
+     * Stops counting allocations.
+     */
+    @SuppressWarnings("deprecation")
+    static void stopCounting() {
+        Debug.stopAllocCounting();
+    }
+
+    /**
+     * Takes the starting sample for a test.
+     */
+    @SuppressWarnings("deprecation")
+    void start() {
+        long sampleStart = System.nanoTime();
+        // Process-wide values first, as reading them may allocate.
+        mGcCount = -Compatibility.getGcCount();
+        mHeapDelta = -usedHeap();
+        mAllocCount = -Debug.getThreadAllocCount();
+        mAllocBytes = -Debug.getThreadAllocSize();
+        mCpuTime = -Debug.threadCpuTimeNanos();
+        mOverhead += System.nanoTime() - sampleStart;
+    }
+
+    /**
+     * Takes the ending sample for a test, leaving this holding the
+     * difference from the starting sample.
+     */
+    @SuppressWarnings("deprecation")
+    void end() {
+        long sampleStart = System.nanoTime();
+        mCpuTime += Debug.threadCpuTimeNanos();
+        mAllocCount += Debug.getThreadAllocCount();
+        mAllocBytes += Debug.getThreadAllocSize();
+        mHeapDelta += usedHeap();
+        mGcCount += Compatibility.getGcCount();
+        mOverhead += System.nanoTime() - sampleStart;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Adds the usage of a test to this total.
+     *
+     * @param usage the usage to add
+     */
+    void add(ResourceUsage usage) {
+        mCpuTime += usage.mCpuTime;
+        mAllocCount += usage.mAllocCount;
+        mAllocBytes += usage.mAllocBytes;
+        mGcCount += usage.mGcCount;
+        mHeapDelta += usage.mHeapDelta;
+        mOverhead += usage.mOverhead;
+    }
+
+    /**
+     * Resets this total to zero.
+     */
+    void reset() {
+        mCpuTime = 0;
+        mAllocCount = 0;
+        mAllocBytes = 0;
+        mGcCount = 0;
+        mHeapDelta = 0;
+        mOverhead = 0;
+    }
+
+    /**
+     * @return the time spent taking samples, in nanoseconds
+     */
+    long getOverhead() {
+        return mOverhead;
+    }
+
+    /**
+     * Writes this usage as a &lt;properties&gt; element.  The CPU time is
+     * in seconds, like other durations in the report, but the sampling
+     * overhead is in nanoseconds as it is usually too small to show in
+     * seconds.
+     *
+     * @param writer         writer to write the element to
+     * @param durationFormat format used for times
+     * @throws IOException on any error writing
+     */
+    void write(ReportWriter writer, DurationFormat durationFormat) throws IOException {
+        String[] values = getValues(durationFormat);
+        writer.startTag(TAG_PROPERTIES);
+        for (int i = 0; i < PROPERTY_NAMES.length; i++) {
+            writeProperty(writer, PROPERTY_NAMES[i], values[i]);
+        }
+        writer.endTag(TAG_PROPERTIES);
+    }
+
+    /**
+     * Formats the values of the properties, as written by
+     * {@link #write(ReportWriter, DurationFormat)}.
+     *
+     * @param durationFormat format used for times
+     * @return the property values, in the order of {@link #PROPERTY_NAMES}
+     */
+    String[] getValues(DurationFormat durationFormat) {
+        return new String[] {
+                durationFormat.format(mCpuTime),
+                Long.toString(mAllocCount),
+                Long.toString(mAllocBytes),
+                Long.toString(mGcCount),
+                Long.toString(mHeapDelta),
+                Long.toString(mOverhead)
+        };
+    }
+
+    private static void writeProperty(ReportWriter writer, String name, String value) throws IOException {
+        writer.startTag(TAG_PROPERTY);
+        writer.attribute(ATTRIBUTE_NAME, name);
+        writer.attribute(ATTRIBUTE_VALUE, value);
+        writer.endTag(TAG_PROPERTY);
+    }
+}
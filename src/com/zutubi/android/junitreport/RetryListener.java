@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import junit.framework.Test;
+
+/**
+ * A test listener that is also told about failed attempts at running a test
+ * that are retried by a {@link RetryingTestResult}.  Such attempts are not
+ * reported to ordinary listeners: they see a single run of the test, which
+ * fails only if the last attempt fails.
+ */
+public interface RetryListener {
+    /**
+     * Called when an attempt at running a test fails and the test is about
+     * to be run again.  This is called between the start and end of the
+     * test, on the thread running it.
+     *
+     * @param test     the test that failed
+     * @param error    the failure or error that ended the attempt
+     * @param duration duration of the attempt, in nanoseconds
+     */
+    void retryTest(Test test, Throwable error, long duration);
+}
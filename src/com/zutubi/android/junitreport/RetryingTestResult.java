@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+import junit.framework.TestResult;
+
+/**
+ * Test result that re-runs a failed test in the same process, up to a
+ * maximum number of attempts.  Listeners see each test start and end once,
+ * and are only told of a failure or error if the last attempt fails, so a
+ * test that passes when retried counts as passing.  Attempts that fail and
+ * are retried are reported to listeners that implement
+ * {@link RetryListener}, so they can still be recorded.
+ * <p/>
+ * Each attempt runs the whole test again, including setUp and tearDown, on
+ * the same test instance.
+ */
+public class RetryingTestResult extends TestResult {
+    private final int mMaxAttempts;
+    private final List<RetryListener> mRetryListeners = new ArrayList<RetryListener>();
+
+    /**
+     * Creates a result that runs each test up to the given number of times.
+     *
+     * @param maxAttempts maximum number of times to run a test, at least one
+     */
+    public RetryingTestResult(int maxAttempts) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+    }
+
+    @Override
+    public synchronized void addListener(TestListener listener) {
+        super.addListener(listener);
+        if (listener instanceof RetryListener) {
+            mRetryListeners.add((RetryListener) listener);
+        }
+    }
+
+    @Override
+    public synchronized void removeListener(TestListener listener) {
+        super.removeListener(listener);
+        if (listener instanceof RetryListener) {
+            mRetryListeners.remove(listener);
+        }
+    }
+
+    @Override
+    protected void run(TestCase test) {
+        startTest(test);
+        for (int attempt = 1; ; attempt++) {
+            long startTime = System.nanoTime();
+            Throwable error = null;
+            try {
+                test.runBare();
+            } catch (ThreadDeath e) {
+                throw e;
+            } catch (Throwable t) {
+                error = t;
+            }
+
+            if (error == null) {
+                break;
+            }
+
+            if (attempt >= mMaxAttempts) {
+                if (error instanceof AssertionFailedError) {
+                    addFailure(test, (AssertionFailedError) error);
+                } else {
+                    addError(test, error);
+                }
+                break;
+            }
+
+            long duration = System.nanoTime() - startTime;
+            for (RetryListener listener: getRetryListeners()) {
+                listener.retryTest(test, error, duration);
+            }
+        }
+        endTest(test);
+    }
+
+    private synchronized List<RetryListener> getRetryListeners() {
+        return new ArrayList<RetryListener>(mRetryListeners);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders stack traces with common noise (e.g. framework methods) removed.
+ * Unlike filtering the output of {@link Throwable#printStackTrace()}, this
+ * works directly on {@link StackTraceElement}s, so filtered frames are never
+ * formatted at all.
+ * <p/>
+ * Patterns are prefixes of the qualified method name of a frame, i.e. the
+ * class name, a dot and the method name (e.g. "junit.framework.Assert."
+ * matches all methods of that class).  Exclude patterns remove matching
+ * frames, include patterns keep them.  Where both match a frame the longest
+ * pattern wins, so includes can carve exceptions out of the defaults.  All
+ * patterns are compiled into a single prefix tree, so the cost of matching a
+ * frame depends on the length of its name and not on the number of patterns.
+ */
+public final class StackTraceFilter {
+    private static final int ACTION_NONE = 0;
+    private static final int ACTION_EXCLUDE = 1;
+    private static final int ACTION_INCLUDE = 2;
+
+    private static final char PREFIX_EXCLUDE = '-';
+    private static final char PREFIX_INCLUDE = '+';
+    private static final String PATTERN_SEPARATOR = ",";
+
+    private static final int MAX_CAUSE_DEPTH = 64;
+
+    // With thanks to org.apache.tools.ant.taskdefs.optional.junit.JUnitTestRunner.
+    // Trimmed some entries, added others for Android.
+    private static final String[] DEFAULT_EXCLUDES = new String[] {
+            "junit.framework.TestCase", "junit.framework.TestResult",
+            "junit.framework.TestSuite",
+            "junit.framework.Assert.", // don't filter AssertionFailure
+            "java.lang.reflect.Method.invoke", "sun.reflect.",
+            // JUnit 4 support:
+            "org.junit.", "junit.framework.JUnit4TestAdapter",
+            // Added for Android
+            "android.test.", "android.app.Instrumentation",
+    };
+
+    /**
+     * A filter using just the default patterns.
+     */
+    public static final StackTraceFilter DEFAULT = new StackTraceFilter();
+
+    private final Node mRoot = new Node();
+
+    private StackTraceFilter() {
+        for (String pattern: DEFAULT_EXCLUDES) {
+            add(pattern, ACTION_EXCLUDE);
+        }
+    }
+
+    /**
+     * Creates a filter that applies the given patterns on top of the
+     * defaults.  The patterns are separated by commas.  Each is a prefix
+     * optionally preceded by '-' to exclude (the default) or '+' to include
+     * matching frames.
+     *
+     * @param patterns comma-separated list of patterns, may be null or empty
+     * @return a filter applying the defaults and the given patterns
+     */
+    public static StackTraceFilter withPatterns(String patterns) {
+        if (patterns == null || patterns.trim().length() == 0) {
+            return DEFAULT;
+        }
+
+        StackTraceFilter filter = new StackTraceFilter();
+        for (String pattern: patterns.split(PATTERN_SEPARATOR)) {
+            pattern = pattern.trim();
+            if (pattern.length() == 0) {
+                continue;
+            }
+
+            char first = pattern.charAt(0);
+            if (first == PREFIX_INCLUDE) {
+                filter.add(pattern.substring(1), ACTION_INCLUDE);
+            } else if (first == PREFIX_EXCLUDE) {
+                filter.add(pattern.substring(1), ACTION_EXCLUDE);
+            } else {
+                filter.add(pattern, ACTION_EXCLUDE);
+            }
+        }
+        return filter;
+    }
+
+    private void add(String prefix, int action) {
+        if (prefix.length() == 0) {
+            return;
+        }
+
+        Node node = mRoot;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.getOrAddChild(prefix.charAt(i));
+        }
+        node.mAction = action;
+    }
+
+    /**
+     * Indicates if the given frame should be removed from traces.
+     *
+     * @param element the frame to test
+     * @return true if the frame matches an exclude pattern (and no longer
+     *         include pattern)
+     */
+    public boolean isFiltered(StackTraceElement element) {
+        int action = ACTION_NONE;
+        Node node = mRoot;
+        String className = element.getClassName();
+        for (int i = 0; i < className.length(); i++) {
+            node = node.getChild(className.charAt(i));
+            if (node == null) {
+                return action == ACTION_EXCLUDE;
+            }
+            if (node.mAction != ACTION_NONE) {
+                action = node.mAction;
+            }
+        }
+
+        node = node.getChild('.');
+        if (node == null) {
+            return action == ACTION_EXCLUDE;
+        }
+        if (node.mAction != ACTION_NONE) {
+            action = node.mAction;
+        }
+
+        String methodName = element.getMethodName();
+        for (int i = 0; i < methodName.length(); i++) {
+            node = node.getChild(methodName.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.mAction != ACTION_NONE) {
+                action = node.mAction;
+            }
+        }
+        return action == ACTION_EXCLUDE;
+    }
+
+    /**
+     * Writes the filtered stack trace of the given throwable, including its
+     * chain of causes, in the same layout as
+     * {@link Throwable#printStackTrace()}.  As in that method, frames a cause
+     * has in common with the trace that encloses it are omitted and replaced
+     * with a "... N more" line, where N counts only the omitted frames that
+     * pass the filter.
+     *
+     * @param throwable the throwable to write the trace of
+     * @param out       writer to write the trace to
+     * @throws IOException on any error writing to the writer
+     */
+    public void printStackTrace(Throwable throwable, Writer out) throws IOException {
+        List<Throwable> seen = new ArrayList<Throwable>(4);
+        StackTraceElement[] enclosingTrace = null;
+        Throwable current = throwable;
+        while (current != null && seen.size() < MAX_CAUSE_DEPTH && !containsInstance(seen, current)) {
+            seen.add(current);
+            StackTraceElement[] trace = current.getStackTrace();
+            if (enclosingTrace != null) {
+                out.write("Caused by: ");
+            }
+            writeHeader(current, out);
+
+            int end = trace.length - countFramesInCommon(trace, enclosingTrace);
+            for (int i = 0; i < end; i++) {
+                StackTraceElement element = trace[i];
+                if (!isFiltered(element)) {
+                    writeFrame(element, out);
+                }
+            }
+
+            int omitted = 0;
+            for (int i = end; i < trace.length; i++) {
+                if (!isFiltered(trace[i])) {
+                    omitted++;
+                }
+            }
+            if (omitted > 0) {
+                out.write("\t... ");
+                out.write(Integer.toString(omitted));
+                out.write(" more\n");
+            }
+
+            enclosingTrace = trace;
+            current = current.getCause();
+        }
+    }
+
+    private static void writeHeader(Throwable throwable, Writer out) throws IOException {
+        // Equivalent to writing throwable.toString(), without first building
+        // a copy of a potentially huge message.
+        out.write(throwable.getClass().getName());
+        String message = throwable.getLocalizedMessage();
+        if (message != null) {
+            out.write(": ");
+            out.write(message);
+        }
+        out.write('\n');
+    }
+
+    private static boolean containsInstance(List<Throwable> list, Throwable throwable) {
+        for (Throwable t: list) {
+            if (t == throwable) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countFramesInCommon(StackTraceElement[] trace, StackTraceElement[] enclosingTrace) {
+        if (enclosingTrace == null) {
+            return 0;
+        }
+
+        int i = trace.length - 1;
+        int j = enclosingTrace.length - 1;
+        while (i >= 0 && j >= 0 && trace[i].equals(enclosingTrace[j])) {
+            i--;
+            j--;
+        }
+        return trace.length - 1 - i;
+    }
+
+    private static void writeFrame(StackTraceElement element, Writer out) throws IOException {
+        out.write("\tat ");
+        out.write(element.getClassName());
+        out.write('.');
+        out.write(element.getMethodName());
+        out.write('(');
+        String fileName = element.getFileName();
+        if (element.isNativeMethod()) {
+            out.write("Native Method");
+        } else if (fileName == null) {
+            out.write("Unknown Source");
+        } else {
+            out.write(fileName);
+            int lineNumber = element.getLineNumber();
+            if (lineNumber >= 0) {
+                out.write(':');
+                out.write(Integer.toString(lineNumber));
+            }
+        }
+        out.write(")\n");
+    }
+
+    /**
+     * A node in the pattern prefix tree.  Children are kept in small parallel
+     * arrays, which are compact and quick to scan for the low fan-out typical
+     * of package and class names.
+     */
+    private static final class Node {
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private char[] mKeys = NO_KEYS;
+        private Node[] mChildren = NO_CHILDREN;
+        private int mAction = ACTION_NONE;
+
+        Node getChild(char c) {
+            char[] keys = mKeys;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return mChildren[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrAddChild(char c) {
+            Node child = getChild(c);
+            if (child == null) {
+                int count = mKeys.length;
+                char[] keys = new char[count + 1];
+                Node[] children = new Node[count + 1];
+                System.arraycopy(mKeys, 0, keys, 0, count);
+                System.arraycopy(mChildren, 0, children, 0, count);
+                child = new Node();
+                keys[count] = c;
+                children[count] = child;
+                mKeys = keys;
+                mChildren = children;
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Collects rendered &lt;testcase&gt; elements by suite, so that each suite
+ * can be written as a single element even when the tests of different
+ * classes are interleaved.  Cases are buffered in memory up to a budget
+ * shared by all suites.  When the budget is exceeded, buffered cases are
+ * spilled to a temporary file per suite, so memory use stays bounded however
+ * large the run.  Not thread-safe.
+ */
+final class SuiteRegrouper {
+    private static final String LOG_TAG = SuiteRegrouper.class.getSimpleName();
+
+    private static final String SPILL_PREFIX = "junit-report-";
+    private static final String SPILL_SUFFIX = ".part";
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final Map<String, SuiteGroup> mGroups = new LinkedHashMap<String, SuiteGroup>();
+    private final int mMemoryBudget;
+    private final File mSpillDir;
+    private int mBufferedBytes;
+
+    /**
+     * Creates a regrouper.
+     *
+     * @param memoryBudget maximum number of bytes to buffer in memory
+     * @param spillDir     directory to write temporary files to
+     */
+    SuiteRegrouper(int memoryBudget, File spillDir) {
+        this.mMemoryBudget = memoryBudget;
+        this.mSpillDir = spillDir;
+    }
+
+    /**
+     * Adds a rendered case to its suite.
+     *
+     * @param suiteName  name of the suite the case belongs to
+     * @param timestamp  wall clock time the case started
+     * @param startTime  monotonic time the case started
+     * @param endTime    monotonic time the case ended
+     * @param failures   number of failures in the case
+     * @param errors     number of errors in the case
+     * @param bytes      buffer holding the rendered case
+     * @param length     length of the rendered case in the buffer
+     * @throws IOException on any error spilling to disk
+     */
+    void add(String suiteName, long timestamp, long startTime, long endTime, int failures, int errors, byte[] bytes, int length) throws IOException {
+        SuiteGroup group = mGroups.get(suiteName);
+        if (group == null) {
+            group = new SuiteGroup(suiteName, timestamp, startTime);
+            mGroups.put(suiteName, group);
+        }
+
+        group.mTests++;
+        group.mFailures += failures;
+        group.mErrors += errors;
+        group.mStartTime = Math.min(group.mStartTime, startTime);
+        group.mEndTime = Math.max(group.mEndTime, endTime);
+
+        if (mBufferedBytes + length > mMemoryBudget) {
+            spillAll();
+        }
+
+        if (length > mMemoryBudget) {
+            group.spill(bytes, length);
+        } else {
+            group.mBuffer.write(bytes, 0, length);
+            mBufferedBytes += length;
+        }
+    }
+
+    private void spillAll() throws IOException {
+        Log.d(LOG_TAG, "Buffered cases exceeded " + mMemoryBudget + " bytes, spilling to disk");
+        for (SuiteGroup group: mGroups.values()) {
+            if (group.mBuffer.size() > 0) {
+                group.spillBuffer();
+            }
+        }
+        mBufferedBytes = 0;
+    }
+
+    /**
+     * @return all suites in the order they were first seen
+     */
+    Collection<SuiteGroup> getGroups() {
+        return mGroups.values();
+    }
+
+    /**
+     * @return the number of bytes held by the buffers of all suites, which
+     *         may be more than are in use as the buffers grow in steps
+     */
+    int getRetainedBytes() {
+        int total = 0;
+        for (SuiteGroup group: mGroups.values()) {
+            total += group.mBuffer.capacity();
+        }
+        return total;
+    }
+
+    /**
+     * Deletes any temporary files and forgets all suites.
+     */
+    void clear() {
+        for (SuiteGroup group: mGroups.values()) {
+            group.deleteSpillFile();
+        }
+        mGroups.clear();
+        mBufferedBytes = 0;
+    }
+
+    /**
+     * The buffered cases and summary of a single suite.
+     */
+    final class SuiteGroup {
+        private final String mName;
+        private final long mTimestamp;
+        private int mTests;
+        private int mFailures;
+        private int mErrors;
+        private long mStartTime;
+        private long mEndTime;
+        private CaseBuffer mBuffer = new CaseBuffer();
+        private File mSpillFile;
+
+        SuiteGroup(String name, long timestamp, long startTime) {
+            this.mName = name;
+            this.mTimestamp = timestamp;
+            this.mStartTime = startTime;
+            this.mEndTime = startTime;
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        long getTimestamp() {
+            return mTimestamp;
+        }
+
+        int getTests() {
+            return mTests;
+        }
+
+        int getFailures() {
+            return mFailures;
+        }
+
+        int getErrors() {
+            return mErrors;
+        }
+
+        long getDuration() {
+            return mEndTime - mStartTime;
+        }
+
+        private void spillBuffer() throws IOException {
+            OutputStream out = openSpillFile();
+            try {
+                mBuffer.writeTo(out);
+            } finally {
+                out.close();
+            }
+            // A reset buffer would keep the array it grew to, so that memory
+            // use would be bounded by the peak of every suite rather than the
+            // budget.
+            mBuffer = new CaseBuffer();
+        }
+
+        private void spill(byte[] bytes, int length) throws IOException {
+            if (mBuffer.size() > 0) {
+                mBufferedBytes -= mBuffer.size();
+                spillBuffer();
+            }
+
+            OutputStream out = openSpillFile();
+            try {
+                out.write(bytes, 0, length);
+            } finally {
+                out.close();
+            }
+        }
+
+        private OutputStream openSpillFile() throws IOException {
+            if (mSpillFile == null) {
+                mSpillFile = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, mSpillDir);
+            }
+            return new FileOutputStream(mSpillFile, true);
+        }
+
+        /**
+         * Writes all cases of this suite, spilled and buffered, in the order
+         * they were added.
+         *
+         * @param out stream to write to
+         * @throws IOException on any error reading spilled cases or writing
+         */
+        void writeCases(OutputStream out) throws IOException {
+            if (mSpillFile != null) {
+                InputStream in = new FileInputStream(mSpillFile);
+                try {
+                    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            mBuffer.writeTo(out);
+        }
+
+        private void deleteSpillFile() {
+            if (mSpillFile != null && !mSpillFile.delete()) {
+                Log.w(LOG_TAG, "Unable to delete temporary file '" + mSpillFile + "'");
+            }
+            mSpillFile = null;
+        }
+    }
+
+    /**
+     * A buffer that can report how much memory it holds.
+     */
+    private static final class CaseBuffer extends ByteArrayOutputStream {
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import android.util.Log;
+
+/**
+ * A fixed-width region reserved in a start tag for attributes whose values
+ * are only known once the element is complete, such as the duration of a
+ * suite.  The region is first written as placeholder attributes, padded
+ * with zeros so that an unpatched report still parses.  Once the values are
+ * known the region is overwritten in place in the report file, any leftover
+ * space being filled with whitespace between attributes.  This keeps the
+ * report streamed with constant memory, at the cost of a small positional
+ * write per element.
+ * <p/>
+ * All attribute names and values must be ASCII, so that their length in
+ * characters and in UTF-8 bytes is the same.
+ */
+final class SummarySlot {
+    private static final String LOG_TAG = SummarySlot.class.getSimpleName();
+
+    private final String[] mNames;
+    private final String[] mPlaceholders;
+    private final byte[] mPlaceholderBytes;
+
+    /**
+     * Creates a slot for the given attributes.
+     *
+     * @param names        names of the attributes in the slot
+     * @param placeholders placeholder values for each attribute, which also
+     *                     determine the space reserved for them
+     */
+    SummarySlot(String[] names, String[] placeholders) {
+        this.mNames = names;
+        this.mPlaceholders = placeholders;
+        this.mPlaceholderBytes = render(placeholders, 0);
+    }
+
+    /**
+     * Writes the placeholder attributes.  Must be called straight after the
+     * start tag is written, so that the slot starts immediately after the
+     * tag name.
+     *
+     * @param writer writer to write the attributes to, which must be writing
+     *               XML
+     * @throws IOException on any error writing to the writer
+     */
+    void writePlaceholders(ReportWriter writer) throws IOException {
+        for (int i = 0; i < mNames.length; i++) {
+            writer.attribute(mNames[i], mPlaceholders[i]);
+        }
+    }
+
+    /**
+     * Overwrites the slot in a report file with the actual attribute values.
+     * The placeholder must already be committed to the file.  As a safety
+     * check, the file is only changed if it still holds the placeholder at the
+     * given offset.
+     *
+     * @param file   the report file to patch
+     * @param offset byte offset of the slot in the file, i.e. the position
+     *               just after the tag name
+     * @param values the values of the attributes
+     * @return true if the file was patched
+     * @throws IOException on any error accessing the file
+     */
+    boolean patch(File file, long offset, String[] values) throws IOException {
+        byte[] replacement = render(values, mPlaceholderBytes.length);
+        if (replacement == null) {
+            Log.w(LOG_TAG, "Summary values do not fit in reserved slot, leaving placeholders");
+            return false;
+        }
+
+        if (!overwrite(file, offset, mPlaceholderBytes, replacement)) {
+            Log.w(LOG_TAG, "Unexpected content at summary slot in '" + file + "', leaving placeholders");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Overwrites a region of a file, if it still holds the expected content.
+     *
+     * @param file        the file to change
+     * @param offset      byte offset of the region in the file
+     * @param expected    content the region is expected to hold
+     * @param replacement new content for the region, of the same length
+     * @return true if the file was changed, false if the region did not
+     *         hold the expected content
+     * @throws IOException on any error accessing the file
+     */
+    static boolean overwrite(File file, long offset, byte[] expected, byte[] replacement) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] existing = new byte[expected.length];
+            raf.seek(offset);
+            raf.readFully(existing);
+            for (int i = 0; i < existing.length; i++) {
+                if (existing[i] != expected[i]) {
+                    return false;
+                }
+            }
+
+            raf.seek(offset);
+            raf.write(replacement);
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Renders attributes in the same form as the XML serializer, i.e. each as
+     * ' name="value"'.
+     *
+     * @param values the attribute values
+     * @param width  if positive, the exact width to pad the result to with
+     *               trailing spaces
+     * @return the rendered attributes, or null if they are wider than the
+     *         given width
+     */
+    private byte[] render(String[] values, int width) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mNames.length; i++) {
+            builder.append(' ').append(mNames[i]).append("=\"").append(values[i]).append('"');
+        }
+
+        if (width > 0) {
+            if (builder.length() > width) {
+                return null;
+            }
+
+            while (builder.length() < width) {
+                builder.append(' ');
+            }
+        }
+
+        byte[] bytes = new byte[builder.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) builder.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The tests that passed in previous runs, with the fingerprints their
+ * classes had then (see {@link ClassManifest}).  A test class whose
+ * fingerprint is unchanged, and all of whose tests passed, need not be run
+ * again: its results can be carried over.  The baseline is a text file,
+ * built from previous reports by the host tools baseline command, with one
+ * line per test:
+ * <pre>
+ *   suite&lt;TAB&gt;case&lt;TAB&gt;fingerprint&lt;TAB&gt;milliseconds
+ * </pre>
+ * Only classes all of whose tests passed are included.  Lines starting with
+ * # are comments, and malformed lines are ignored, so a damaged baseline
+ * only means more tests are run.
+ */
+final class TestBaseline {
+    private static final String ENCODING_UTF_8 = "UTF-8";
+    private static final String COMMENT_PREFIX = "#";
+
+    // Fingerprints and durations, keyed by suite and case.
+    private final Map<String, String> mFingerprints = new HashMap<String, String>();
+    private final Map<String, Long> mDurations = new HashMap<String, Long>();
+
+    /**
+     * Loads a baseline file.
+     *
+     * @param file the file to load
+     * @return the loaded baseline
+     * @throws IOException if the file cannot be read
+     */
+    static TestBaseline load(File file) throws IOException {
+        TestBaseline baseline = new TestBaseline();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING_UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(COMMENT_PREFIX)) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+                if (fields.length == 4) {
+                    try {
+                        long millis = Long.parseLong(fields[3]);
+                        String key = key(fields[0], fields[1]);
+                        baseline.mFingerprints.put(key, fields[2]);
+                        baseline.mDurations.put(key, millis);
+                    } catch (NumberFormatException e) {
+                        // Ignore the line.
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return baseline;
+    }
+
+    private static String key(String suiteName, String caseName) {
+        return suiteName + "#" + caseName;
+    }
+
+    /**
+     * @return the number of tests in the baseline
+     */
+    int size() {
+        return mFingerprints.size();
+    }
+
+    /**
+     * Indicates if a test passed in the baseline when its class had the
+     * given fingerprint.
+     *
+     * @param suiteName   name of the suite (test class)
+     * @param caseName    name of the test case
+     * @param fingerprint the current fingerprint of the test class
+     * @return true if the test passed with the same fingerprint
+     */
+    boolean passed(String suiteName, String caseName, String fingerprint) {
+        return fingerprint.equals(mFingerprints.get(key(suiteName, caseName)));
+    }
+
+    /**
+     * @param suiteName name of the suite (test class)
+     * @param caseName  name of the test case
+     * @return the duration of the test in the baseline, in milliseconds, or
+     *         zero if it is not in the baseline
+     */
+    long getMillis(String suiteName, String caseName) {
+        Long millis = mDurations.get(key(suiteName, caseName));
+        return millis == null ? 0 : millis;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Splits tests into shards with near-equal predicted durations, so that
+ * shards run in parallel (e.g. on several devices) finish at about the same
+ * time.  Uses the longest processing time first heuristic: tests are taken
+ * longest first, each going to the shard with the least predicted time so
+ * far.  The split depends only on the tests and the history, so each shard
+ * can compute it independently and all shards agree.
+ */
+final class TestSharder {
+    /**
+     * Duration predicted for every test when there is no history, which
+     * reduces to an even split by count.
+     */
+    private static final long DEFAULT_MILLIS = 1000;
+
+    private final DurationHistory mHistory;
+    private final int mNumShards;
+    private long[] mLoads;
+
+    /**
+     * Creates a sharder.
+     *
+     * @param history   durations of previous runs, may be null if there is
+     *                  no history
+     * @param numShards number of shards to split tests into
+     */
+    TestSharder(DurationHistory history, int numShards) {
+        this.mHistory = history;
+        this.mNumShards = numShards;
+    }
+
+    /**
+     * Assigns tests to shards.
+     *
+     * @param testCases the tests to split
+     * @return for each test, by index, the shard it is assigned to
+     */
+    int[] assign(List<TestCase> testCases) {
+        final int count = testCases.size();
+        final long[] durations = new long[count];
+        final String[] keys = new String[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            TestCase testCase = testCases.get(i);
+            String suiteName = testCase.getClass().getName();
+            String caseName = testCase.getName();
+            durations[i] = mHistory == null ? DEFAULT_MILLIS : mHistory.predict(suiteName, caseName, DEFAULT_MILLIS);
+            keys[i] = suiteName + "#" + caseName;
+            order[i] = i;
+        }
+
+        // Longest first, ties broken by name so the order does not depend
+        // on how the tests were listed.
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (durations[a] != durations[b]) {
+                    return durations[a] > durations[b] ? -1 : 1;
+                }
+                int result = keys[a].compareTo(keys[b]);
+                return result != 0 ? result : a.compareTo(b);
+            }
+        });
+
+        long[] loads = new long[mNumShards];
+        int[] shards = new int[count];
+        for (Integer i: order) {
+            int lightest = 0;
+            for (int shard = 1; shard < mNumShards; shard++) {
+                if (loads[shard] < loads[lightest]) {
+                    lightest = shard;
+                }
+            }
+            shards[i] = lightest;
+            loads[lightest] += durations[i];
+        }
+        mLoads = loads;
+        return shards;
+    }
+
+    /**
+     * @param shard index of a shard
+     * @return the predicted duration of the shard in milliseconds, as of the
+     *         last call to {@link #assign(List)}
+     */
+    long getPredictedMillis(int shard) {
+        return mLoads == null ? 0 : mLoads[shard];
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that streams text into an element of a {@link ReportWriter} in
+ * fixed-size chunks, so that large text (such as a stack trace) never needs
+ * to be held in memory as a whole.  Text beyond a maximum length is counted
+ * but discarded, and replaced with a marker when the writer is closed.
+ */
+final class TextChunkWriter extends Writer {
+    private static final int CHUNK_SIZE = 1024;
+
+    private final ReportWriter mReportWriter;
+    private final long mMaxLength;
+    private final char[] mChunk = new char[CHUNK_SIZE];
+    private int mCount;
+    private long mLength;
+
+    /**
+     * Creates a writer that writes through to the given report writer.
+     *
+     * @param reportWriter writer to write text to
+     * @param maxLength    maximum number of characters to write, or zero for
+     *                     no limit
+     */
+    TextChunkWriter(ReportWriter reportWriter, long maxLength) {
+        this.mReportWriter = reportWriter;
+        this.mMaxLength = maxLength <= 0 ? Long.MAX_VALUE : maxLength;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int accepted = accept(len);
+        while (accepted > 0) {
+            int n = Math.min(accepted, CHUNK_SIZE - mCount);
+            System.arraycopy(cbuf, off, mChunk, mCount, n);
+            append(n);
+            off += n;
+            accepted -= n;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        int accepted = accept(len);
+        while (accepted > 0) {
+            int n = Math.min(accepted, CHUNK_SIZE - mCount);
+            str.getChars(off, off + n, mChunk, mCount);
+            append(n);
+            off += n;
+            accepted -= n;
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (accept(1) > 0) {
+            mChunk[mCount] = (char) c;
+            append(1);
+        }
+    }
+
+    private int accept(int len) {
+        long remaining = Math.max(0, mMaxLength - mLength);
+        mLength += len;
+        return (int) Math.min(len, remaining);
+    }
+
+    private void append(int n) throws IOException {
+        mCount += n;
+        if (mCount == CHUNK_SIZE) {
+            if (Character.isHighSurrogate(mChunk[CHUNK_SIZE - 1])) {
+                // Keep surrogate pairs together in one chunk.
+                mReportWriter.text(mChunk, 0, CHUNK_SIZE - 1);
+                mChunk[0] = mChunk[CHUNK_SIZE - 1];
+                mCount = 1;
+            } else {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Writes any buffered text to the report writer.  This does not flush the
+     * report writer itself.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (mCount > 0) {
+            mReportWriter.text(mChunk, 0, mCount);
+            mCount = 0;
+        }
+    }
+
+    /**
+     * Writes any buffered text, followed by a truncation marker if text was
+     * discarded.  The report writer is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (mLength > mMaxLength) {
+            mReportWriter.text("\n... [truncated " + (mLength - mMaxLength) + " more characters]\n");
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recognises repeated stack traces so that each distinct trace need only be
+ * written to a report once.  Traces are identified by a fingerprint of the
+ * exception types, messages and (optionally filtered) frames of the whole
+ * cause chain.  The messages are included because they are part of the
+ * trace text: a reference to a trace stands for all of it, so failures that
+ * differ only in a message must not share one.
+ * <p/>
+ * The number of distinct traces remembered is capped, beyond which new traces
+ * are simply not deduplicated.
+ */
+final class TraceDeduplicator {
+    private static final int MAX_TRACES = 4096;
+    private static final int MAX_CAUSE_DEPTH = 64;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Map<Long, Entry> mEntries = new HashMap<Long, Entry>();
+    private int mNextId = 1;
+
+    /**
+     * Records an occurrence of the trace of the given throwable.
+     *
+     * @param error  the throwable whose trace is being reported
+     * @param filter filter applied to the trace when it is written, or null
+     *               if traces are written unfiltered
+     * @return the entry for the trace, with its count updated to include this
+     *         occurrence, or null if the trace is not being tracked
+     */
+    Entry record(Throwable error, StackTraceFilter filter) {
+        Long fingerprint = fingerprint(error, filter);
+        Entry entry = mEntries.get(fingerprint);
+        if (entry == null) {
+            if (mEntries.size() >= MAX_TRACES) {
+                return null;
+            }
+
+            entry = new Entry(mNextId++);
+            mEntries.put(fingerprint, entry);
+        }
+
+        entry.mCount++;
+        return entry;
+    }
+
+    /**
+     * Forgets all recorded traces, used when starting a new report file.
+     */
+    void reset() {
+        mEntries.clear();
+        mNextId = 1;
+    }
+
+    private static long fingerprint(Throwable error, StackTraceFilter filter) {
+        long hash = FNV_OFFSET_BASIS;
+        Throwable current = error;
+        for (int depth = 0; current != null && depth < MAX_CAUSE_DEPTH; depth++) {
+            hash = hash(hash, current.getClass().getName());
+            hash = hash(hash, current.getLocalizedMessage());
+            for (StackTraceElement element: current.getStackTrace()) {
+                if (filter == null || !filter.isFiltered(element)) {
+                    hash = hash(hash, element.getClassName());
+                    hash = hash(hash, element.getMethodName());
+                    hash = hash(hash, element.getFileName());
+                    hash = hash(hash, element.getLineNumber());
+                }
+            }
+
+            Throwable cause = current.getCause();
+            current = cause == current ? null : cause;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String s) {
+        if (s == null) {
+            return hash(hash, -1);
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+        }
+        // Separator so that e.g. "ab" + "c" differs from "a" + "bc".
+        return (hash ^ 0xffff) * FNV_PRIME;
+    }
+
+    private static long hash(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * Tracks a single distinct trace.
+     */
+    static final class Entry {
+        private final int mId;
+        private int mCount;
+
+        private Entry(int id) {
+            this.mId = id;
+        }
+
+        /**
+         * @return identifier of the trace, unique within a report file
+         */
+        int getId() {
+            return mId;
+        }
+
+        /**
+         * @return number of times the trace has been seen, including the
+         *         latest occurrence
+         */
+        int getCount() {
+            return mCount;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2010-2012 Zutubi Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zutubi.android.junitreport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the report as JUnit XML.  Rather than going through a general
+ * purpose XmlSerializer, this writer escapes and UTF-8 encodes text straight
+ * into a reusable byte buffer, so that writing a report allocates nothing
+ * per element.  The output is byte-for-byte the same as that of the
+ * platform serializer (KXmlSerializer) for the features used in reports:
+ * <ul>
+ *   <li>The declaration is &lt;?xml version='1.0' encoding='utf-8'
+ *       standalone='yes' ?&gt;, not followed by a newline.</li>
+ *   <li>Attribute values are double quoted, unless they contain a double
+ *       quote in which case they are single quoted.  Tabs and line breaks in
+ *       attribute values are written as character references.</li>
+ *   <li>Empty elements are closed with " /&gt;".</li>
+ *   <li>Supplementary characters are written as character references.</li>
+ * </ul>
+ * The one difference is that characters that may not appear in XML at all,
+ * such as most control characters, are replaced with '?' where the platform
+ * serializer throws an exception.  These turn up in failure messages more
+ * often than might be expected.
+ * <p/>
+ * XML has no place for attributes once an element has content, so summaries
+ * are ignored: the listener reserves space for them in the start tag instead
+ * (see {@link SummarySlot}).
+ */
+final class XmlReportWriter implements ReportWriter {
+    private static final String DECLARATION = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>";
+    private static final int BUFFER_SIZE = 8192;
+    // longest output for a single char: a supplementary character reference
+    private static final int MAX_CHAR_BYTES = 10;
+    private static final int NO_QUOTE = -1;
+
+    private OutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mCount;
+    private String[] mElements = new String[8];
+    private int mDepth;
+    // true if a start tag is waiting to be closed (by '>' or " />")
+    private boolean mPending;
+
+    @Override
+    public void setOutput(OutputStream out) {
+        mOut = out;
+        mCount = 0;
+        mDepth = 0;
+        mPending = false;
+    }
+
+    @Override
+    public void startDocument() throws IOException {
+        writeAscii(DECLARATION);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        while (mDepth > 0 || mPending) {
+            endTag(getName());
+        }
+        flush();
+    }
+
+    @Override
+    public void startTag(String name) throws IOException {
+        closeStartTag();
+        if (mDepth == mElements.length) {
+            String[] grown = new String[mDepth * 2];
+            System.arraycopy(mElements, 0, grown, 0, mDepth);
+            mElements = grown;
+        }
+        mElements[mDepth] = name;
+        writeByte('<');
+        writeEscaped(name, NO_QUOTE);
+        mPending = true;
+    }
+
+    @Override
+    public void attribute(String name, String value) throws IOException {
+        if (!mPending) {
+            throw new IllegalStateException("Attribute '" + name + "' must directly follow a start tag");
+        }
+
+        char quote = value.indexOf('"') < 0 ? '"' : '\'';
+        writeByte(' ');
+        writeEscaped(name, NO_QUOTE);
+        writeByte('=');
+        writeByte(quote);
+        writeEscaped(value, quote);
+        writeByte(quote);
+    }
+
+    @Override
+    public void attribute(String name, char[] buf, int start, int length) throws IOException {
+        if (!mPending) {
+            throw new IllegalStateException("Attribute '" + name + "' must directly follow a start tag");
+        }
+
+        char quote = '"';
+        for (int i = start; i < start + length; i++) {
+            if (buf[i] == '"') {
+                quote = '\'';
+                break;
+            }
+        }
+        writeByte(' ');
+        writeEscaped(name, NO_QUOTE);
+        writeByte('=');
+        writeByte(quote);
+        writeEscaped(buf, start, length, quote);
+        writeByte(quote);
+    }
+
+    @Override
+    public void text(char[] buf, int start, int length) throws IOException {
+        closeStartTag();
+        writeEscaped(buf, start, length, NO_QUOTE);
+    }
+
+    @Override
+    public void text(String text) throws IOException {
+        closeStartTag();
+        writeEscaped(text, NO_QUOTE);
+    }
+
+    @Override
+    public void summary(String[] names, String[] values) {
+    }
+
+    @Override
+    public void endTag(String name) throws IOException {
+        if (mPending) {
+            writeByte(' ');
+            writeByte('/');
+            writeByte('>');
+            mPending = false;
+        } else {
+            if (mDepth == 0) {
+                throw new IllegalStateException("End tag '" + name + "' with no open element");
+            }
+            mDepth--;
+            writeByte('<');
+            writeByte('/');
+            writeEscaped(name, NO_QUOTE);
+            writeByte('>');
+        }
+    }
+
+    @Override
+    public String getName() {
+        if (mPending) {
+            return mElements[mDepth];
+        }
+        return mDepth == 0 ? null : mElements[mDepth - 1];
+    }
+
+    @Override
+    public void flush() throws IOException {
+        closeStartTag();
+        drain();
+    }
+
+    private void closeStartTag() throws IOException {
+        if (mPending) {
+            writeByte('>');
+            mDepth++;
+            mPending = false;
+        }
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void writeEscaped(String s, int quote) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+            } else {
+                writeEscaped(c, quote);
+            }
+        }
+    }
+
+    private void writeEscaped(char[] buf, int start, int length, int quote) throws IOException {
+        int end = start + length;
+        for (int i = start; i < end; i++) {
+            char c = buf[i];
+            if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(buf[i + 1])) {
+                writeCodePoint(Character.toCodePoint(c, buf[++i]));
+            } else {
+                writeEscaped(c, quote);
+            }
+        }
+    }
+
+    private void writeEscaped(char c, int quote) throws IOException {
+        if (mCount + MAX_CHAR_BYTES > BUFFER_SIZE) {
+            drain();
+        }
+
+        byte[] buffer = mBuffer;
+        switch (c) {
+            case '\n':
+            case '\r':
+            case '\t':
+                if (quote == NO_QUOTE) {
+                    buffer[mCount++] = (byte) c;
+                } else {
+                    buffer[mCount++] = '&';
+                    buffer[mCount++] = '#';
+                    if (c >= 10) {
+                        buffer[mCount++] = '1';
+                    }
+                    buffer[mCount++] = (byte) ('0' + c % 10);
+                    buffer[mCount++] = ';';
+                }
+                break;
+            case '&':
+                writeEntity('a', 'm', 'p', 0);
+                break;
+            case '<':
+                writeEntity('l', 't', 0, 0);
+                break;
+            case '>':
+                writeEntity('g', 't', 0, 0);
+                break;
+            default:
+                if (c == quote) {
+                    if (c == '"') {
+                        writeEntity('q', 'u', 'o', 't');
+                    } else {
+                        writeEntity('a', 'p', 'o', 's');
+                    }
+                } else if (c < 0x20 || c > 0xfffd || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+                    // Not allowed in XML, and pairs are handled by the caller.
+                    buffer[mCount++] = '?';
+                } else if (c < 0x80) {
+                    buffer[mCount++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[mCount++] = (byte) (0xc0 | (c >> 6));
+                    buffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+                } else {
+                    buffer[mCount++] = (byte) (0xe0 | (c >> 12));
+                    buffer[mCount++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+                }
+        }
+    }
+
+    private void writeEntity(int c1, int c2, int c3, int c4) {
+        byte[] buffer = mBuffer;
+        buffer[mCount++] = '&';
+        buffer[mCount++] = (byte) c1;
+        buffer[mCount++] = (byte) c2;
+        if (c3 != 0) {
+            buffer[mCount++] = (byte) c3;
+            if (c4 != 0) {
+                buffer[mCount++] = (byte) c4;
+            }
+        }
+        buffer[mCount++] = ';';
+    }
+
+    private void writeCodePoint(int codePoint) throws IOException {
+        if (mCount + MAX_CHAR_BYTES > BUFFER_SIZE) {
+            drain();
+        }
+
+        mBuffer[mCount++] = '&';
+        mBuffer[mCount++] = '#';
+        int divisor = 1000000;
+        while (divisor > codePoint) {
+            divisor /= 10;
+        }
+        while (divisor > 0) {
+            mBuffer[mCount++] = (byte) ('0' + codePoint / divisor % 10);
+            divisor /= 10;
+        }
+        mBuffer[mCount++] = ';';
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (mCount == BUFFER_SIZE) {
+            drain();
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    private void drain() throws IOException {
+        if (mCount > 0) {
+            mOut.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+}